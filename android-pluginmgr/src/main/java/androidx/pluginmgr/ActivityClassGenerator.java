@@ -24,14 +24,26 @@ import static java.lang.reflect.Modifier.STATIC;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.jar.JarEntry;
 import java.util.jar.JarOutputStream;
+import java.util.zip.CRC32;
 
 import android.app.Activity;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.ServiceConnection;
 import android.content.res.AssetManager;
 import android.content.res.Configuration;
 import android.content.res.Resources;
@@ -55,25 +67,298 @@ import com.google.dexmaker.dx.dex.DexFormat;
  * 
  */
 class ActivityClassGenerator {
+	/**
+	 * 生成的代码有变化时递增，旧的代理dex会因缓存键不同而重新生成
+	 */
+	static final int GENERATOR_VERSION = 3;
+	/**
+	 * 覆盖方法集合的版本：API 16 起才有带 Bundle 的 startActivityForResult 重载
+	 */
+	static final int OVERRIDES_FULL = 16;
+	static final int OVERRIDES_NO_BUNDLE = 15;
 	private static final String FIELD_ASSERTMANAGER = "mAssertManager";
 	private static final String FIELD_RESOURCES = "mResources";
 	private static final String FIELD_mOnCreated = "mOnCreated";
+	private static final String FIELD_HANDLE = "_handle";
+	private static final String METHOD_GET_HANDLE = "_getHandle";
+
+	/**
+	 * 代理中可能覆盖的方法：方法名与参数类型。
+	 * 父类链中找不到或是 final 的方法不生成(见 {@link #getSkippedOverrides})
+	 */
+	private static final Object[][] OVERRIDES = {
+			{ "onCreate", new Class<?>[] { Bundle.class } },
+			{ "getAssets", new Class<?>[0] },
+			{ "getResources", new Class<?>[0] },
+			{ "startActivityForResult",
+					new Class<?>[] { Intent.class, int.class, Bundle.class } },
+			{ "startActivityForResult",
+					new Class<?>[] { Intent.class, int.class } },
+			{ "onBackPressed", new Class<?>[0] },
+			{ "onResume", new Class<?>[0] },
+			{ "onStart", new Class<?>[0] },
+			{ "onRestart", new Class<?>[0] },
+			{ "onPause", new Class<?>[0] },
+			{ "onStop", new Class<?>[0] },
+			{ "onDestroy", new Class<?>[0] },
+			{ "attachBaseContext", new Class<?>[] { Context.class } },
+			{ "getComponentName", new Class<?>[0] },
+			{ "getPackageName", new Class<?>[0] },
+			{ "getIntent", new Class<?>[0] },
+			{ "setTheme", new Class<?>[] { int.class } } };
 	
-	public static void createActivityDex(String superClassName,
-			String targetClassName, File saveTo, String pluginId, String pkgName)
+	/**
+	 * 生成插件所有代理Activity的dex
+	 * <p>
+	 * 不依赖设备上的状态，也可以在构建机器上运行
+	 * 
+	 * @param activities
+	 *            - 插件中的Activity类名(已排序)
+	 * @param template
+	 *            - 是否使用模板模式(见 {@link #createActivityDexes})
+	 * @param pluginLoader
+	 *            - 用于检查Activity父类链的插件类加载器，为 null 时不检查(见 {@link #getSkippedOverrides(String, ClassLoader, int)})
+	 * @param overridesLevel
+	 *            - 本机的覆盖方法集合，构建时为 {@link #OVERRIDES_FULL}
+	 * @return 普通模式下一个dex包含所有代理，模板模式下每个Activity一个dex
+	 */
+	static List<byte[]> createProxyDexes(List<String> activities,
+			String pluginId, String pkgName, boolean template,
+			ClassLoader pluginLoader, int overridesLevel) {
+		if (template) {
+			return createActivityDexes(activities, pluginId, pkgName,
+					pluginLoader, overridesLevel);
+		}
+		List<byte[]> rs = new ArrayList<byte[]>(1);
+		rs.add(createActivitiesDex(activities, pluginId, pkgName, pluginLoader,
+				overridesLevel));
+		return rs;
+	}
+
+	static List<byte[]> createProxyDexes(List<String> activities,
+			String pluginId, String pkgName, boolean template,
+			ClassLoader pluginLoader) {
+		return createProxyDexes(activities, pluginId, pkgName, template,
+				pluginLoader, OVERRIDES_FULL);
+	}
+
+	static List<byte[]> createProxyDexes(List<String> activities,
+			String pluginId, String pkgName, boolean template) {
+		return createProxyDexes(activities, pluginId, pkgName, template, null);
+	}
+
+	/**
+	 * 系统版本决定了父类链中有哪些方法，因而决定生成的代理，它是代理缓存键的一部分(见
+	 * {@link ActivityOverider#getProxyCacheKey})。构建时生成全部覆盖方法，对应 {@link #OVERRIDES_FULL}
+	 */
+	static int getOverridesLevel(int sdkInt) {
+		return sdkInt >= OVERRIDES_FULL ? OVERRIDES_FULL : OVERRIDES_NO_BUNDLE;
+	}
+
+	/**
+	 * @return 代理可能覆盖的方法名
+	 */
+	static Set<String> getOverrideNames() {
+		Set<String> names = new TreeSet<String>();
+		for (Object[] o : OVERRIDES) {
+			names.add((String) o[0]);
+		}
+		return names;
+	}
+
+	/**
+	 * 不能覆盖的方法。
+	 * API 16 以上父类链中总有全部覆盖方法，API 15 以下只缺少带 Bundle 的 startActivityForResult，
+	 * 只有插件把其中某个方法声明为 final 时才需要加载Activity类检查父类链
+	 * 
+	 * @param pluginLoader
+	 *            - 不需要检查父类链时为 null
+	 */
+	static Set<String> getSkippedOverrides(String activity,
+			ClassLoader pluginLoader, int overridesLevel) {
+		if (pluginLoader != null) {
+			return getSkippedOverrides(activity, pluginLoader);
+		}
+		if (overridesLevel < OVERRIDES_FULL) {
+			return Collections.singleton(methodKey("startActivityForResult", 3));
+		}
+		return Collections.emptySet();
+	}
+
+	/**
+	 * 检查Activity的父类链，返回不能或不必覆盖的方法(见 {@link #methodKey})
+	 * <p>
+	 * 方法在父类链中不存在(例如旧系统没有的重载)或被声明为 final 时，覆盖它会导致校验失败
+	 * 
+	 * @return pluginLoader 为 null 或类加载失败时返回空集合
+	 */
+	static Set<String> getSkippedOverrides(String activity,
+			ClassLoader pluginLoader) {
+		if (pluginLoader == null) {
+			return Collections.emptySet();
+		}
+		Class<?> clazz;
+		try {
+			clazz = Class.forName(activity, false, pluginLoader);
+		} catch (Throwable e) {
+			return Collections.emptySet();
+		}
+		Set<String> skipped = new TreeSet<String>();
+		for (Object[] o : OVERRIDES) {
+			String name = (String) o[0];
+			Class<?>[] params = (Class<?>[]) o[1];
+			Method m = findMethod(clazz, name, params);
+			if (m == null || Modifier.isFinal(m.getModifiers())) {
+				skipped.add(methodKey(name, params.length));
+			}
+		}
+		return skipped;
+	}
+
+	private static Method findMethod(Class<?> clazz, String name,
+			Class<?>[] params) {
+		for (Class<?> c = clazz; c != null; c = c.getSuperclass()) {
+			try {
+				return c.getDeclaredMethod(name, params);
+			} catch (NoSuchMethodException e) {
+			} catch (NoClassDefFoundError e) {
+				return null;
+			}
+		}
+		return null;
+	}
+
+	private static String methodKey(String name, int paramCount) {
+		return name + '/' + paramCount;
+	}
+
+	/**
+	 * 读取dex头部中的方法引用数量
+	 */
+	static int getMethodIdCount(byte[] dex) {
+		int off = 0x58; // method_ids_size
+		return (dex[off] & 0xFF) | (dex[off + 1] & 0xFF) << 8
+				| (dex[off + 2] & 0xFF) << 16 | (dex[off + 3] & 0xFF) << 24;
+	}
+
+	/**
+	 * 保存代理dex：文件名以 .dex 结尾且只有一个dex时直接写入，
+	 * 否则写成不压缩的jar(classes.dex, classes2.dex ...)
+	 * 
+	 * @return 所有dex内容的 SHA-256(十六进制)
+	 */
+	static String writeProxyDexes(List<byte[]> dexes, File saveTo)
 			throws IOException {
-		byte[] dex = createActivityDex(superClassName, targetClassName,
-				pluginId, pkgName);
-		if (saveTo.getName().endsWith(".dex")) {
-			FileUtil.writeToFile(dex, saveTo);
-		} else {
-			JarOutputStream jarOut = new JarOutputStream(new FileOutputStream(
-					saveTo));
-			jarOut.putNextEntry(new JarEntry(DexFormat.DEX_IN_JAR_NAME));
-			jarOut.write(dex);
-			jarOut.closeEntry();
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance(StreamCopier.DEFAULT_DIGEST);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		if (dexes.size() == 1 && saveTo.getName().endsWith(".dex")) {
+			FileUtil.writeToFile(dexes.get(0), saveTo);
+			md.update(dexes.get(0));
+			return FileUtil.toHexString(md.digest());
+		}
+		JarOutputStream jarOut = new JarOutputStream(new FileOutputStream(
+				saveTo));
+		try {
+			CRC32 crc = new CRC32();
+			for (int i = 0; i < dexes.size(); i++) {
+				byte[] dex = dexes.get(i);
+				// 不压缩，dex可以直接从jar中映射
+				JarEntry entry = new JarEntry(i == 0 ? DexFormat.DEX_IN_JAR_NAME
+						: "classes" + (i + 1) + ".dex");
+				crc.reset();
+				crc.update(dex);
+				entry.setMethod(JarEntry.STORED);
+				entry.setSize(dex.length);
+				entry.setCrc(crc.getValue());
+				jarOut.putNextEntry(entry);
+				jarOut.write(dex);
+				jarOut.closeEntry();
+				md.update(dex);
+			}
+		} finally {
 			jarOut.close();
 		}
+		return FileUtil.toHexString(md.digest());
+	}
+
+	/**
+	 * 一个dex中为每个Activity生成一个代理类，类名见 {@link ActivityOverider#getProxyClassName(String)}
+	 */
+	public static byte[] createActivitiesDex(Collection<String> activities,
+			String pluginId, String pkgName) {
+		return createActivitiesDex(activities, pluginId, pkgName, null);
+	}
+
+	static byte[] createActivitiesDex(Collection<String> activities,
+			String pluginId, String pkgName, ClassLoader pluginLoader) {
+		return createActivitiesDex(activities, pluginId, pkgName,
+				pluginLoader, OVERRIDES_FULL);
+	}
+
+	static byte[] createActivitiesDex(Collection<String> activities,
+			String pluginId, String pkgName, ClassLoader pluginLoader,
+			int overridesLevel) {
+		DexMaker dexMaker = new DexMaker();
+		for (String activity : activities) {
+			declareActivity(dexMaker, activity,
+					ActivityOverider.getProxyClassName(activity), pluginId,
+					pkgName, getSkippedOverrides(activity, pluginLoader,
+							overridesLevel));
+		}
+		return dexMaker.generate();
+	}
+
+	/**
+	 * 模板模式：每个Activity一个dex
+	 * <p>
+	 * 同一插件的代理之间只有父类名不同，父类名长度相同且覆盖的方法相同的Activity共用一个模板：
+	 * 第一个用 DexMaker 生成，其余由 {@link DexTemplatePatcher} 等长改写字符串池得到。
+	 * 一个jar中的多个dex需要ART(Android 5.0+)才能加载
+	 */
+	static List<byte[]> createActivityDexes(List<String> activities,
+			String pluginId, String pkgName, ClassLoader pluginLoader,
+			int overridesLevel) {
+		// 父类名长度与不覆盖的方法 -> {模板的父类名, 模板dex}
+		Map<String, Object[]> templates = new HashMap<String, Object[]>();
+		List<byte[]> rs = new ArrayList<byte[]>(activities.size());
+		for (String activity : activities) {
+			Set<String> skipped = getSkippedOverrides(activity, pluginLoader,
+					overridesLevel);
+			String templateKey = activity.length() + ":" + skipped;
+			Object[] t = templates.get(templateKey);
+			byte[] dex = null;
+			if (t != null) {
+				String from = (String) t[0];
+				Map<String, String> replacements = new HashMap<String, String>();
+				replacements.put(from, activity);
+				replacements.put(toDescriptor(from), toDescriptor(activity));
+				replacements.put(
+						toDescriptor(ActivityOverider.getProxyClassName(from)),
+						toDescriptor(ActivityOverider
+								.getProxyClassName(activity)));
+				dex = DexTemplatePatcher.patch((byte[]) t[1], replacements);
+			}
+			if (dex == null) {
+				DexMaker dexMaker = new DexMaker();
+				declareActivity(dexMaker, activity,
+						ActivityOverider.getProxyClassName(activity), pluginId,
+						pkgName, skipped);
+				dex = dexMaker.generate();
+				if (t == null) {
+					templates.put(templateKey, new Object[] { activity, dex });
+				}
+			}
+			rs.add(dex);
+		}
+		return rs;
+	}
+
+	private static String toDescriptor(String className) {
+		return 'L' + className.replace('.', '/') + ';';
 	}
 
 	/**
@@ -84,11 +369,19 @@ class ActivityClassGenerator {
 	 * @param pkgName
 	 * @return
 	 */
-	public static <S, D extends S> byte[] createActivityDex(
-			final String superClassName, final String targetClassName,
-			final String pluginId, String pkgName) {
-
+	public static byte[] createActivityDex(final String superClassName,
+			final String targetClassName, final String pluginId, String pkgName) {
 		DexMaker dexMaker = new DexMaker();
+		declareActivity(dexMaker, superClassName, targetClassName, pluginId,
+				pkgName, Collections.<String> emptySet());
+		// Create the dex Content
+		byte[] dex = dexMaker.generate();
+		return dex;
+	}
+
+	private static <S, D extends S> void declareActivity(DexMaker dexMaker,
+			final String superClassName, final String targetClassName,
+			final String pluginId, String pkgName, Set<String> skipped) {
 
 		TypeId<D> generatedType = TypeId.get('L' + targetClassName.replace('.',
 				'/') + ';');
@@ -98,56 +391,73 @@ class ActivityClassGenerator {
 		// 声明类
 		dexMaker.declare(generatedType, "", PUBLIC | FINAL, superType);
 		// 定义字段
-		//private static final String _pluginId = @param{pluginId};
+		//private static ProxyActivityHandle _handle;
 		// private AssetManager asm;
 		// private Resources res;
-		declareFields(dexMaker, generatedType, superType, pluginId,pkgName);
+		declareFields(dexMaker, generatedType, superType, pkgName);
+		declareMethod_getHandle(dexMaker, generatedType, pluginId);
 		// 声明 默认构造方法
 		declare_constructor(dexMaker, generatedType, superType);
 	
 		// 声明 方法：onCreate
-		declareMethod_onCreate(dexMaker, generatedType, superType);
+		if (!skipped.contains(methodKey("onCreate", 1))) {
+			declareMethod_onCreate(dexMaker, generatedType, superType);
+		}
 		// 声明 方法：public AssetManager getAssets()
-		declareMethod_getAssets(dexMaker, generatedType, superType);
+		if (!skipped.contains(methodKey("getAssets", 0))) {
+			declareMethod_getAssets(dexMaker, generatedType, superType);
+		}
 		// 声明 方法：public Resources getResources()
-		declareMethod_getResources(dexMaker, generatedType, superType);
+		if (!skipped.contains(methodKey("getResources", 0))) {
+			declareMethod_getResources(dexMaker, generatedType, superType);
+		}
 		/*
 		 * 声明 方法：startActivityForResult(Intent intent, int requestCode, Bundle
-		 * options)
+		 * options)，没有时(Android 4.1 以前)覆盖两个参数的版本
 		 */
-		declareMethod_startActivityForResult(dexMaker, generatedType,superType);
+		if (!skipped.contains(methodKey("startActivityForResult", 3))) {
+			declareMethod_startActivityForResult(dexMaker, generatedType,
+					superType, true);
+		} else if (!skipped.contains(methodKey("startActivityForResult", 2))) {
+			declareMethod_startActivityForResult(dexMaker, generatedType,
+					superType, false);
+		}
 		// 声明 方法：public void onBackPressed()
-		declareMethod_onBackPressed(dexMaker, generatedType, superType);
-		
-		declareMethod_startService(dexMaker, generatedType, superType);
-		declareMethod_bindService(dexMaker, generatedType, superType);
-		declareMethod_unbindService(dexMaker, generatedType, superType);
-		declareMethod_stopService(dexMaker, generatedType, superType);
+		if (!skipped.contains(methodKey("onBackPressed", 0))) {
+			declareMethod_onBackPressed(dexMaker, generatedType, superType);
+		}
 		// Create life Cycle methods
-		declareLifeCyleMethod(dexMaker, generatedType, superType, "onResume");
-		declareLifeCyleMethod(dexMaker, generatedType, superType, "onStart");
-		declareLifeCyleMethod(dexMaker, generatedType, superType, "onRestart");
-		declareLifeCyleMethod(dexMaker, generatedType, superType, "onPause");
-		declareLifeCyleMethod(dexMaker, generatedType, superType, "onStop");
-		declareLifeCyleMethod(dexMaker, generatedType, superType, "onDestroy");
-
-		declareMethod_attachBaseContext(dexMaker, generatedType, superType);
-		
-		declareMethod_getComponentName(dexMaker, generatedType, superType, superClassName);
-		declareMethod_getPackageName(dexMaker, generatedType, pkgName);
-		declareMethod_getIntent(dexMaker, generatedType, superType);
-		declareMethod_setTheme(dexMaker, generatedType, superType);
-		// Create the dex Content
-		byte[] dex = dexMaker.generate();
-		return dex;
+		String[] lifeCycleMethods = { "onResume", "onStart", "onRestart",
+				"onPause", "onStop", "onDestroy" };
+		for (String name : lifeCycleMethods) {
+			if (!skipped.contains(methodKey(name, 0))) {
+				declareLifeCyleMethod(dexMaker, generatedType, superType, name);
+			}
+		}
+		if (!skipped.contains(methodKey("attachBaseContext", 1))) {
+			declareMethod_attachBaseContext(dexMaker, generatedType, superType);
+		}
+		if (!skipped.contains(methodKey("getComponentName", 0))) {
+			declareMethod_getComponentName(dexMaker, generatedType, superType,
+					superClassName);
+		}
+		if (!skipped.contains(methodKey("getPackageName", 0))) {
+			declareMethod_getPackageName(dexMaker, generatedType, pkgName);
+		}
+		if (!skipped.contains(methodKey("getIntent", 0))) {
+			declareMethod_getIntent(dexMaker, generatedType, superType);
+		}
+		if (!skipped.contains(methodKey("setTheme", 1))) {
+			declareMethod_setTheme(dexMaker, generatedType, superType);
+		}
 	}
 
 	private static <S, D extends S> void declareFields(
 			DexMaker dexMaker, TypeId<D> generatedType, TypeId<S> superType,
-			String pluginId,String pkgName) {
-		FieldId<D, String> _pluginId = generatedType.getField(TypeId.STRING,
-				"_pluginId");
-		dexMaker.declare(_pluginId, PRIVATE | STATIC | FINAL, pluginId);
+			String pkgName) {
+		FieldId<D, ProxyActivityHandle> _handle = generatedType.getField(
+				TypeId.get(ProxyActivityHandle.class), FIELD_HANDLE);
+		dexMaker.declare(_handle, PRIVATE | STATIC, null);
 		FieldId<D, String> _pkg = generatedType.getField(TypeId.STRING,
 				"_pkg");
 		dexMaker.declare(_pkg, PRIVATE | STATIC | FINAL, pkgName);
@@ -163,14 +473,58 @@ class ActivityClassGenerator {
 		dexMaker.declare(beforeOnCreate, PRIVATE, null);
 	}
 
+	/**
+	 * 生成以下代码：<br/>
+	 * 
+	 * <pre>
+	 * private static ProxyActivityHandle _getHandle() {
+	 * 	ProxyActivityHandle h = _handle;
+	 * 	if (h == null) {
+	 * 		h = ProxyActivityHandle.bind(pluginId, 本类.class);
+	 * 		_handle = h;
+	 * 	}
+	 * 	return h;
+	 * }
+	 * </pre>
+	 * 
+	 * 首次调用时绑定一次，之后只读静态字段(ProxyActivityHandle 的字段都是 final，并发时重复绑定也无害)
+	 */
+	private static <D> void declareMethod_getHandle(DexMaker dexMaker,
+			TypeId<D> generatedType, String pluginId) {
+		TypeId<ProxyActivityHandle> Handle = TypeId.get(ProxyActivityHandle.class);
+		// 用描述符声明为 Object，才能以 TypeId 作为 const-class 常量
+		TypeId<Object> ClassType = TypeId.get("Ljava/lang/Class;");
+		MethodId<D, ProxyActivityHandle> method = generatedType.getMethod(
+				Handle, METHOD_GET_HANDLE);
+		Code code = dexMaker.declare(method, PRIVATE | STATIC);
+		Local<ProxyActivityHandle> h = code.newLocal(Handle);
+		Local<ProxyActivityHandle> nullV = code.newLocal(Handle);
+		Local<String> id = code.newLocal(TypeId.STRING);
+		Local<Object> clazz = code.newLocal(ClassType);
+		FieldId<D, ProxyActivityHandle> field = generatedType.getField(Handle,
+				FIELD_HANDLE);
+		code.sget(field, h);
+		code.loadConstant(nullV, null);
+		Label bound = new Label();
+		code.compare(Comparison.NE, bound, h, nullV);
+		code.loadConstant(id, pluginId);
+		code.loadConstant(clazz, generatedType);
+		MethodId<ProxyActivityHandle, ProxyActivityHandle> bind = Handle
+				.getMethod(Handle, "bind", TypeId.STRING, ClassType);
+		code.invokeStatic(bind, h, id, clazz);
+		code.sput(field, h);
+		code.mark(bound);
+		code.returnValue(h);
+	}
+
 	// Note: 必须是最后一个Local变量处调用
-	private static <D> Local<String> get_pluginId(TypeId<D> generatedType,
-			Code methodCode) {
-		Local<String> pluginId = methodCode.newLocal(TypeId.STRING);
-		FieldId<D, String> fieldId = generatedType.getField(TypeId.STRING,
-				"_pluginId");
-		methodCode.sget(fieldId, pluginId);
-		return pluginId;
+	private static <D> Local<ProxyActivityHandle> get_handle(
+			TypeId<D> generatedType, Code methodCode) {
+		TypeId<ProxyActivityHandle> Handle = TypeId.get(ProxyActivityHandle.class);
+		Local<ProxyActivityHandle> handle = methodCode.newLocal(Handle);
+		methodCode.invokeStatic(
+				generatedType.getMethod(Handle, METHOD_GET_HANDLE), handle);
+		return handle;
 	}
 	
 	private static <S, D extends S> void declareMethod_setTheme(
@@ -182,10 +536,10 @@ class ActivityClassGenerator {
 		
 		TypeId<ActivityOverider> ActivityOverider = TypeId
 				.get(ActivityOverider.class);
-		// static int ActivityOverider::getPlugActivityTheme(Activity fromAct,String pluginId)
+		// static int ActivityOverider::getPlugActivityTheme(Activity fromAct,ProxyActivityHandle handle)
 		MethodId<ActivityOverider, Integer> methodOveride = ActivityOverider
 				.getMethod(TypeId.INT, "getPlugActivityTheme", TypeId.get(Activity.class),
-						TypeId.STRING);
+						TypeId.get(ProxyActivityHandle.class));
 		// locals 
 		Code methodCode = dexMaker.declare(method, PROTECTED);
 		Local<D> localThis = methodCode.getThis(generatedType);
@@ -193,10 +547,10 @@ class ActivityClassGenerator {
 		Local<Integer> int0 = methodCode.newLocal(TypeId.INT);
 		Local<Boolean> lcoalonCreate = methodCode.newLocal(TypeId.BOOLEAN);
 		Local<Boolean> localFalse = methodCode.newLocal(TypeId.BOOLEAN);
-		Local<String> pluginId = get_pluginId(generatedType, methodCode);
+		Local<ProxyActivityHandle> handle = get_handle(generatedType, methodCode);
 		/* int resId = paramThemeId;
 		 * if( !OnCreated ){
-		 *    resId = ActivityOverider.getPlugActivityTheme(this,pluginId);
+		 *    resId = ActivityOverider.getPlugActivityTheme(this, _getHandle());
 		 * }
 		 * if(resId!=0){
 		 *   super.setTheme(resId);
@@ -208,7 +562,7 @@ class ActivityClassGenerator {
 			Label ifBeforeOncreate = new Label();
 			methodCode.loadConstant(localFalse, false);
 			methodCode.compare(Comparison.NE, ifBeforeOncreate, lcoalonCreate, localFalse);
-			methodCode.invokeStatic(methodOveride, resId, localThis,pluginId);
+			methodCode.invokeStatic(methodOveride, resId, localThis, handle);
 			methodCode.mark(ifBeforeOncreate);
 		}
 		//
@@ -255,14 +609,14 @@ class ActivityClassGenerator {
 		Local<DisplayMetrics> mtrc = methodCode.newLocal(DisplayMetrics);
 		Local<Configuration> cfg = methodCode.newLocal(Configuration);
 		Local<Resources> resLocal = methodCode.newLocal(Resources);
-		Local<String> pluginId = get_pluginId(generatedType, methodCode);
+		Local<ProxyActivityHandle> handle = get_handle(generatedType, methodCode);
 		methodCode.loadConstant(index0, 0);
 		methodCode.loadConstant(index1, 1);
 		// codes:
-		//  Object [] rs = ActivitiOverrider.overrideAttachBaseContext(_pluginId, activity, base);
+		//  Object [] rs = ActivitiOverrider.overrideAttachBaseContext(_getHandle(), activity, base);
 		MethodId<ActivityOverider, Object[]> methodOverride = ActivityOverider.getMethod(ObjArr,
-				"overrideAttachBaseContext",TypeId.STRING,TypeId.get(Activity.class),Context);
-		methodCode.invokeStatic(methodOverride, rsArr, pluginId,localThis,base);
+				"overrideAttachBaseContext",TypeId.get(ProxyActivityHandle.class),TypeId.get(Activity.class),Context);
+		methodCode.invokeStatic(methodOverride, rsArr, handle,localThis,base);
 		methodCode.aget(rsArr0, rsArr, index0);
 		methodCode.aget(rsArr1, rsArr, index1);
 		methodCode.cast(newbase, rsArr0);// base = rs[0];
@@ -372,17 +726,18 @@ class ActivityClassGenerator {
 		Local<D> localThis = methodCode.getThis(generatedType);
 		Local<Bundle> lcoalBundle = methodCode.getParameter(0, Bundle);
 		Local<Boolean> lcoalCreated = methodCode.newLocal(TypeId.BOOLEAN);
-		Local<String> pluginId = get_pluginId(generatedType, methodCode);
+		Local<ProxyActivityHandle> handle = get_handle(generatedType, methodCode);
 		// this.mOnCreated = true;
 		FieldId<D, Boolean> beforeOnCreate = generatedType.getField(TypeId.BOOLEAN, FIELD_mOnCreated);
 		methodCode.loadConstant(lcoalCreated, true);
 		methodCode.iput(beforeOnCreate, localThis, lcoalCreated);
 		
 		MethodId<ActivityOverider, Void> method_call_onCreate = ActivityOverider
-				.getMethod(TypeId.VOID, "callback_onCreate", TypeId.STRING,
+				.getMethod(TypeId.VOID, "callback_onCreate",
+						TypeId.get(ProxyActivityHandle.class),
 						TypeId.get(Activity.class));
 		methodCode
-				.invokeStatic(method_call_onCreate, null, pluginId, localThis);
+				.invokeStatic(method_call_onCreate, null, handle, localThis);
 		
 		// super.onCreate()
 		MethodId<S, Void> superMethod = superType.getMethod(TypeId.VOID, "onCreate",
@@ -448,14 +803,14 @@ class ActivityClassGenerator {
 	}
 
 	private static <S, D extends S> void declareMethod_startActivityForResult(
-			DexMaker dexMaker, TypeId<D> generatedType, TypeId<S> superType) {
+			DexMaker dexMaker, TypeId<D> generatedType, TypeId<S> superType,
+			boolean isNewSdk) {
 		TypeId<Intent> intent = TypeId.get(Intent.class);
 		TypeId<Integer> requestCode = TypeId.INT;
 		TypeId<Bundle> bundle = TypeId.get(Bundle.class);
 		
 		TypeId<?>[] params;
 		String methodName = "startActivityForResult";
-		final boolean isNewSdk = android.os.Build.VERSION.SDK_INT > 10;
 		if (isNewSdk) {
 			params = new TypeId[] { intent, requestCode, bundle };
 		} else {
@@ -470,18 +825,18 @@ class ActivityClassGenerator {
 				.get(ActivityOverider.class);
 		MethodId<ActivityOverider, Intent> methodOveride = ActivityOverider
 				.getMethod(intent, "overrideStartActivityForResult",
-						TypeId.get(Activity.class),TypeId.STRING,
+						TypeId.get(Activity.class),TypeId.get(ProxyActivityHandle.class),
 						intent, requestCode, bundle);
 		// locals
 		Local<D> localThis = methodCode.getThis(generatedType);
 		Local<Intent> newIntent = methodCode.newLocal(intent);
 		Local<Bundle> nullParamBundle = methodCode.newLocal(bundle);
-		Local<String> pluginId = get_pluginId(generatedType, methodCode);
+		Local<ProxyActivityHandle> handle = get_handle(generatedType, methodCode);
 		methodCode.loadConstant(nullParamBundle, null);
 		Local<?> args[];
 		if (isNewSdk) {
 			args = new Local[] {localThis
-					, pluginId
+					, handle
 					, methodCode.getParameter(0, intent)//
 					, methodCode.getParameter(1, requestCode)//
 					, methodCode.getParameter(2, bundle)//
@@ -497,7 +852,7 @@ class ActivityClassGenerator {
 					);
 		} else {
 			args = new Local[] {localThis
-					, pluginId
+					, handle
 					, methodCode.getParameter(0, intent)//
 					, methodCode.getParameter(1, requestCode)//
 					,nullParamBundle
@@ -517,7 +872,7 @@ class ActivityClassGenerator {
 	 * 
 	 * <pre>
 	 * public void onBackPressed() {
-	 * 	if (ActivityOverider.overrideOnbackPressed(this, pluginId)) {
+	 * 	if (ActivityOverider.overrideOnbackPressed(this, _getHandle())) {
 	 * 		super.onBackPressed();
 	 * 	}
 	 * }
@@ -539,14 +894,14 @@ class ActivityClassGenerator {
 		Local<D> localThis = methodCode.getThis(generatedType);
 		Local<Boolean> localBool = methodCode.newLocal(TypeId.BOOLEAN);
 		Local<Boolean> localFalse = methodCode.newLocal(TypeId.BOOLEAN);
-		Local<String> pluginId = get_pluginId(generatedType, methodCode);
+		Local<ProxyActivityHandle> handle = get_handle(generatedType, methodCode);
 
 		methodCode.loadConstant(localFalse, false);
 
 		MethodId<ActivityOverider, Boolean> methodOveride = ActivityOverider
 				.getMethod(TypeId.BOOLEAN, "overrideOnbackPressed"
-						, TypeId.get(Activity.class), TypeId.STRING);
-		methodCode.invokeStatic(methodOveride, localBool, localThis, pluginId);
+						, TypeId.get(Activity.class), TypeId.get(ProxyActivityHandle.class));
+		methodCode.invokeStatic(methodOveride, localBool, localThis, handle);
 		// codeBlock: if start
 		Label localBool_isInvokeSuper = new Label();
 		methodCode.compare(Comparison.EQ, localBool_isInvokeSuper, localBool,
@@ -559,115 +914,6 @@ class ActivityClassGenerator {
 		methodCode.returnVoid();
 	}
 	
-	private static <S, D extends S> void declareMethod_startService(
-			DexMaker dexMaker, TypeId<D> generatedType, TypeId<S> superType) {
-		TypeId<ActivityOverider> ActivityOverider = TypeId
-				.get(ActivityOverider.class);
-		TypeId<ComponentName> returnType = TypeId.get(ComponentName.class);
-		TypeId<Intent> Intent = TypeId.get(Intent.class);
-		MethodId<D, ComponentName> method = generatedType.getMethod(returnType,
-				"startService",Intent);
-		MethodId<ActivityOverider, ComponentName> methodOveride = ActivityOverider
-				.getMethod(returnType, "overrideStartService"
-						,TypeId.get(Activity.class),TypeId.STRING
-						,Intent);
-		Code methodCode = dexMaker.declare(method, PUBLIC);
-		// locals
-		Local<D> localThis = methodCode.getThis(generatedType);
-		Local<ComponentName> localComponentName = methodCode.newLocal(returnType);
-		Local<String> pluginId = get_pluginId(generatedType, methodCode);
-		
-		methodCode.invokeStatic(methodOveride,
-				localComponentName//
-				,localThis, pluginId
-				, methodCode.getParameter(0, Intent)
-				);
-		methodCode.returnValue(localComponentName);
-	}
-	
-	private static <S, D extends S> void declareMethod_bindService(
-			DexMaker dexMaker, TypeId<D> generatedType, TypeId<S> superType) {
-		//boolean bindService(intent, conn, flags);
-		TypeId<ActivityOverider> ActivityOverider = TypeId
-				.get(ActivityOverider.class);
-		TypeId<Boolean> returnType = TypeId.BOOLEAN;
-		TypeId<Intent> Intent = TypeId.get(Intent.class);
-		TypeId<ServiceConnection> Conn = TypeId.get(ServiceConnection.class);
-		MethodId<D, Boolean> method = generatedType.getMethod(returnType,
-				"bindService",Intent,Conn,TypeId.INT);
-		MethodId<ActivityOverider, Boolean> methodOveride = ActivityOverider
-				.getMethod(returnType, "overrideBindService"
-						,TypeId.get(Activity.class),TypeId.STRING
-						,Intent,Conn,TypeId.INT);
-		Code methodCode = dexMaker.declare(method, PUBLIC);
-		// locals
-		Local<D> localThis = methodCode.getThis(generatedType);
-		Local<Boolean> localBool = methodCode.newLocal(returnType);
-		Local<String> pluginId = get_pluginId(generatedType, methodCode);
-		
-		methodCode.invokeStatic(methodOveride,
-				localBool//
-				,localThis, pluginId
-				, methodCode.getParameter(0, Intent)
-				, methodCode.getParameter(1, Conn)
-				, methodCode.getParameter(2, TypeId.INT)
-				);
-		methodCode.returnValue(localBool);
-	}
-	
-	private static <S, D extends S> void declareMethod_unbindService(
-			DexMaker dexMaker, TypeId<D> generatedType, TypeId<S> superType) {
-		//void unbindService( conn);
-		TypeId<ActivityOverider> ActivityOverider = TypeId
-				.get(ActivityOverider.class);
-		TypeId<ServiceConnection> Conn = TypeId.get(ServiceConnection.class);
-		MethodId<D, Void> method = generatedType.getMethod(TypeId.VOID,
-				"unbindService",Conn);
-		MethodId<ActivityOverider, Void> methodOveride = ActivityOverider
-				.getMethod(TypeId.VOID, "overrideUnbindService"
-						,TypeId.get(Activity.class),TypeId.STRING
-						,Conn);
-		Code methodCode = dexMaker.declare(method, PUBLIC);
-		// locals
-		Local<D> localThis = methodCode.getThis(generatedType);
-		Local<String> pluginId = get_pluginId(generatedType, methodCode);
-		
-		methodCode.invokeStatic(methodOveride,
-				null//
-				,localThis, pluginId
-				, methodCode.getParameter(0, Conn)
-				);
-		methodCode.returnVoid();
-	}
-	
-	private static <S, D extends S> void declareMethod_stopService(
-			DexMaker dexMaker, TypeId<D> generatedType, TypeId<S> superType) {
-		//boolean stopService(intent);
-		TypeId<ActivityOverider> ActivityOverider = TypeId
-				.get(ActivityOverider.class);
-		TypeId<Boolean> returnType = TypeId.BOOLEAN;
-		TypeId<Intent> Intent = TypeId.get(Intent.class);
-		//
-		MethodId<D, Boolean> method = generatedType.getMethod(returnType,
-				"stopService",Intent);
-		MethodId<ActivityOverider, Boolean> methodOveride = ActivityOverider
-				.getMethod(returnType, "overrideStopService"
-						,TypeId.get(Activity.class),TypeId.STRING
-						,Intent);
-		Code methodCode = dexMaker.declare(method, PUBLIC);
-		// locals
-		Local<D> localThis = methodCode.getThis(generatedType);
-		Local<Boolean> localBool = methodCode.newLocal(returnType);
-		Local<String> pluginId = get_pluginId(generatedType, methodCode);
-		
-		methodCode.invokeStatic(methodOveride,
-				localBool//
-				,localThis, pluginId
-				, methodCode.getParameter(0, Intent)
-				);
-		methodCode.returnValue(localBool);
-	}
-	
 	private static <S, D extends S> void declareLifeCyleMethod(
 			DexMaker dexMaker, TypeId<D> generatedType, TypeId<S> superType,
 			String methodName) {
@@ -678,15 +924,15 @@ class ActivityClassGenerator {
 		Code methodCode = dexMaker.declare(method, PROTECTED);
 		// locals
 		Local<D> localThis = methodCode.getThis(generatedType);
-		Local<String> pluginId = get_pluginId(generatedType, methodCode);
+		Local<ProxyActivityHandle> handle = get_handle(generatedType, methodCode);
 		MethodId<S, Void> superMethod = superType.getMethod(TypeId.VOID,
 				methodName);
 		methodCode.invokeSuper(superMethod, null, localThis);
 
 		MethodId<ActivityOverider, Void> methodOveride = ActivityOverider
 				.getMethod(TypeId.VOID, "callback_" + methodName,
-						TypeId.STRING, TypeId.get(Activity.class));
-		methodCode.invokeStatic(methodOveride, null, pluginId, localThis);
+						TypeId.get(ProxyActivityHandle.class), TypeId.get(Activity.class));
+		methodCode.invokeStatic(methodOveride, null, handle, localThis);
 		methodCode.returnVoid();
 	}
 
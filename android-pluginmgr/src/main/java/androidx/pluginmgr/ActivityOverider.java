@@ -16,14 +16,19 @@
 package androidx.pluginmgr;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 import android.app.Activity;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.ServiceConnection;
 import android.content.pm.ActivityInfo;
+import android.content.pm.ResolveInfo;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.ContextThemeWrapper;
@@ -40,33 +45,14 @@ public class ActivityOverider {
 	 * 自动生成的 Activity 的全类名
 	 */
 	static final String targetClassName = "androidx.pluginmgr.PluginActivity";
-    // ------------------- process service  ---------
 	/**
-	 * 覆盖 StarService 方法
-	 * 
-	 * @param intent
-	 * @param fromAct
+	 * 代理Activity类名的前缀，后接插件Activity的全类名
 	 */
-	public static ComponentName overrideStartService(Activity fromAct,String pluginId,Intent intent) {
-		//TODO 覆盖 StarService 方法
-		Log.d(tag, "overrideStartService");
-		return fromAct.startService(intent);
-	}
-	public static boolean overrideBindService(Activity fromAct,String pluginId,Intent intent,ServiceConnection conn, int flags) {
-		//TODO overrideBindService
-		Log.d(tag, "overrideBindService");
-		return fromAct.bindService(intent, conn, flags);
-	}
-	public static void overrideUnbindService(Activity fromAct,String pluginId,ServiceConnection conn) {
-		//TODO overrideUnbindService
-		Log.d(tag, "overrideUnbindService");
-		fromAct.unbindService( conn);
-	}
-	public static boolean overrideStopService(Activity fromAct,String pluginId,Intent intent){
-		//TODO overrideStopService
-		Log.d(tag, "overrideStopService");
-		return fromAct.stopService(intent);
-	}
+	static final String PROXY_CLASS_PREFIX = "androidx.pluginmgr.proxy.";
+	/**
+	 * 插件所有代理Activity所在的dex文件名(不含扩展名)
+	 */
+	static final String PROXY_DEX_NAME = "proxies";
 	// ------------------ process Activity ---------------------------
 	/**
 	 * 处理 插件Activity 通过 intent 跳转到别的Activity
@@ -75,16 +61,27 @@ public class ActivityOverider {
 	 * 
 	 * @param fromAct
 	 *            - 发出请求的Activity
-	 * @param pluginId
-	 *            - 插件id
+	 * @param handle
+	 *            - 发出请求的代理Activity绑定的插件信息
 	 * @param intent
 	 *            - 启动其他Activity的Intent请求
 	 * @param requestCode
 	 * @param options
 	 * @return 修改后的 Intent
 	 */
-	public static Intent overrideStartActivityForResult(Activity fromAct, String pluginId,Intent intent, int requestCode,
+	public static Intent overrideStartActivityForResult(Activity fromAct, ProxyActivityHandle handle,Intent intent, int requestCode,
 			Bundle options) {
+		return redirectIntent(handle.plugin, intent);
+	}
+
+	/**
+	 * 把指向插件Activity的 intent 改为指向宿主中的代理或占位Activity
+	 * 
+	 * @param thisPlugin
+	 *            - 发出请求的Activity所在的插件
+	 * @return 修改后的 Intent
+	 */
+	static Intent redirectIntent(PlugInfo thisPlugin, Intent intent) {
 		// 主要做以下工作：
 		// 1 、修改Intent的跳转目标
 		// 2 、帮助插件类加载器决定使用哪个activity类加载器
@@ -96,7 +93,6 @@ public class ActivityOverider {
 			ComponentName compname = intent.getComponent();
 			String pkg = compname.getPackageName();
 			String toActName = compname.getClassName();
-			PlugInfo thisPlugin = mgr.getPluginById(pluginId);
 			ActivityInfo actInThisApk = null;
 			PlugInfo plug = thisPlugin;
 			if (pkg != null) {
@@ -134,7 +130,6 @@ public class ActivityOverider {
 			//
 			// 开始处理 action
 			// 先判断activity所在的插件有没有对应action,因为绝大多数情况下应用都是在其内部界面之间跳转
-			PlugInfo thisPlugin = mgr.getPluginById(pluginId);
 			ActivityInfo actInThisApk = thisPlugin.findActivityByAction(action);
 			if (actInThisApk != null) {
 				setPluginIntent(intent, thisPlugin, actInThisApk.name);
@@ -158,73 +153,307 @@ public class ActivityOverider {
 
 	private static void setPluginIntent(Intent intent, PlugInfo plugin,
 			String actName) {
-		PluginManager mgr = PluginManager.getInstance();
-		String pluginId = plugin.getId();
-		createProxyDex(plugin, actName);
-		String act = mgr.getFrameworkClassLoader().newActivityClassName(
-				pluginId, actName);
-		ComponentName compname = new ComponentName(mgr.getContext(), act);
-		intent.setComponent(compname);
+		PluginManager.getInstance().setLaunchTarget(intent, plugin, actName);
 	}
 	static File getPluginBaseDir(String pluginId) {
-		String pluginPath = PluginManager.getInstance()
-				.getDexInternalStoragePath().getAbsolutePath();
-		String pluginDir = pluginPath + '/' + pluginId + "-dir/";
-		File folder = new File(pluginDir);
-		folder.mkdirs();
-		return folder;
+		return PluginLayout.getPluginBaseDir(pluginId);
 	}
 	
 	static File getPluginLibDir(String pluginId) {
-		File folder = new File(getPluginBaseDir(pluginId)+ "/lib/");
-		return folder;
+		return PluginLayout.getLibDir(pluginId);
 	}
 	
-	static File getPorxyActivityDexPath(String pluginId, String activity) {
-		File folder = new File(getPluginBaseDir(pluginId)+"/activities/");
-		folder.mkdirs();
+	/**
+	 * @return 插件Activity对应的代理类名，每个插件的代理都在同一个dex中，类名不能重复
+	 */
+	static String getProxyClassName(String activity) {
+		return PROXY_CLASS_PREFIX + activity;
+	}
+
+	static boolean isProxyClassName(String className) {
+		return className.startsWith(PROXY_CLASS_PREFIX);
+	}
+
+	/**
+	 * 代理dex的路径，文件名中带有缓存键
+	 * <p>
+	 * 缓存键由生成器版本、插件id、包名、插件dex的指纹与所有Activity类名(即代理的父类)算出，
+	 * 其中任何一项变化都会得到新的文件名，旧文件在生成新文件后删除。
+	 * 校验只需比较文件名，不读取文件内容
+	 */
+	static File getPorxyActivityDexPath(PlugInfo plugin) {
+		File savePath = plugin.getProxyDexFile();
+		if (savePath != null) {
+			return savePath;
+		}
+		File folder = PluginLayout.getProxyDir(plugin.getId());
 		String suffix = ".dex";
-		if (android.os.Build.VERSION.SDK_INT < 11) {
+		if (android.os.Build.VERSION.SDK_INT < 11 || isTemplateMode()) {
 			suffix = ".jar";
 		}
-		File savePath = new File(folder, activity + suffix);
+		savePath = new File(folder, PROXY_DEX_NAME + '-'
+				+ getProxyCacheKey(plugin, getActivityNames(plugin)) + suffix);
+		plugin.setProxyDexFile(savePath);
 		return savePath;
 	}
 
-	static File createProxyDex(PlugInfo plugin, String activity) {
-		return createProxyDex(plugin, activity, true);
+	static String getProxyCacheKey(PlugInfo plugin, List<String> activities) {
+		String code = plugin.getCodeFingerprint();
+		if (code == null) {
+			code = plugin.getApkDigest();
+		}
+		return getProxyCacheKey(plugin.getId(), plugin.getPackageName(), code,
+				activities, isTemplateMode(), ActivityClassGenerator
+						.getOverridesLevel(android.os.Build.VERSION.SDK_INT));
+	}
+
+	/**
+	 * 构建时预生成(见 {@link ProxySidecar})也使用它。
+	 * 覆盖方法集合随系统版本变化(见 {@link ActivityClassGenerator#getOverridesLevel})，
+	 * 系统升级后缓存键随之改变，代理会重新生成
+	 */
+	static String getProxyCacheKey(String pluginId, String pkgName,
+			String codeFingerprint, List<String> activities, boolean template,
+			int overridesLevel) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(ActivityClassGenerator.GENERATOR_VERSION).append('\n');
+		sb.append(template ? "template" : "single").append('\n');
+		sb.append(overridesLevel).append('\n');
+		sb.append(pluginId).append('\n');
+		sb.append(pkgName).append('\n');
+		sb.append(codeFingerprint).append('\n');
+		for (String act : activities) {
+			sb.append(act).append('\n');
+		}
+		try {
+			return FileUtil.sha256Hex(sb.toString().getBytes("UTF-8"))
+					.substring(0, 16);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
 	}
 
-	static File createProxyDex(PlugInfo plugin, String activity, boolean lazy) {
-		File savePath = getPorxyActivityDexPath(plugin.getId(), activity);
-		createProxyDex(plugin, activity, savePath, lazy);
+	/**
+	 * @return 排序后的Activity类名，使同样的输入生成同样的dex
+	 */
+	static List<String> getActivityNames(PlugInfo plugin) {
+		List<String> activities = new ArrayList<String>();
+		if (plugin.getActivities() != null) {
+			for (ResolveInfo act : plugin.getActivities()) {
+				activities.add(act.activityInfo.name);
+			}
+		}
+		Collections.sort(activities);
+		return activities;
+	}
+
+	/**
+	 * 是否使用模板模式生成代理(见 {@link ActivityClassGenerator#createActivityDexes})，需要ART
+	 */
+	static boolean isTemplateMode() {
+		return PluginManager.getInstance().isProxyTemplateMode()
+				&& android.os.Build.VERSION.SDK_INT >= 21;
+	}
+
+	static File createProxyDex(PlugInfo plugin) {
+		return createProxyDex(plugin, true);
+	}
+
+	/**
+	 * 生成插件所有Activity的代理dex
+	 */
+	static File createProxyDex(PlugInfo plugin, boolean lazy) {
+		File savePath = getPorxyActivityDexPath(plugin);
+		synchronized (plugin) {
+			createProxyDex(plugin, savePath, lazy);
+		}
 		return savePath;
 	}
 
-	private static void createProxyDex(PlugInfo plugin, String activity, File saveDir,
+	private static void createProxyDex(PlugInfo plugin, File saveDir,
 			boolean lazy) {
-		// Log.d(tag + ":createProxyDex", "plugin=" + plugin + "\n, activity="
-		// + activity);
-		if (lazy && saveDir.exists()) {
-			// Log.d(tag, "dex alreay exists: " + saveDir);
+		if (lazy && isProxyDexSaved(plugin, saveDir)) {
 			// 已经存在就不创建了，直接返回
 			return;
 		}
-		// Log.d(tag, "actName=" + actName + ", saveDir=" + saveDir);
 		try {
-			String pkgName = plugin.getPackageName();
-			ActivityClassGenerator.createActivityDex(activity, targetClassName,
-					saveDir, plugin.getId(), pkgName);
+			saveProxyDexes(plugin, saveDir, createProxyDexes(plugin));
 		} catch (Throwable e) {
 			Log.e(tag, Log.getStackTraceString(e));
 		}
 	}
-	public static Object[] overrideAttachBaseContext(final String pluginId,final Activity fromAct,Context base){
+
+	private static boolean isProxyDexSaved(PlugInfo plugin, File saveDir) {
+		PluginJournal journal = plugin.getJournal();
+		// journal 中有记录说明文件已完整写入；文件可能在 trim() 之外被删除，仍检查是否存在
+		return saveDir.exists()
+				&& (journal == null || journal.hasArtifact(saveDir));
+	}
+
+	/**
+	 * 只在内存中生成插件所有Activity的代理dex(优先使用安装时带来的预生成代理)
+	 */
+	static List<byte[]> createProxyDexes(PlugInfo plugin) {
+		List<String> activities = getActivityNames(plugin);
+		boolean template = isTemplateMode();
+		long start = System.currentTimeMillis();
+		ClassLoader checkLoader = needsOverrideCheck(plugin) ? plugin
+				.getClassLoader() : null;
+		int checked = checkLoader != null ? activities.size() : 0;
+		List<byte[]> dexes = readProxySidecar(plugin, activities, template);
+		if (dexes != null && checkLoader != null
+				&& hasSkippedOverrides(activities, checkLoader)) {
+			// 预生成的代理覆盖了全部方法，插件中有 final 的覆盖方法时校验会失败
+			Log.i(tag, "prebuilt proxies of " + plugin.getId()
+					+ " override final methods, regenerate");
+			dexes = null;
+		}
+		boolean prebuilt = dexes != null;
+		if (dexes == null) {
+			dexes = ActivityClassGenerator.createProxyDexes(activities,
+					plugin.getId(), plugin.getPackageName(), template,
+					checkLoader, ActivityClassGenerator
+							.getOverridesLevel(android.os.Build.VERSION.SDK_INT));
+		}
+		int[] sizes = new int[dexes.size()];
+		int[] methodRefs = new int[dexes.size()];
+		for (int i = 0; i < sizes.length; i++) {
+			sizes[i] = dexes.get(i).length;
+			methodRefs[i] = ActivityClassGenerator.getMethodIdCount(dexes
+					.get(i));
+		}
+		ProxyDexStats stats = new ProxyDexStats(plugin.getId(),
+				activities.size(), checked, sizes, methodRefs,
+				System.currentTimeMillis() - start, prebuilt);
+		plugin.setProxyDexStats(stats);
+		Log.i(tag, stats.toString());
+		return dexes;
+	}
+
+	private static boolean hasSkippedOverrides(List<String> activities,
+			ClassLoader pluginLoader) {
+		for (String activity : activities) {
+			if (!ActivityClassGenerator.getSkippedOverrides(activity,
+					pluginLoader).isEmpty()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * 插件或宿主中是否(可能)有类把代理覆盖的方法声明为 final，只有这时才需要加载每个Activity类检查父类链，
+	 * 否则覆盖方法集合只由系统版本决定。类索引还没有建立时总是检查
+	 */
+	static boolean needsOverrideCheck(PlugInfo plugin) {
+		PluginClassLoader loader = plugin.getClassLoader();
+		DexClassIndex index = loader == null ? null : loader.getClassIndex();
+		if (index == null) {
+			return true;
+		}
+		PluginManager mgr = PluginManager.getInstance();
+		for (String name : ActivityClassGenerator.getOverrideNames()) {
+			if (index.declaresFinalMethod(name)
+					|| mgr.mayDeclareFinalMethodInParent(name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * 把已在内存中生成的代理dex写到 {@link #getPorxyActivityDexPath} (文件已存在时跳过)，
+	 * 供以后的进程直接加载
+	 */
+	static void saveProxyDexes(PlugInfo plugin, List<byte[]> dexes) {
+		File saveDir = getPorxyActivityDexPath(plugin);
+		synchronized (plugin) {
+			if (isProxyDexSaved(plugin, saveDir)) {
+				return;
+			}
+			try {
+				saveProxyDexes(plugin, saveDir, dexes);
+			} catch (Throwable e) {
+				Log.e(tag, Log.getStackTraceString(e));
+			}
+		}
+	}
+
+	private static void saveProxyDexes(PlugInfo plugin, File saveDir,
+			List<byte[]> dexes) throws IOException {
+		PluginJournal journal = plugin.getJournal();
+		String sha256 = ActivityClassGenerator.writeProxyDexes(dexes, saveDir);
+		if (journal != null) {
+			journal.putArtifact(saveDir, sha256);
+		}
+		deleteStaleProxyDexes(plugin, saveDir);
+		if (journal != null) {
+			journal.writeQuietly();
+		}
+		Log.d(tag, "createProxyDex: " + dexes.size() + " dex -> " + saveDir);
+	}
+
+	/**
+	 * 代理dex是否已经写到磁盘
+	 */
+	static boolean hasProxyDex(PlugInfo plugin) {
+		return isProxyDexSaved(plugin, getPorxyActivityDexPath(plugin));
+	}
+
+	/**
+	 * 安装时随apk带来的预生成代理，缓存键不一致(插件id不同、生成器版本不同、系统版本不支持等)时返回 null。
+	 * 预生成代理包含全部覆盖方法，调用者还要确认没有Activity需要跳过覆盖方法
+	 */
+	private static List<byte[]> readProxySidecar(PlugInfo plugin,
+			List<String> activities, boolean template) {
+		File sidecar = PluginLayout.getProxySidecarFile(plugin.getId());
+		try {
+			List<byte[]> dexes = ProxySidecar.read(sidecar,
+					getProxyCacheKey(plugin, activities), template,
+					ActivityClassGenerator
+							.getOverridesLevel(android.os.Build.VERSION.SDK_INT));
+			if (dexes != null) {
+				Log.d(tag, "using prebuilt proxies of " + plugin.getId());
+			}
+			return dexes;
+		} catch (Exception e) {
+			Log.w(tag, "unusable proxy sidecar " + sidecar + ": " + e);
+			return null;
+		}
+	}
+
+	/**
+	 * 删除缓存键已失效的代理dex及其优化文件
+	 */
+	private static void deleteStaleProxyDexes(PlugInfo plugin, File current) {
+		File[] files = current.getParentFile().listFiles();
+		if (files == null) {
+			return;
+		}
+		PluginClassLoader loader = plugin.getClassLoader();
+		PluginJournal journal = plugin.getJournal();
+		for (File f : files) {
+			if (f.equals(current) || !f.isFile()) {
+				continue;
+			}
+			f.delete();
+			if (loader != null) {
+				for (File odex : loader.getOptimizedFiles(f)) {
+					odex.delete();
+				}
+			}
+			if (journal != null) {
+				journal.removeArtifact(f);
+			}
+			Log.d(tag, "deleted stale proxy dex: " + f);
+		}
+	}
+
+	public static Object[] overrideAttachBaseContext(final ProxyActivityHandle handle,final Activity fromAct,Context base){
 	
-		Log.i(tag, "overrideAttachBaseContext: pluginId="+pluginId+", activity="+fromAct.getClass().getSuperclass().getName()
-				);
+		Log.i(tag, "overrideAttachBaseContext: " + handle);
 		// 
-		PlugInfo plugin = PluginManager.getInstance().getPluginById(pluginId);
+		PlugInfo plugin = handle.plugin;
 		if (plugin.getApplication() == null) {
 			try {
 				PluginManager.getInstance().initPluginApplication(plugin,
@@ -236,102 +465,94 @@ public class ActivityOverider {
 		PluginActivityWrapper actWrapper = new PluginActivityWrapper(base, plugin.appWrapper, plugin);
 		return new Object[] { actWrapper, plugin.getAssetManager() };
 	}
-	
-	private static void changeActivityInfo(Context activity){
-		final String actName = activity.getClass().getSuperclass().getName();
-		Log.d(tag, "changeActivityInfo: activity = "+activity+", class = "+actName);
-		if(!activity.getClass().getName().equals(targetClassName)){
-			Log.w(tag, "not a Proxy Activity ,then return.");
-			return;
+
+	/**
+	 * Activity 中需要替换的私有字段，只查找一次
+	 */
+	private static final class ActivityFields {
+		static final Field mActivityInfo = getField(Activity.class,
+				"mActivityInfo");
+		static final Field mApplication = getField(Activity.class,
+				"mApplication");
+		static final Field mTheme = getField(ContextThemeWrapper.class,
+				"mTheme");
+
+		private static Field getField(Class<?> clazz, String name) {
+			try {
+				Field f = clazz.getDeclaredField(name);
+				f.setAccessible(true);
+				return f;
+			} catch (Exception e) {
+				Log.e(tag, Log.getStackTraceString(e));
+				return null;
+			}
 		}
-		Field field_mActivityInfo=null;
-		try {
-			field_mActivityInfo = Activity.class.getDeclaredField("mActivityInfo");
-			field_mActivityInfo.setAccessible(true);
-		}  catch (Exception e) {
-			Log.e(tag, Log.getStackTraceString(e));
+	}
+
+	private static void changeActivityInfo(Activity activity,
+			ProxyActivityHandle handle) {
+		ActivityInfo actInfo = handle.activityInfo;
+		if (actInfo == null || ActivityFields.mActivityInfo == null) {
 			return;
 		}
-		PluginManager con = PluginManager.getInstance();
-		PlugInfo plugin = con.getPluginByPackageName(activity.getPackageName());
-		
-		ActivityInfo actInfo = plugin.findActivityByClassName(actName);
-		actInfo.applicationInfo = plugin.getPackageInfo().applicationInfo;
 		try {
-			field_mActivityInfo.set(activity, actInfo);
+			ActivityFields.mActivityInfo.set(activity, actInfo);
 		} catch (Exception e) {
 			Log.e(tag, Log.getStackTraceString(e));
 		}
-		
-		Log.i(tag, "changeActivityInfo->changeTheme: "+" theme = "+actInfo.getThemeResource()
-				+", icon = "+actInfo.getIconResource()+", logo = "+actInfo.logo);
 	}
 	
-	public static int getPlugActivityTheme(Activity fromAct,String pluginId) {
-		PluginManager con = PluginManager.getInstance();
-		PlugInfo plugin = con.getPluginById(pluginId);
-		String actName = fromAct.getClass().getSuperclass().getName();
-		ActivityInfo actInfo = plugin.findActivityByClassName(actName);
-		int rs =  actInfo.getThemeResource();
-		Log.d(tag, "getPlugActivityTheme: theme="+rs+", actName="+actName);
-		changeActivityInfo(fromAct);
-		return rs;
+	public static int getPlugActivityTheme(Activity fromAct,ProxyActivityHandle handle) {
+		changeActivityInfo(fromAct, handle);
+		return handle.theme;
 	}
 	
 	/**
 	 * 按下back键的方法调用
 	 * 
-	 * @param pluginId
+	 * @param handle
 	 * @param fromAct
 	 * @return 是否调用父类的onBackPressed()方法
 	 */
-	public static boolean overrideOnbackPressed(Activity fromAct,String pluginId) {
-		PlugInfo plinfo = PluginManager.getInstance().getPluginById(pluginId);
-		String actName = fromAct.getClass().getSuperclass().getName();
-		ActivityInfo actInfo = plinfo.findActivityByClassName(actName);
+	public static boolean overrideOnbackPressed(Activity fromAct,ProxyActivityHandle handle) {
+		PlugInfo plinfo = handle.plugin;
+		ActivityInfo actInfo = handle.activityInfo;
 		boolean finish = plinfo.isFinishActivityOnbackPressed(actInfo);
 		if (finish) {
 			fromAct.finish();
 		}
-		boolean ivsuper = plinfo.isInvokeSuperOnbackPressed(actInfo);
-		Log.d(tag, "finish? " + finish + ", ivsuper? " + ivsuper);
-		return ivsuper;
+		return plinfo.isInvokeSuperOnbackPressed(actInfo);
 	}
 
 	//
 	// =================== Activity 生命周期回调方法 ==================
 	//
-	public static void callback_onCreate(String pluginId, Activity fromAct) {
-		Log.d(tag, "callback_onCreate(act="+fromAct.getClass().getSuperclass().getName()+", window="+fromAct.getWindow()
-				+ ")");
+	public static void callback_onCreate(ProxyActivityHandle handle, Activity fromAct) {
+		Log.d(tag, "callback_onCreate(" + handle + ")");
 		PluginManager con = PluginManager.getInstance();
-		PlugInfo plugin = con.getPluginById(pluginId);
+		PlugInfo plugin = handle.plugin;
+		con.getProxyDexScheduler().recordLaunch(handle.pluginId);
 		// replace Application
-		try {
-			Field applicationField = Activity.class
-					.getDeclaredField("mApplication");
-			applicationField.setAccessible(true);
-			applicationField.set(fromAct, plugin.getApplication());
-		}  catch (Exception e) {
-			e.printStackTrace();
+		if (ActivityFields.mApplication != null) {
+			try {
+				ActivityFields.mApplication.set(fromAct, plugin.getApplication());
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
 		}
 		{
-
-			String actName = fromAct.getClass().getSuperclass().getName();
-			ActivityInfo actInfo = plugin.findActivityByClassName(actName);
-			int resTheme = actInfo.getThemeResource();
+			int resTheme = handle.theme;
 			if (resTheme != 0) {
 				boolean hasNotSetTheme = true;
-				try {
-					Field mTheme = ContextThemeWrapper.class
-							.getDeclaredField("mTheme");
-					mTheme.setAccessible(true);
-					hasNotSetTheme = mTheme.get(fromAct) == null;
-				} catch (Exception e) {
-					e.printStackTrace();
+				if (ActivityFields.mTheme != null) {
+					try {
+						hasNotSetTheme = ActivityFields.mTheme.get(fromAct) == null;
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
 				}
 				if (hasNotSetTheme) {
-					changeActivityInfo(fromAct);
+					changeActivityInfo(fromAct, handle);
 					fromAct.setTheme(resTheme);
 				}
 			}
@@ -354,56 +575,56 @@ public class ActivityOverider {
 		PluginActivityLifeCycleCallback callback = con
 				.getPluginActivityLifeCycleCallback();
 		if (callback != null) {
-			callback.onCreate(pluginId, fromAct);
+			callback.onCreate(handle.pluginId, fromAct);
 		}
 	}
 
-	public static void callback_onResume(String pluginId, Activity fromAct) {
-		Log.d(tag, "callback_onResume(act="+fromAct.getClass().getSuperclass().getName()+")");
+	public static void callback_onResume(ProxyActivityHandle handle, Activity fromAct) {
+		handle.plugin.getClassLoader().onActivityResumed();
 		PluginActivityLifeCycleCallback callback = PluginManager.getInstance()
 				.getPluginActivityLifeCycleCallback();
 		if (callback != null) {
-			callback.onResume(pluginId, fromAct);
+			callback.onResume(handle.pluginId, fromAct);
 		}
 	}
 
-	public static void callback_onStart(String pluginId, Activity fromAct) {
+	public static void callback_onStart(ProxyActivityHandle handle, Activity fromAct) {
 		PluginActivityLifeCycleCallback callback = PluginManager.getInstance()
 				.getPluginActivityLifeCycleCallback();
 		if (callback != null) {
-			callback.onStart(pluginId, fromAct);
+			callback.onStart(handle.pluginId, fromAct);
 		}
 	}
 
-	public static void callback_onRestart(String pluginId, Activity fromAct) {
+	public static void callback_onRestart(ProxyActivityHandle handle, Activity fromAct) {
 		PluginActivityLifeCycleCallback callback = PluginManager.getInstance()
 				.getPluginActivityLifeCycleCallback();
 		if (callback != null) {
-			callback.onRestart(pluginId, fromAct);
+			callback.onRestart(handle.pluginId, fromAct);
 		}
 	}
 
-	public static void callback_onPause(String pluginId, Activity fromAct) {
+	public static void callback_onPause(ProxyActivityHandle handle, Activity fromAct) {
 		PluginActivityLifeCycleCallback callback = PluginManager.getInstance()
 				.getPluginActivityLifeCycleCallback();
 		if (callback != null) {
-			callback.onPause(pluginId, fromAct);
+			callback.onPause(handle.pluginId, fromAct);
 		}
 	}
 
-	public static void callback_onStop(String pluginId, Activity fromAct) {
+	public static void callback_onStop(ProxyActivityHandle handle, Activity fromAct) {
 		PluginActivityLifeCycleCallback callback = PluginManager.getInstance()
 				.getPluginActivityLifeCycleCallback();
 		if (callback != null) {
-			callback.onStop(pluginId, fromAct);
+			callback.onStop(handle.pluginId, fromAct);
 		}
 	}
 
-	public static void callback_onDestroy(String pluginId, Activity fromAct) {
+	public static void callback_onDestroy(ProxyActivityHandle handle, Activity fromAct) {
 		PluginActivityLifeCycleCallback callback = PluginManager.getInstance()
 				.getPluginActivityLifeCycleCallback();
 		if (callback != null) {
-			callback.onDestroy(pluginId, fromAct);
+			callback.onDestroy(handle.pluginId, fromAct);
 		}
 	}
 }
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2015 HouKx <hkx.aidream@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package androidx.pluginmgr;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.util.Log;
+
+/**
+ * 插件管理器内部的后台线程池(低优先级守护线程)
+ * <p>
+ * 用于存储清理等不在启动路径上的工作
+ */
+final class BackgroundExecutor {
+	private static final String tag = "BackgroundExecutor";
+	private static final int THREADS = 2;
+
+	private static final ThreadPoolExecutor executor;
+	static {
+		executor = new ThreadPoolExecutor(THREADS, THREADS, 30,
+				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				newThreadFactory("pluginmgr-bg"));
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	private BackgroundExecutor() {
+	}
+
+	static Executor get() {
+		return executor;
+	}
+
+	static void execute(final Runnable task) {
+		executor.execute(new Runnable() {
+			public void run() {
+				try {
+					task.run();
+				} catch (Throwable e) {
+					Log.e(tag, Log.getStackTraceString(e));
+				}
+			}
+		});
+	}
+
+	/**
+	 * 创建后台优先级的守护线程
+	 */
+	static ThreadFactory newThreadFactory(final String namePrefix) {
+		return new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(final Runnable r) {
+				Thread t = new Thread(new Runnable() {
+					public void run() {
+						android.os.Process
+								.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+						r.run();
+					}
+				}, namePrefix + "-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+}
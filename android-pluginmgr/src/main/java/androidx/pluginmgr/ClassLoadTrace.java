@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2015 HouKx <hkx.aidream@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package androidx.pluginmgr;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import android.util.Log;
+
+/**
+ * 插件启动时的类加载顺序(见 {@link PluginManager#setClassLoadProfiling(boolean)})
+ * <p>
+ * 第一次启动时记录插件类加载器定义的类，直到插件的第一个Activity onResume，保存到插件目录下的 class_trace；
+ * 以后加载插件时在后台按顺序预先加载这些类，用户打开插件时不必在主线程上加载与校验。
+ * <p>
+ * 文件第一行是代码指纹，插件更新后作废重新记录
+ */
+final class ClassLoadTrace {
+	private static final String tag = "ClassLoadTrace";
+	static final int MAX_CLASSES = 4000;
+
+	private final String key;
+	private final Set<String> names = new LinkedHashSet<String>();
+
+	ClassLoadTrace(String key) {
+		this.key = key;
+	}
+
+	synchronized void add(String className) {
+		if (names.size() < MAX_CLASSES) {
+			names.add(className);
+		}
+	}
+
+	/**
+	 * 在后台保存
+	 */
+	void saveAsync(final File file) {
+		final List<String> snapshot;
+		synchronized (this) {
+			snapshot = new ArrayList<String>(names);
+		}
+		BackgroundExecutor.execute(new Runnable() {
+			public void run() {
+				try {
+					write(file, key, snapshot);
+					Log.i(tag, "recorded " + snapshot.size() + " classes: "
+							+ file);
+				} catch (IOException e) {
+					Log.w(tag, "cannot write " + file + ": " + e);
+				}
+			}
+		});
+	}
+
+	private static void write(File file, String key, List<String> names)
+			throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		Writer out = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(tmp), "UTF-8"));
+		try {
+			out.write(key);
+			out.write('\n');
+			for (String name : names) {
+				out.write(name);
+				out.write('\n');
+			}
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(file)) {
+			tmp.delete();
+			throw new IOException("cannot rename " + tmp);
+		}
+	}
+
+	/**
+	 * @return 文件不存在、损坏或已过期时返回 null
+	 */
+	static List<String> read(File file, String key) {
+		if (!file.isFile()) {
+			return null;
+		}
+		BufferedReader in = null;
+		try {
+			in = new BufferedReader(new InputStreamReader(new FileInputStream(
+					file), "UTF-8"));
+			if (!key.equals(in.readLine())) {
+				return null;
+			}
+			List<String> names = new ArrayList<String>();
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.length() > 0) {
+					names.add(line);
+				}
+			}
+			return names;
+		} catch (IOException e) {
+			Log.w(tag, "cannot read " + file + ": " + e);
+			return null;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * 在后台按记录的顺序加载插件的类(不执行静态初始化，它可能依赖主线程)
+	 * 
+	 * @param file
+	 *            - 记录文件，过期时删除，下次加载插件时重新记录
+	 */
+	static void prewarmAsync(final PlugInfo plugin, final File file) {
+		BackgroundExecutor.execute(new Runnable() {
+			public void run() {
+				List<String> names = read(file, plugin.getCodeFingerprint());
+				if (names == null) {
+					file.delete();
+					return;
+				}
+				long start = System.currentTimeMillis();
+				PluginManager mgr = PluginManager.getInstance();
+				ClassLoader loader = plugin.getClassLoader();
+				int loaded = 0;
+				for (String name : names) {
+					if (mgr.getPluginById(plugin.getId()) != plugin) {
+						// 已卸载或被替换
+						return;
+					}
+					try {
+						Class.forName(name, false, loader);
+						loaded++;
+					} catch (Throwable e) {
+					}
+				}
+				Log.i(tag, plugin.getId() + ": prewarmed " + loaded + "/"
+						+ names.size() + " classes in "
+						+ (System.currentTimeMillis() - start) + "ms");
+			}
+		});
+	}
+}
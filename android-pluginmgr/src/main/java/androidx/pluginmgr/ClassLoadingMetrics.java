@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2015 HouKx <hkx.aidream@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package androidx.pluginmgr;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 一个类加载器的类加载统计：计数与耗时分布
+ * <p>
+ * 插件类加载器、插件的代理Activity类加载器与 {@link FrameworkClassLoader} 各有一份，通过
+ * {@link PluginManager#getClassLoadingMetrics()} 查询。默认关闭({@link PluginManager#setClassLoadingMetricsEnabled(boolean)})，
+ * 关闭时每次加载只多读一个 volatile 变量，不取时间
+ */
+public final class ClassLoadingMetrics {
+	private static volatile boolean enabled;
+
+	public enum Counter {
+		/** loadClass 调用次数 */
+		LOAD_REQUESTS,
+		/** 已加载过的类(findLoadedClass) */
+		LOADED_HITS,
+		/** 命中找不到的类的缓存 */
+		MISSING_CACHE_HITS,
+		/** 最终抛出 ClassNotFoundException */
+		NOT_FOUND,
+		/** 由本加载器定义的类 */
+		DEFINED,
+		/** findClass 抛出 ClassNotFoundException(试探失败) */
+		FIND_CLASS_FAILURES,
+		/** 父加载器(宿主)找到 */
+		PARENT_FOUND,
+		/** 父加载器(宿主)抛出 ClassNotFoundException */
+		PARENT_NOT_FOUND,
+		/** 宿主没有开放(见 {@link HostExportPolicy})，只查找了系统类 */
+		PARENT_FILTERED,
+		/** FrameworkClassLoader：宿主中没有，在插件中找到 */
+		PLUGIN_FOUND,
+		/** 按类索引直接交给插件自己 */
+		INDEX_TO_PLUGIN,
+		/** 按类索引直接交给父加载器 */
+		INDEX_TO_PARENT,
+		/** 没有类索引或不能确定父加载器链中没有这个类，先试探父加载器 */
+		PROBED
+	}
+
+	public enum Timer {
+		/** loadClass 的总耗时 */
+		LOAD,
+		/** findClass(在本加载器的dex中查找并定义) */
+		FIND_CLASS,
+		/** 委托父加载器 */
+		PARENT
+	}
+
+	/**
+	 * 按微秒的2的幂分桶的耗时分布：第 i 个桶是 [2^(i-1), 2^i) 微秒，第0个桶小于1微秒，最后一个桶不设上限
+	 */
+	public static final class Histogram {
+		public static final int BUCKETS = 20;
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+		private final AtomicLong totalNanos = new AtomicLong();
+
+		void record(long nanos) {
+			long micros = nanos / 1000;
+			int b = 64 - Long.numberOfLeadingZeros(micros);
+			buckets.incrementAndGet(b < BUCKETS ? b : BUCKETS - 1);
+			totalNanos.addAndGet(nanos);
+		}
+
+		public long getCount() {
+			long n = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				n += buckets.get(i);
+			}
+			return n;
+		}
+
+		public long getTotalNanos() {
+			return totalNanos.get();
+		}
+
+		public long[] getBuckets() {
+			long[] rs = new long[BUCKETS];
+			for (int i = 0; i < BUCKETS; i++) {
+				rs[i] = buckets.get(i);
+			}
+			return rs;
+		}
+
+		/**
+		 * @param p
+		 *            - 0~1
+		 * @return 百分位所在桶的上限(微秒)，没有数据时返回 0
+		 */
+		public long getPercentileMicros(double p) {
+			long[] b = getBuckets();
+			long total = 0;
+			for (long n : b) {
+				total += n;
+			}
+			if (total == 0) {
+				return 0;
+			}
+			long rank = (long) Math.ceil(p * total);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += b[i];
+				if (seen >= rank && b[i] > 0) {
+					return 1L << i;
+				}
+			}
+			return 1L << (BUCKETS - 1);
+		}
+
+		void reset() {
+			for (int i = 0; i < BUCKETS; i++) {
+				buckets.set(i, 0);
+			}
+			totalNanos.set(0);
+		}
+	}
+
+	private final String name;
+	private final AtomicLongArray counts = new AtomicLongArray(
+			Counter.values().length);
+	private final Histogram[] timers = new Histogram[Timer.values().length];
+
+	ClassLoadingMetrics(String name) {
+		this.name = name;
+		for (int i = 0; i < timers.length; i++) {
+			timers[i] = new Histogram();
+		}
+	}
+
+	static boolean isEnabled() {
+		return enabled;
+	}
+
+	static void setEnabled(boolean on) {
+		enabled = on;
+	}
+
+	/**
+	 * @return 插件id、插件id + "/proxy" 或 "framework"
+	 */
+	public String getName() {
+		return name;
+	}
+
+	public long getCount(Counter counter) {
+		return counts.get(counter.ordinal());
+	}
+
+	public Histogram getHistogram(Timer timer) {
+		return timers[timer.ordinal()];
+	}
+
+	/**
+	 * @return 命中次数占 loadClass 调用次数的比例，例如 {@link Counter#LOADED_HITS}、{@link Counter#MISSING_CACHE_HITS}
+	 */
+	public double getHitRate(Counter hits) {
+		long requests = getCount(Counter.LOAD_REQUESTS);
+		return requests == 0 ? 0 : (double) getCount(hits) / requests;
+	}
+
+	void increment(Counter counter) {
+		counts.incrementAndGet(counter.ordinal());
+	}
+
+	void record(Timer timer, long nanos) {
+		timers[timer.ordinal()].record(nanos);
+	}
+
+	public void reset() {
+		for (int i = 0; i < counts.length(); i++) {
+			counts.set(i, 0);
+		}
+		for (Histogram h : timers) {
+			h.reset();
+		}
+	}
+
+	/**
+	 * 只列出非0的计数，耗时给出次数、总毫秒与 p50/p99(微秒)
+	 */
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("ClassLoadingMetrics[").append(
+				name);
+		for (Counter c : Counter.values()) {
+			long n = getCount(c);
+			if (n != 0) {
+				sb.append(", ").append(c.name().toLowerCase(Locale.US)).append('=')
+						.append(n);
+			}
+		}
+		for (Timer t : Timer.values()) {
+			Histogram h = getHistogram(t);
+			long n = h.getCount();
+			if (n != 0) {
+				sb.append(", ").append(t.name().toLowerCase(Locale.US)).append("={n=")
+						.append(n).append(", ms=")
+						.append(h.getTotalNanos() / 1000000).append(", p50=")
+						.append(h.getPercentileMicros(0.5)).append("us, p99=")
+						.append(h.getPercentileMicros(0.99)).append("us}");
+			}
+		}
+		return sb.append(']').toString();
+	}
+}
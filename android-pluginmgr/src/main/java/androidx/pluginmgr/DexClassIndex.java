@@ -0,0 +1,607 @@
+/*
+ * Copyright (C) 2015 HouKx <hkx.aidream@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package androidx.pluginmgr;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import android.util.Log;
+
+/**
+ * apk中 classes*.dex 定义的所有类的索引，用于在加载类之前判断类属于谁，不再靠父加载器抛出异常来试探
+ * <p>
+ * 只保存类名的64位哈希(已排序)，几万个类也只占几百KB。哈希冲突只会让类走原来的试探路径，不影响正确性。
+ * 同时记录每个类所在的dex(classes.dex 为0，classesN.dex 为N-1)，供按需打开次级dex时使用(见 {@link SecondaryDexes})，
+ * 以及所有 final 虚方法的方法名，生成代理前用来判断是否需要加载Activity类检查父类链(见 {@link ActivityOverider#needsOverrideCheck})。
+ * 建立索引需要解压并解析dex，结果按代码指纹(见 {@link PluginManifestUtil#getCodeFingerprint})缓存到文件
+ */
+final class DexClassIndex {
+	private static final String tag = "DexClassIndex";
+	private static final int MAGIC = 0x44434958; // DCIX
+	private static final int VERSION = 5;
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+	/**
+	 * 由系统(boot classpath)提供的包，始终交给父加载器。
+	 * 不在这里的 boot classpath 与 uses-library 中的类由它们的索引判断(见 PluginManager#isAbsentFromParent)
+	 */
+	private static final String[] SYSTEM_PREFIXES = { "java.", "javax.",
+			"android.", "dalvik.", "com.android.", "libcore.", "sun.",
+			"org.apache.http.", "org.apache.commons.logging.", "org.json.",
+			"org.w3c.dom.", "org.xml.sax.", "org.xmlpull.v1.", "org.kxml2.",
+			"junit." };
+
+	private static final byte[] SUPPORT_DESCRIPTOR = ("L"
+			+ SharedLibraries.SUPPORT_PREFIX.replace('.', '/')).getBytes();
+	private static final int NO_INDEX = -1;
+
+	private final long[] hashes;
+	/**
+	 * 与 hashes 一一对应的dex序号
+	 */
+	private final byte[] dexes;
+	/**
+	 * final 虚方法的方法名的哈希(已排序、去重)
+	 */
+	private final long[] finalMethods;
+	private final long supportFingerprint;
+	/**
+	 * 含有 support 类的dex(按序号的位图，序号超过63时全部置位)
+	 */
+	private final long supportDexes;
+
+	private DexClassIndex(long[] hashes, byte[] dexes, long[] finalMethods,
+			long supportFingerprint, long supportDexes) {
+		this.hashes = hashes;
+		this.dexes = dexes;
+		this.finalMethods = finalMethods;
+		this.supportFingerprint = supportFingerprint;
+		this.supportDexes = supportDexes;
+	}
+
+	/**
+	 * @return apk中是否(可能)定义了这个类
+	 */
+	boolean contains(String className) {
+		return Arrays.binarySearch(hashes, hash(className)) >= 0;
+	}
+
+	/**
+	 * @return 类所在dex的序号，不在apk中时返回 -1
+	 */
+	int dexOf(String className) {
+		int i = Arrays.binarySearch(hashes, hash(className));
+		return i < 0 ? -1 : dexes[i] & 0xFF;
+	}
+
+	/**
+	 * @return apk中是否(可能)有类把这个名称的虚方法声明为 final
+	 */
+	boolean declaresFinalMethod(String methodName) {
+		return Arrays.binarySearch(finalMethods, hash(methodName)) >= 0;
+	}
+
+	/**
+	 * @return classes.dex 为0，classesN.dex 为N-1，不是dex条目时返回 -1
+	 */
+	static int dexOrdinal(String entryName) {
+		if (!entryName.startsWith("classes") || !entryName.endsWith(".dex")
+				|| entryName.indexOf('/') >= 0) {
+			return -1;
+		}
+		String n = entryName.substring("classes".length(), entryName.length()
+				- ".dex".length());
+		if (n.length() == 0) {
+			return 0;
+		}
+		try {
+			int ordinal = Integer.parseInt(n) - 1;
+			return ordinal > 0 && ordinal < 256 ? ordinal : -1;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	int size() {
+		return hashes.length;
+	}
+
+	/**
+	 * apk中 support 库的指纹：由每个类的类名、父类、成员个数与静态常量的值算出，与类的顺序无关。
+	 * R 类还包括数组(R$styleable)的内容，资源id不同的 support 库指纹不同。
+	 * 指纹相同的 support 库可以共用(见 {@link SharedLibraries})
+	 * 
+	 * @return 没有 support 库时返回 0
+	 */
+	long getSupportFingerprint() {
+		return supportFingerprint;
+	}
+
+	/**
+	 * @return 是否有 support 类在这个dex中
+	 */
+	boolean hasSupportClasses(int dexOrdinal) {
+		long bit = dexOrdinal < 64 ? 1L << dexOrdinal : 0;
+		return supportDexes == -1L || (supportDexes & bit) != 0;
+	}
+
+	static boolean isSystemClass(String className) {
+		for (String prefix : SYSTEM_PREFIXES) {
+			if (className.startsWith(prefix)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * 读取缓存的索引，不存在或已过期时从apk重新建立并写入缓存(在后台线程调用)
+	 */
+	static DexClassIndex load(File apk, File cacheFile) throws IOException {
+		PluginZipFile zip = new PluginZipFile(apk);
+		try {
+			String key = PluginManifestUtil.getCodeFingerprint(zip);
+			DexClassIndex index = read(cacheFile, key);
+			if (index != null) {
+				return index;
+			}
+			long start = System.currentTimeMillis();
+			index = build(zip);
+			Log.i(tag, apk.getName() + ": indexed " + index.size()
+					+ " classes in " + (System.currentTimeMillis() - start)
+					+ "ms");
+			try {
+				index.write(cacheFile, key);
+			} catch (IOException e) {
+				Log.w(tag, "cannot write " + cacheFile + ": " + e);
+			}
+			return index;
+		} finally {
+			zip.close();
+		}
+	}
+
+	static DexClassIndex build(PluginZipFile zip) throws IOException {
+		long[] rs = new long[1024];
+		byte[] ordinals = new byte[rs.length];
+		int n = 0;
+		Set<Long> finals = new HashSet<Long>();
+		long support = 0;
+		long supportDexes = 0;
+		for (PluginZipFile.Entry entry : zip.entries()) {
+			String name = entry.getName();
+			int ordinal = dexOrdinal(name);
+			if (ordinal < 0) {
+				continue;
+			}
+			byte[] dex = readFully(zip, entry);
+			ByteBuffer b = ByteBuffer.wrap(dex).order(ByteOrder.LITTLE_ENDIAN);
+			if (dex.length < 0x70 || dex[0] != 'd' || dex[1] != 'e'
+					|| dex[2] != 'x') {
+				throw new IOException("not a dex: " + name);
+			}
+			int stringIdsOff = b.getInt(0x3C);
+			int typeIdsOff = b.getInt(0x44);
+			int classDefsSize = b.getInt(0x60);
+			int classDefsOff = b.getInt(0x64);
+			for (int i = 0; i < classDefsSize; i++) {
+				int def = classDefsOff + i * 32;
+				int typeIdx = b.getInt(def);
+				int stringIdx = b.getInt(typeIdsOff + typeIdx * 4);
+				int dataOff = b.getInt(stringIdsOff + stringIdx * 4);
+				if (n == rs.length) {
+					rs = Arrays.copyOf(rs, n * 2);
+					ordinals = Arrays.copyOf(ordinals, n * 2);
+				}
+				long h = hashDescriptor(dex, dataOff);
+				ordinals[n] = (byte) ordinal;
+				rs[n++] = h;
+				addFinalMethods(dex, b, b.getInt(def + 24), finals);
+				if (startsWith(dex, dataOff, SUPPORT_DESCRIPTOR)) {
+					int superIdx = b.getInt(def + 8);
+					long superHash = superIdx == NO_INDEX ? 0 : hashDescriptor(
+							dex, b.getInt(stringIdsOff
+									+ b.getInt(typeIdsOff + superIdx * 4) * 4));
+					int classData = b.getInt(def + 24);
+					long values = staticValues(dex, b, b.getInt(def + 28));
+					if (isResourceClass(dex, dataOff)) {
+						values ^= resourceContents(dex, b, classData);
+					}
+					support += mix(h * 31 + superHash)
+							^ memberCounts(dex, classData) ^ values;
+					supportDexes |= ordinal < 64 ? 1L << ordinal : -1L;
+				}
+			}
+		}
+		long[] sorted = Arrays.copyOf(rs, n);
+		Arrays.sort(sorted);
+		byte[] dexes = new byte[n];
+		for (int i = 0; i < n; i++) {
+			dexes[Arrays.binarySearch(sorted, rs[i])] = ordinals[i];
+		}
+		long[] finalMethods = new long[finals.size()];
+		int k = 0;
+		for (Long f : finals) {
+			finalMethods[k++] = f;
+		}
+		Arrays.sort(finalMethods);
+		return new DexClassIndex(sorted, dexes, finalMethods, support,
+				supportDexes);
+	}
+
+	/**
+	 * class_data_item 中 final 虚方法的方法名的哈希
+	 */
+	private static void addFinalMethods(byte[] dex, ByteBuffer b, int off,
+			Set<Long> out) {
+		if (off == 0) {
+			return;
+		}
+		int[] pos = { off };
+		int fields = readUleb(dex, pos) + readUleb(dex, pos);
+		int directMethods = readUleb(dex, pos);
+		int virtualMethods = readUleb(dex, pos);
+		for (int i = fields * 2 + directMethods * 3; i > 0; i--) {
+			readUleb(dex, pos);
+		}
+		int methodIdsOff = b.getInt(0x5C);
+		int stringIdsOff = b.getInt(0x3C);
+		for (int i = 0, method = 0; i < virtualMethods; i++) {
+			method += readUleb(dex, pos);
+			int access = readUleb(dex, pos);
+			readUleb(dex, pos);
+			if ((access & 0x10) != 0) { // ACC_FINAL
+				int name = b.getInt(methodIdsOff + method * 8 + 4);
+				out.add(hashString(dex, b.getInt(stringIdsOff + name * 4)));
+			}
+		}
+	}
+
+	private static boolean startsWith(byte[] dex, int off, byte[] prefix) {
+		while ((dex[off++] & 0x80) != 0) {
+		}
+		if (off + prefix.length > dex.length) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length; i++) {
+			if (dex[off + i] != prefix[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * class_data_item 开头的4个 uleb128：静态字段、实例字段、direct方法、virtual方法的个数
+	 */
+	private static long memberCounts(byte[] dex, int off) {
+		if (off == 0) {
+			return 0;
+		}
+		long counts = 0;
+		for (int k = 0; k < 4; k++) {
+			int v = 0;
+			int shift = 0;
+			int bt;
+			do {
+				bt = dex[off++] & 0xFF;
+				v |= (bt & 0x7F) << shift;
+				shift += 7;
+			} while ((bt & 0x80) != 0);
+			counts = counts * 65537 + v;
+		}
+		return mix(counts);
+	}
+
+	/**
+	 * 静态常量(class_def 的 static_values)的哈希；字符串与类型按内容计算，不依赖它们在dex中的序号
+	 */
+	private static long staticValues(byte[] dex, ByteBuffer b, int off) {
+		if (off == 0) {
+			return 0;
+		}
+		int[] pos = { off };
+		long h = FNV_OFFSET;
+		for (int n = readUleb(dex, pos); n > 0; n--) {
+			h = hashValue(dex, b, pos, h);
+		}
+		return mix(h);
+	}
+
+	private static long hashValue(byte[] dex, ByteBuffer b, int[] pos, long h) {
+		int head = dex[pos[0]++] & 0xFF;
+		int type = head & 0x1F;
+		int arg = head >>> 5;
+		h = (h ^ type) * FNV_PRIME;
+		switch (type) {
+		case 0x1c: // VALUE_ARRAY
+			for (int n = readUleb(dex, pos); n > 0; n--) {
+				h = hashValue(dex, b, pos, h);
+			}
+			return h;
+		case 0x1d: // VALUE_ANNOTATION
+			readUleb(dex, pos);
+			for (int n = readUleb(dex, pos); n > 0; n--) {
+				readUleb(dex, pos);
+				h = hashValue(dex, b, pos, h);
+			}
+			return h;
+		case 0x1e: // VALUE_NULL
+		case 0x1f: // VALUE_BOOLEAN
+			return (h ^ arg) * FNV_PRIME;
+		}
+		int off = pos[0];
+		pos[0] += arg + 1;
+		if (type == 0x17 || type == 0x18) { // VALUE_STRING, VALUE_TYPE
+			int idx = 0;
+			for (int i = arg; i >= 0; i--) {
+				idx = idx << 8 | dex[off + i] & 0xFF;
+			}
+			if (type == 0x18) {
+				idx = b.getInt(b.getInt(0x44) + idx * 4);
+			}
+			return h * 31 + hashString(dex, b.getInt(b.getInt(0x3C) + idx * 4));
+		}
+		if (type >= 0x15) {
+			// 字段、方法等的序号与dex布局有关，只计类型
+			return h;
+		}
+		for (int i = 0; i <= arg; i++) {
+			h = (h ^ (dex[off + i] & 0xFF)) * FNV_PRIME;
+		}
+		return h;
+	}
+
+	private static long hashString(byte[] dex, int off) {
+		while ((dex[off++] & 0x80) != 0) {
+		}
+		long h = FNV_OFFSET;
+		for (int c; (c = dex[off++]) != 0;) {
+			h = (h ^ (c & 0xFF)) * FNV_PRIME;
+		}
+		return h;
+	}
+
+	/**
+	 * 类名是否为 R 或 R$xxx
+	 */
+	private static boolean isResourceClass(byte[] dex, int off) {
+		while ((dex[off++] & 0x80) != 0) {
+		}
+		int simpleName = off + 1;
+		for (int i = off; dex[i] != ';' && dex[i] != 0; i++) {
+			if (dex[i] == '/') {
+				simpleName = i + 1;
+			}
+		}
+		return dex[simpleName] == 'R'
+				&& (dex[simpleName + 1] == ';' || dex[simpleName + 1] == '$');
+	}
+
+	/**
+	 * R 类的静态字段名与所有 fill-array-data 的数据(R$styleable 在 &lt;clinit&gt; 中这样初始化资源id数组)
+	 */
+	private static long resourceContents(byte[] dex, ByteBuffer b, int off) {
+		if (off == 0) {
+			return 0;
+		}
+		int[] pos = { off };
+		int staticFields = readUleb(dex, pos);
+		int instanceFields = readUleb(dex, pos);
+		int methods = readUleb(dex, pos) + readUleb(dex, pos);
+		long h = FNV_OFFSET;
+		int fieldIdsOff = b.getInt(0x54);
+		int stringIdsOff = b.getInt(0x3C);
+		for (int i = 0, field = 0; i < staticFields; i++) {
+			field += readUleb(dex, pos);
+			readUleb(dex, pos);
+			int name = b.getInt(fieldIdsOff + field * 8 + 4);
+			h = h * 31 + hashString(dex, b.getInt(stringIdsOff + name * 4));
+		}
+		for (int i = instanceFields * 2; i > 0; i--) {
+			readUleb(dex, pos);
+		}
+		for (int m = 0; m < methods; m++) {
+			readUleb(dex, pos);
+			readUleb(dex, pos);
+			int code = readUleb(dex, pos);
+			if (code == 0) {
+				continue;
+			}
+			int insns = code + 16;
+			int units = b.getInt(code + 12);
+			for (int i = 0; i + 2 < units; i++) {
+				// fill-array-data vAA, +BBBBBBBB 指向 ident 为 0x0300 的数据
+				if ((b.getShort(insns + i * 2) & 0xFF) != 0x26) {
+					continue;
+				}
+				long target = i + (long) b.getInt(insns + i * 2 + 2);
+				if (target < 0 || target + 4 > units
+						|| b.getShort(insns + (int) target * 2) != 0x0300) {
+					continue;
+				}
+				int data = insns + (int) target * 2;
+				long len = (long) (b.getShort(data + 2) & 0xFFFF)
+						* (b.getInt(data + 4) & 0xFFFFFFFFL);
+				if (data + 8 + len > insns + units * 2L) {
+					continue;
+				}
+				for (int k = 0; k < len; k++) {
+					h = (h ^ (dex[data + 8 + k] & 0xFF)) * FNV_PRIME;
+				}
+			}
+		}
+		return mix(h);
+	}
+
+	private static int readUleb(byte[] dex, int[] pos) {
+		int v = 0;
+		int shift = 0;
+		int bt;
+		do {
+			bt = dex[pos[0]++] & 0xFF;
+			v |= (bt & 0x7F) << shift;
+			shift += 7;
+		} while ((bt & 0x80) != 0);
+		return v;
+	}
+
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private static byte[] readFully(PluginZipFile zip, PluginZipFile.Entry entry)
+			throws IOException {
+		byte[] data = new byte[(int) entry.getSize()];
+		InputStream in = zip.getInputStream(entry);
+		try {
+			int off = 0;
+			while (off < data.length) {
+				int len = in.read(data, off, data.length - off);
+				if (len < 0) {
+					throw new IOException("truncated: " + entry.getName());
+				}
+				off += len;
+			}
+		} finally {
+			in.close();
+		}
+		return data;
+	}
+
+	/**
+	 * 计算类描述符(Lcom/foo/Bar;)对应的类名(com.foo.Bar)的哈希，与 {@link #hash(String)} 一致
+	 * 
+	 * @param off
+	 *            - string_data_item 的位置：uleb128长度之后是 MUTF-8 编码的字符串
+	 */
+	private static long hashDescriptor(byte[] dex, int off) {
+		while ((dex[off++] & 0x80) != 0) {
+		}
+		// 跳过开头的 'L'，到 ';' 为止
+		off++;
+		long h = FNV_OFFSET;
+		for (;;) {
+			int c = dex[off++] & 0xFF;
+			if ((c & 0x80) != 0) {
+				if ((c & 0xE0) == 0xC0) {
+					c = (c & 0x1F) << 6 | (dex[off++] & 0x3F);
+				} else {
+					c = (c & 0x0F) << 12 | (dex[off++] & 0x3F) << 6
+							| (dex[off++] & 0x3F);
+				}
+			} else if (c == ';' || c == 0) {
+				return h;
+			} else if (c == '/') {
+				c = '.';
+			}
+			h = (h ^ c) * FNV_PRIME;
+		}
+	}
+
+	static long hash(String className) {
+		long h = FNV_OFFSET;
+		for (int i = 0, len = className.length(); i < len; i++) {
+			h = (h ^ className.charAt(i)) * FNV_PRIME;
+		}
+		return h;
+	}
+
+	/**
+	 * @return 缓存不存在、损坏或键不一致时返回 null
+	 */
+	static DexClassIndex read(File file, String key) {
+		if (!file.isFile()) {
+			return null;
+		}
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file)));
+			if (in.readInt() != MAGIC || in.readInt() != VERSION
+					|| !key.equals(in.readUTF())) {
+				return null;
+			}
+			long supportFingerprint = in.readLong();
+			long supportDexes = in.readLong();
+			long[] hashes = new long[in.readInt()];
+			for (int i = 0; i < hashes.length; i++) {
+				hashes[i] = in.readLong();
+			}
+			byte[] dexes = new byte[hashes.length];
+			in.readFully(dexes);
+			long[] finalMethods = new long[in.readInt()];
+			for (int i = 0; i < finalMethods.length; i++) {
+				finalMethods[i] = in.readLong();
+			}
+			return new DexClassIndex(hashes, dexes, finalMethods,
+					supportFingerprint, supportDexes);
+		} catch (IOException e) {
+			Log.w(tag, "cannot read " + file + ": " + e);
+			return null;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	void write(File file, String key) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(tmp)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeUTF(key);
+			out.writeLong(supportFingerprint);
+			out.writeLong(supportDexes);
+			out.writeInt(hashes.length);
+			for (long h : hashes) {
+				out.writeLong(h);
+			}
+			out.write(dexes);
+			out.writeInt(finalMethods.length);
+			for (long f : finalMethods) {
+				out.writeLong(f);
+			}
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(file)) {
+			tmp.delete();
+			throw new IOException("cannot rename " + tmp);
+		}
+	}
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2015 HouKx <hkx.aidream@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package androidx.pluginmgr;
+
+import java.io.ByteArrayOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.zip.Adler32;
+
+/**
+ * 通过改写字符串池从模板dex得到新的dex，不经过 DexMaker/dx
+ * <p>
+ * 只支持等长替换：新字符串的 MUTF-8 字节数与 UTF-16 长度都必须与原字符串相同，
+ * 并且替换后字符串池仍然严格有序(dex要求 string_ids 按内容排序)。这样所有偏移、
+ * 索引都不变，改写后只需重新计算头部的 SHA-1 签名与 adler32 校验和。
+ * 条件不满足时返回 null，由调用者改用 DexMaker 生成。
+ */
+final class DexTemplatePatcher {
+	private static final int HEADER_CHECKSUM = 8;
+	private static final int HEADER_SIGNATURE = 12;
+	private static final int SIGNATURE_LEN = 20;
+	private static final int HEADER_STRING_IDS_SIZE = 0x38;
+	private static final int HEADER_STRING_IDS_OFF = 0x3C;
+
+	private DexTemplatePatcher() {
+	}
+
+	/**
+	 * @param template
+	 *            - 模板dex，不会被修改
+	 * @param replacements
+	 *            - 需要整体替换的字符串(原字符串 -&gt; 新字符串)
+	 * @return 新的dex，不能等长替换或替换后顺序被打乱时返回 null
+	 */
+	static byte[] patch(byte[] template, Map<String, String> replacements) {
+		byte[] dex = template.clone();
+		int count = readInt(dex, HEADER_STRING_IDS_SIZE);
+		int idsOff = readInt(dex, HEADER_STRING_IDS_OFF);
+		int replaced = 0;
+		String prev = null;
+		for (int i = 0; i < count; i++) {
+			int dataOff = readInt(dex, idsOff + i * 4);
+			// string_data_item: uleb128 utf16_size, 然后是以0结尾的 MUTF-8 字节
+			int p = dataOff;
+			int utf16Size = 0;
+			int shift = 0;
+			int b;
+			do {
+				b = dex[p++] & 0xFF;
+				utf16Size |= (b & 0x7F) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+			int start = p;
+			while (dex[p] != 0) {
+				p++;
+			}
+			String s = decodeMutf8(dex, start, p);
+			String r = replacements.get(s);
+			if (r != null) {
+				byte[] enc = encodeMutf8(r);
+				if (enc.length != p - start || r.length() != utf16Size) {
+					return null;
+				}
+				System.arraycopy(enc, 0, dex, start, enc.length);
+				s = r;
+				replaced++;
+			}
+			if (prev != null && prev.compareTo(s) >= 0) {
+				return null;
+			}
+			prev = s;
+		}
+		if (replaced == 0) {
+			return null;
+		}
+		fixChecksums(dex);
+		return dex;
+	}
+
+	/**
+	 * 重新计算 SHA-1 签名(覆盖签名之后的全部内容)与 adler32 校验和(覆盖校验和之后的全部内容)
+	 */
+	static void fixChecksums(byte[] dex) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			int from = HEADER_SIGNATURE + SIGNATURE_LEN;
+			md.update(dex, from, dex.length - from);
+			byte[] sig = md.digest();
+			System.arraycopy(sig, 0, dex, HEADER_SIGNATURE, SIGNATURE_LEN);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		Adler32 adler = new Adler32();
+		adler.update(dex, HEADER_SIGNATURE, dex.length - HEADER_SIGNATURE);
+		writeInt(dex, HEADER_CHECKSUM, (int) adler.getValue());
+	}
+
+	private static int readInt(byte[] b, int off) {
+		return (b[off] & 0xFF) | (b[off + 1] & 0xFF) << 8
+				| (b[off + 2] & 0xFF) << 16 | (b[off + 3] & 0xFF) << 24;
+	}
+
+	private static void writeInt(byte[] b, int off, int v) {
+		b[off] = (byte) v;
+		b[off + 1] = (byte) (v >>> 8);
+		b[off + 2] = (byte) (v >>> 16);
+		b[off + 3] = (byte) (v >>> 24);
+	}
+
+	static String decodeMutf8(byte[] b, int start, int end) {
+		StringBuilder sb = new StringBuilder(end - start);
+		int p = start;
+		while (p < end) {
+			int c = b[p++] & 0xFF;
+			if (c < 0x80) {
+				sb.append((char) c);
+			} else if ((c & 0xE0) == 0xC0) {
+				sb.append((char) (((c & 0x1F) << 6) | (b[p++] & 0x3F)));
+			} else {
+				int c2 = b[p++] & 0x3F;
+				int c3 = b[p++] & 0x3F;
+				sb.append((char) (((c & 0x0F) << 12) | (c2 << 6) | c3));
+			}
+		}
+		return sb.toString();
+	}
+
+	static byte[] encodeMutf8(String s) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(s.length());
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c != 0 && c < 0x80) {
+				out.write(c);
+			} else if (c < 0x800) {
+				out.write(0xC0 | (c >> 6));
+				out.write(0x80 | (c & 0x3F));
+			} else {
+				out.write(0xE0 | (c >> 12));
+				out.write(0x80 | ((c >> 6) & 0x3F));
+				out.write(0x80 | (c & 0x3F));
+			}
+		}
+		return out.toByteArray();
+	}
+}
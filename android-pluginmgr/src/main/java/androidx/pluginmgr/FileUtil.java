@@ -15,7 +15,6 @@
  */
 package androidx.pluginmgr;
 
-import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -25,6 +24,8 @@ import java.io.InputStream;
 import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 /**
  * 文件操作工具类
@@ -37,15 +38,18 @@ import java.nio.channels.ReadableByteChannel;
 class FileUtil {
 
 	public static void writeToFile(InputStream dataIns, File target) throws IOException {
-		final int BUFFER = 1024;
-		BufferedOutputStream bos = new BufferedOutputStream(
-				new FileOutputStream(target));
-		int count;
-		byte data[] = new byte[BUFFER];
-		while ((count = dataIns.read(data, 0, BUFFER)) != -1) {
-			bos.write(data, 0, count);
+		// 使用池中的缓冲区，每次直接写入整块，不再需要 BufferedOutputStream
+		byte data[] = IoPools.obtainBuffer();
+		FileOutputStream fo = new FileOutputStream(target);
+		try {
+			int count;
+			while ((count = dataIns.read(data, 0, data.length)) != -1) {
+				fo.write(data, 0, count);
+			}
+		} finally {
+			fo.close();
+			IoPools.recycleBuffer(data);
 		}
-		bos.close(); 
 	}
 	public static void writeToFile1(InputStream dataIns, File target) throws IOException {
 		FileOutputStream fo = null;
@@ -140,4 +144,28 @@ class FileUtil {
 			}
 		}
 	}
+
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	/**
+	 * 字节数组转换为小写十六进制字符串
+	 */
+	public static String toHexString(byte[] bytes) {
+		char[] chars = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			int v = bytes[i] & 0xFF;
+			chars[i * 2] = HEX_DIGITS[v >>> 4];
+			chars[i * 2 + 1] = HEX_DIGITS[v & 0x0F];
+		}
+		return new String(chars);
+	}
+
+	public static String sha256Hex(byte[] data) {
+		try {
+			return toHexString(MessageDigest.getInstance(
+					StreamCopier.DEFAULT_DIGEST).digest(data));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
 }
@@ -15,53 +15,170 @@
  */
 package androidx.pluginmgr;
 
-import android.util.Log;
-
 /**
  * 框架类加载器（Application 的 classLoder被替换成此类的实例）
+ * <p>
+ * 系统用它加载Activity、恢复状态中的 Parcelable 与 Fragment。宿主的类直接交给父加载器，
+ * 不记日志、不经过插件；宿主中没有的类才依次到插件中查找(最近启动的插件优先)。
+ * <p>
+ * 代理Activity的类由 {@link PluginInstrumentation} 按 intent 中的插件id与类名加载，
+ * 不依赖这里记录的最近一次启动，多个线程同时启动插件Activity时不会错位；
+ * 最近一次启动只用于不是通过 PluginManager 启动的 intent，或 PluginInstrumentation 安装失败时
  * 
  * @author HouKangxi
  *
  */
 class FrameworkClassLoader extends ClassLoader {
-	private String plugId;
-	private String actName;
+	/**
+	 * 最近一次启动的插件Activity，只在 PluginInstrumentation 不可用时用来加载代理类
+	 */
+	private volatile LaunchTarget lastLaunch;
+	/**
+	 * 宿主与所有插件中都找不到的类
+	 */
+	private final MissingClassCache missingClasses = new MissingClassCache();
+	final ClassLoadingMetrics metrics = new ClassLoadingMetrics("framework");
+
+	private static final class LaunchTarget {
+		final String pluginId;
+		final String actName;
+
+		LaunchTarget(String pluginId, String actName) {
+			this.pluginId = pluginId;
+			this.actName = actName;
+		}
+	}
 
 	public FrameworkClassLoader(ClassLoader parent) {
 		super(parent);
 	}
 
 	String newActivityClassName(String plugId, String actName) {
-		this.plugId = plugId;
-		this.actName = actName;
+		lastLaunch = new LaunchTarget(plugId, actName);
 		return ActivityOverider.targetClassName;
 	}
 
 	protected Class<?> loadClass(String className, boolean resolv)
 			throws ClassNotFoundException {
-		Log.i("cl", "loadClass: " + className);
-		if (plugId != null) {
-			String pluginId = plugId;
+		if (!ClassLoadingMetrics.isEnabled()) {
+			return loadClass(className, resolv, null);
+		}
+		long start = System.nanoTime();
+		metrics.increment(ClassLoadingMetrics.Counter.LOAD_REQUESTS);
+		try {
+			return loadClass(className, resolv, metrics);
+		} catch (ClassNotFoundException e) {
+			metrics.increment(ClassLoadingMetrics.Counter.NOT_FOUND);
+			throw e;
+		} finally {
+			metrics.record(ClassLoadingMetrics.Timer.LOAD, System.nanoTime()
+					- start);
+		}
+	}
+
+	/**
+	 * @param m
+	 *            - 统计关闭时为 null
+	 */
+	private Class<?> loadClass(String className, boolean resolv,
+			ClassLoadingMetrics m) throws ClassNotFoundException {
+		// 代理类能否加载取决于最近一次启动，不能记为找不到
+		boolean proxy = className.equals(ActivityOverider.targetClassName);
+		if (proxy) {
+			Class<?> c = loadLastLaunchedActivity();
+			if (c != null) {
+				return c;
+			}
+		}
+		long start = m != null ? System.nanoTime() : 0;
+		try {
+			Class<?> c = super.loadClass(className, resolv);
+			if (m != null) {
+				m.increment(ClassLoadingMetrics.Counter.PARENT_FOUND);
+				m.record(ClassLoadingMetrics.Timer.PARENT, System.nanoTime()
+						- start);
+			}
+			return c;
+		} catch (ClassNotFoundException e) {
+			if (m != null) {
+				m.increment(ClassLoadingMetrics.Counter.PARENT_NOT_FOUND);
+				m.record(ClassLoadingMetrics.Timer.PARENT, System.nanoTime()
+						- start);
+			}
+			// 宿主的类不经过这里，查找记录只在宿主找不到时才需要
+			if (!proxy && missingClasses.contains(className)) {
+				if (m != null) {
+					m.increment(ClassLoadingMetrics.Counter.MISSING_CACHE_HITS);
+				}
+				throw MissingClassCache.newException(className);
+			}
+			Class<?> c = loadPluginClass(className);
+			if (c == null) {
+				if (!proxy) {
+					missingClasses.add(className);
+				}
+				throw e;
+			}
+			if (m != null) {
+				m.increment(ClassLoadingMetrics.Counter.PLUGIN_FOUND);
+			}
+			return c;
+		}
+	}
+
+	private Class<?> loadLastLaunchedActivity() throws ClassNotFoundException {
+		LaunchTarget target = lastLaunch;
+		if (target == null) {
+			return null;
+		}
+		PlugInfo plugin = PluginManager.getInstance().getPluginById(
+				target.pluginId);
+		if (plugin == null) {
+			return null;
+		}
+		return plugin.getClassLoader().loadActivityClass(target.actName);
+	}
 
-			PlugInfo plugin = PluginManager.getInstance().getPluginById(
-					pluginId);
-			Log.i("cl", "plugin = " + plugin);
-			if (plugin != null) {
-				try {
-					if (className.equals(ActivityOverider.targetClassName)) {
-						// Thread.dumpStack();
-						String actClassName = actName;
-						return plugin.getClassLoader().loadActivityClass(
-								actClassName);
-					} else {
-						return plugin.getClassLoader().loadClass(className);
-					}
-				} catch (ClassNotFoundException e) {
-					e.printStackTrace();
+	/**
+	 * 宿主中没有的类：先在最近启动的插件中查找，再查找类索引中(可能)有这个类的其他插件
+	 */
+	private Class<?> loadPluginClass(String className) {
+		PluginManager mgr = PluginManager.getInstance();
+		LaunchTarget target = lastLaunch;
+		PlugInfo first = target == null ? null : mgr.getPluginById(target.pluginId);
+		if (first != null) {
+			Class<?> c = tryLoad(first, className);
+			if (c != null) {
+				return c;
+			}
+		}
+		for (PlugInfo plugin : mgr.getPlugins()) {
+			if (plugin != first && plugin.getClassLoader().mayContain(className)) {
+				Class<?> c = tryLoad(plugin, className);
+				if (c != null) {
+					return c;
 				}
 			}
 		}
+		return null;
+	}
+
+	private static Class<?> tryLoad(PlugInfo plugin, String className) {
+		try {
+			return plugin.getClassLoader().loadClass(className);
+		} catch (ClassNotFoundException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * 插件加载或重新加载后清除找不到的类的记录
+	 */
+	void onPluginLoaded(String pluginId) {
+		missingClasses.clear();
+	}
 
-		return super.loadClass(className, resolv);
+	void clearMissingClasses() {
+		missingClasses.clear();
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2015 HouKx <hkx.aidream@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package androidx.pluginmgr;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 宿主向插件开放的类(按类名前缀)
+ * <p>
+ * 前缀编译为不可变的前缀树，插件类加载器委托宿主之前先查询：不在开放范围内的类直接交给系统类加载器，
+ * 不再遍历宿主的dex。前缀按字符匹配，"com.host.api." 表示这个包及其子包，"com.host.Api" 同时匹配 com.host.ApiImpl。
+ * <p>
+ * 系统类(java.、android. 等)与插件框架自身(androidx.pluginmgr.)总是开放的。
+ * 可以通过 {@link PluginManager#setHostExportPolicy(HostExportPolicy)} 设置，或在宿主的 AndroidManifest.xml 中声明：
+ *
+ * <pre>
+ * &lt;meta-data android:name="androidx.pluginmgr.HOST_EXPORTS"
+ *     android:value="com.host.api.,com.host.model." /&gt;
+ * </pre>
+ */
+public final class HostExportPolicy {
+	static final String META_DATA_KEY = "androidx.pluginmgr.HOST_EXPORTS";
+	private static final String FRAMEWORK_PREFIX = "androidx.pluginmgr.";
+
+	private static final class Node {
+		/**
+		 * 已排序的下一个字符
+		 */
+		final char[] keys;
+		final Node[] children;
+		/**
+		 * 到这里为止是一个完整的前缀，后面的字符不再需要比较
+		 */
+		final boolean terminal;
+
+		Node(char[] keys, Node[] children, boolean terminal) {
+			this.keys = keys;
+			this.children = children;
+			this.terminal = terminal;
+		}
+	}
+
+	private static final Node LEAF = new Node(new char[0], new Node[0], true);
+
+	private final Node root;
+	private final List<String> prefixes;
+
+	private HostExportPolicy(String[] sorted) {
+		this.root = build(sorted, 0, sorted.length, 0);
+		this.prefixes = Collections.unmodifiableList(Arrays.asList(sorted));
+	}
+
+	public static HostExportPolicy of(String... prefixes) {
+		return of(Arrays.asList(prefixes));
+	}
+
+	public static HostExportPolicy of(Collection<String> prefixes) {
+		List<String> list = new ArrayList<String>();
+		list.add(FRAMEWORK_PREFIX);
+		for (String p : prefixes) {
+			if (p != null) {
+				p = p.trim();
+				if (p.length() > 0) {
+					list.add(p);
+				}
+			}
+		}
+		String[] sorted = list.toArray(new String[list.size()]);
+		Arrays.sort(sorted);
+		return new HostExportPolicy(sorted);
+	}
+
+	/**
+	 * @param value
+	 *            - 逗号分隔的前缀(meta-data 的值)，为空时返回 null
+	 */
+	static HostExportPolicy parse(String value) {
+		if (value == null || value.trim().length() == 0) {
+			return null;
+		}
+		return of(value.split(","));
+	}
+
+	/**
+	 * sorted[from, to) 的前 depth 个字符相同
+	 */
+	private static Node build(String[] sorted, int from, int to, int depth) {
+		if (sorted[from].length() == depth) {
+			// 已排序，最短的在最前面；它覆盖了这一组的其余前缀
+			return LEAF;
+		}
+		List<Character> keys = new ArrayList<Character>();
+		List<Node> children = new ArrayList<Node>();
+		int i = from;
+		while (i < to) {
+			char c = sorted[i].charAt(depth);
+			int j = i + 1;
+			while (j < to && sorted[j].charAt(depth) == c) {
+				j++;
+			}
+			keys.add(c);
+			children.add(build(sorted, i, j, depth + 1));
+			i = j;
+		}
+		char[] k = new char[keys.size()];
+		for (int n = 0; n < k.length; n++) {
+			k[n] = keys.get(n);
+		}
+		return new Node(k, children.toArray(new Node[children.size()]), false);
+	}
+
+	/**
+	 * @return 插件能否从宿主加载这个类
+	 */
+	public boolean isExported(String className) {
+		if (DexClassIndex.isSystemClass(className)) {
+			return true;
+		}
+		Node n = root;
+		for (int i = 0, len = className.length(); i < len; i++) {
+			if (n.terminal) {
+				return true;
+			}
+			int k = Arrays.binarySearch(n.keys, className.charAt(i));
+			if (k < 0) {
+				return false;
+			}
+			n = n.children[k];
+		}
+		return n.terminal;
+	}
+
+	public List<String> getPrefixes() {
+		return prefixes;
+	}
+
+	@Override
+	public String toString() {
+		return "HostExportPolicy" + prefixes;
+	}
+}
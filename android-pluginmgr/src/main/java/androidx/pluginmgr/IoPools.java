@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2015 HouKx <hkx.aidream@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package androidx.pluginmgr;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Inflater;
+
+/**
+ * Inflater 与 I/O 缓冲区的共享池
+ * <p>
+ * 所有读取zip条目、解压、写文件的代码路径共用此池，避免每次都分配 native Inflater 和字节数组。
+ * 池有上限，超出上限归还的对象直接丢弃(Inflater 会被 end() 释放)。线程安全。
+ */
+final class IoPools {
+	/**
+	 * 池中缓冲区的大小
+	 */
+	static final int BUFFER_SIZE = 16 * 1024;
+	private static final int MAX_INFLATERS = 8;
+	private static final int MAX_BUFFERS = 16;
+
+	private static final BlockingQueue<Inflater> inflaters = new ArrayBlockingQueue<Inflater>(
+			MAX_INFLATERS);
+	private static final BlockingQueue<byte[]> buffers = new ArrayBlockingQueue<byte[]>(
+			MAX_BUFFERS);
+
+	private static final AtomicLong inflaterHits = new AtomicLong();
+	private static final AtomicLong inflaterMisses = new AtomicLong();
+	private static final AtomicLong bufferHits = new AtomicLong();
+	private static final AtomicLong bufferMisses = new AtomicLong();
+
+	private IoPools() {
+	}
+
+	/**
+	 * 取得一个 nowrap 模式(zip条目使用的裸deflate格式)的 Inflater，用完必须
+	 * {@link #recycleInflater(Inflater)}
+	 */
+	static Inflater obtainInflater() {
+		Inflater inf = inflaters.poll();
+		if (inf != null) {
+			inflaterHits.incrementAndGet();
+			return inf;
+		}
+		inflaterMisses.incrementAndGet();
+		return new Inflater(true);
+	}
+
+	static void recycleInflater(Inflater inf) {
+		if (inf == null) {
+			return;
+		}
+		inf.reset();
+		if (!inflaters.offer(inf)) {
+			inf.end();
+		}
+	}
+
+	/**
+	 * 取得一个 {@link #BUFFER_SIZE} 大小的缓冲区，用完必须 {@link #recycleBuffer(byte[])}
+	 */
+	static byte[] obtainBuffer() {
+		byte[] buf = buffers.poll();
+		if (buf != null) {
+			bufferHits.incrementAndGet();
+			return buf;
+		}
+		bufferMisses.incrementAndGet();
+		return new byte[BUFFER_SIZE];
+	}
+
+	static void recycleBuffer(byte[] buf) {
+		if (buf == null || buf.length != BUFFER_SIZE) {
+			return;
+		}
+		buffers.offer(buf);
+	}
+
+	static long getInflaterHits() {
+		return inflaterHits.get();
+	}
+
+	static long getInflaterMisses() {
+		return inflaterMisses.get();
+	}
+
+	static long getBufferHits() {
+		return bufferHits.get();
+	}
+
+	static long getBufferMisses() {
+		return bufferMisses.get();
+	}
+
+	static String dumpStats() {
+		return "IoPools[ inflater hit/miss=" + inflaterHits.get() + "/"
+				+ inflaterMisses.get() + ", buffer hit/miss="
+				+ bufferHits.get() + "/" + bufferMisses.get() + ", pooled="
+				+ inflaters.size() + "/" + buffers.size() + " ]";
+	}
+}
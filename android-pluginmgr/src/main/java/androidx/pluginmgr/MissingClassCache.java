@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2015 HouKx <hkx.aidream@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package androidx.pluginmgr;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * 类加载器找不到的类名(有上限，超过时先淘汰最早加入的)
+ * <p>
+ * 插件中的库常用 Class.forName 试探可选的类，每次都要经过父加载器与dex查找并抛出两次异常；
+ * 记住失败的结果后，重复的试探只需要一次哈希查找，抛出的异常也不再收集调用栈。
+ * 查询不加锁，多个线程同时加载类时不会互相等待
+ */
+final class MissingClassCache {
+	static final int DEFAULT_CAPACITY = 512;
+
+	private final int capacity;
+	private final Map<String, Boolean> names = new ConcurrentHashMap<String, Boolean>();
+	/**
+	 * 加入的顺序，用于淘汰
+	 */
+	private final Queue<String> order = new ConcurrentLinkedQueue<String>();
+
+	MissingClassCache() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	MissingClassCache(int capacity) {
+		this.capacity = capacity;
+	}
+
+	boolean contains(String name) {
+		return names.containsKey(name);
+	}
+
+	void add(String name) {
+		if (names.put(name, Boolean.TRUE) != null) {
+			return;
+		}
+		order.add(name);
+		while (names.size() > capacity) {
+			String eldest = order.poll();
+			if (eldest == null) {
+				break;
+			}
+			names.remove(eldest);
+		}
+	}
+
+	void clear() {
+		names.clear();
+		order.clear();
+	}
+
+	/**
+	 * 已知找不到的类抛出的异常，不收集调用栈
+	 */
+	static ClassNotFoundException newException(String name) {
+		return new CachedClassNotFoundException(name);
+	}
+
+	private static final class CachedClassNotFoundException extends
+			ClassNotFoundException {
+		private static final long serialVersionUID = 1L;
+
+		CachedClassNotFoundException(String name) {
+			super(name);
+		}
+
+		@Override
+		public synchronized Throwable fillInStackTrace() {
+			return this;
+		}
+	}
+}
@@ -15,6 +15,7 @@
  */
 package androidx.pluginmgr;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
@@ -41,6 +42,7 @@ public class PlugInfo {
 	// ================== FLELDS ==================
 	private String id;
 	private String filePath;
+	private String apkDigest;
 	private PackageInfo packageInfo;
 	private Map<String,ResolveInfo> activities;
 	private ResolveInfo mainActivity;
@@ -53,6 +55,10 @@ public class PlugInfo {
 	private transient AssetManager assetManager;
 	private transient Resources resources;
 	PluginContextWrapper appWrapper;
+	private transient PluginJournal journal;
+	private transient String codeFingerprint;
+	private transient volatile File proxyDexFile;
+	private transient volatile ProxyDexStats proxyDexStats;
 	//
 	// private transient volatile String currentActivityClass;
 
@@ -229,6 +235,52 @@ public class PlugInfo {
 		this.filePath = filePath;
 	}
 
+	/**
+	 * @return 私有目录中apk的 SHA-256(十六进制)，未知时为 null
+	 */
+	public String getApkDigest() {
+		return apkDigest;
+	}
+
+	public void setApkDigest(String apkDigest) {
+		this.apkDigest = apkDigest;
+	}
+
+	PluginJournal getJournal() {
+		return journal;
+	}
+
+	void setJournal(PluginJournal journal) {
+		this.journal = journal;
+	}
+
+	/**
+	 * @return apk中所有 classes*.dex 的指纹(由条目的CRC与大小算出)
+	 */
+	String getCodeFingerprint() {
+		return codeFingerprint;
+	}
+
+	void setCodeFingerprint(String codeFingerprint) {
+		this.codeFingerprint = codeFingerprint;
+	}
+
+	File getProxyDexFile() {
+		return proxyDexFile;
+	}
+
+	void setProxyDexFile(File proxyDexFile) {
+		this.proxyDexFile = proxyDexFile;
+	}
+
+	ProxyDexStats getProxyDexStats() {
+		return proxyDexStats;
+	}
+
+	void setProxyDexStats(ProxyDexStats proxyDexStats) {
+		this.proxyDexStats = proxyDexStats;
+	}
+
 	public PackageInfo getPackageInfo() {
 		return packageInfo;
 	}
@@ -16,8 +16,10 @@
 package androidx.pluginmgr;
 
 import java.io.File;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 import android.util.Log;
 import dalvik.system.DexClassLoader;
@@ -34,36 +36,161 @@ class PluginClassLoader extends DexClassLoader {
 	private final String optimizedDirectory;
 	private final String libraryPath;
 	/**
-	 * Activity 的类加载器
+	 * 插件所有代理Activity共用的类加载器
 	 */
-	private final Map<String, ClassLoader> proxyActivityLoaderMap;
+	private volatile ClassLoader proxyActivityLoader;
+	/**
+	 * 正在加载的类名 -&gt; 锁
+	 */
+	private final ConcurrentHashMap<String, Object> classLoadingLocks = new ConcurrentHashMap<String, Object>();
+	/**
+	 * 插件apk的类索引，在后台建立，建立之前按原来的方式先试探父加载器
+	 */
+	private volatile DexClassIndex classIndex;
+	/**
+	 * 插件与宿主中都找不到的类。插件重新加载时会创建新的类加载器，缓存随之失效
+	 */
+	private final MissingClassCache missingClasses = new MissingClassCache();
+	/**
+	 * 在第一次加载 support 库的类时确定，之后不再改变，以免同一个插件混用两份 support 库
+	 */
+	private volatile boolean supportLoaderChosen;
+	/**
+	 * 正在记录的类加载顺序，第一个Activity onResume 后结束
+	 */
+	private volatile ClassLoadTrace trace;
+	/**
+	 * Dalvik 上按需打开的次级dex，ART 上为 null
+	 */
+	private final SecondaryDexes secondaryDexes;
+	/**
+	 * 本加载器与代理Activity类加载器的统计(见 {@link ClassLoadingMetrics})
+	 */
+	final ClassLoadingMetrics metrics;
+	final ClassLoadingMetrics proxyMetrics;
+	private ClassLoader supportLoader;
 
 	public PluginClassLoader(String dexPath, String optimizedDir, ClassLoader parent, PlugInfo plugin) {
 		super(dexPath, optimizedDir,plugin.getPackageInfo().applicationInfo.nativeLibraryDir,parent);
 		thisPlugin = plugin;
-		proxyActivityLoaderMap = new HashMap<String, ClassLoader>(plugin.getActivities().size());
 		this.libraryPath = plugin.getPackageInfo().applicationInfo.nativeLibraryDir;
 		this.optimizedDirectory = optimizedDir;
+		metrics = new ClassLoadingMetrics(plugin.getId());
+		proxyMetrics = new ClassLoadingMetrics(plugin.getId() + "/proxy");
+		secondaryDexes = SecondaryDexes.isRequired() ? new SecondaryDexes(this,
+				new File(dexPath), new File(optimizedDir)) : null;
 		tag = "PluginClassLoader( " + plugin.getPackageInfo().packageName + " )";
 		Log.i(tag, "libraryPath = "+libraryPath);
 	}
 
+	/**
+	 * @return 插件当前版本的优化dex目录(见 {@link PluginStorageManager#prepareOptimizedDir(PlugInfo)})
+	 */
+	File getOptimizedDir() {
+		return new File(optimizedDirectory);
+	}
+
+	/**
+	 * @return 插件apk或代理dex的优化文件(Android 8.0 以下)
+	 */
+	File getOptimizedFile(File dexPath) {
+		return new File(optimizedDirectory,
+				PluginStorageManager.optimizedFileName(dexPath));
+	}
+
+	/**
+	 * @return 插件apk或代理dex已生成的优化文件，Android 8.0 起在来源文件旁边的 oat/ 中
+	 */
+	List<File> getOptimizedFiles(File dexPath) {
+		if (PluginStorageManager.isOatBesideSource()) {
+			return PluginStorageManager.listOatFiles(dexPath);
+		}
+		File f = getOptimizedFile(dexPath);
+		return f.exists() ? Collections.singletonList(f) : Collections
+				.<File> emptyList();
+	}
+
+	/**
+	 * 记录插件apk或代理dex被使用：只 touch 优化文件，不能 touch 来源
+	 */
+	void touchOptimizedFiles(File dexPath) {
+		for (File f : getOptimizedFiles(dexPath)) {
+			PluginStorageManager.touch(f);
+		}
+	}
+
 	Class<?> loadActivityClass(final String actClassName) throws ClassNotFoundException {
 		Log.d(tag, "loadActivityClass: " + actClassName);
+		if (!ClassLoadingMetrics.isEnabled()) {
+			return loadProxyClass(actClassName);
+		}
+		long start = System.nanoTime();
+		proxyMetrics.increment(ClassLoadingMetrics.Counter.LOAD_REQUESTS);
+		try {
+			return loadProxyClass(actClassName);
+		} catch (ClassNotFoundException e) {
+			proxyMetrics.increment(ClassLoadingMetrics.Counter.NOT_FOUND);
+			throw e;
+		} finally {
+			// 包括等待或生成代理dex的时间
+			proxyMetrics.record(ClassLoadingMetrics.Timer.LOAD, System.nanoTime()
+					- start);
+		}
+	}
 
-		// 在类加载之前检查创建代理的Activity dex文件，以免调用者忘记生成此文件
-		File dexSavePath = ActivityOverider.createProxyDex(thisPlugin, actClassName, true);
-		ClassLoader actLoader = proxyActivityLoaderMap.get(actClassName);
+	private Class<?> loadProxyClass(String actClassName)
+			throws ClassNotFoundException {
+		ClassLoader actLoader = proxyActivityLoader;
+		ProxyDexScheduler scheduler = PluginManager.getInstance()
+				.getProxyDexScheduler();
+		// 后台任务正在生成时不在内存中重复生成，等待它的结果
+		if (actLoader == null && isInMemoryProxySupported()
+				&& !ActivityOverider.hasProxyDex(thisPlugin)
+				&& scheduler.claimProxyDex(thisPlugin)) {
+			actLoader = prepareInMemoryProxyLoader();
+		}
 		if (actLoader == null) {
+			// 后台预生成还没完成时等待它，不在启动路径上重复生成
+			scheduler.awaitProxyDex(thisPlugin);
+			actLoader = prepareProxyActivityLoader();
+		}
+		return actLoader.loadClass(ActivityOverider
+				.getProxyClassName(actClassName));
+	}
+
+	/**
+	 * 生成代理dex(如果需要)并创建代理Activity的类加载器
+	 */
+	ClassLoader prepareProxyActivityLoader() {
+		ClassLoader actLoader = proxyActivityLoader;
+		if (actLoader != null) {
+			return actLoader;
+		}
+		synchronized (this) {
+			if (proxyActivityLoader != null) {
+				return proxyActivityLoader;
+			}
+			// 在类加载之前检查创建代理的Activity dex文件，以免调用者忘记生成此文件
+			File dexSavePath = ActivityOverider.createProxyDex(thisPlugin, true);
+			// 不能改动dex本身的修改时间：Dalvik 按它校验优化dex，改动后每次启动都要重新 dexopt
+			touchOptimizedFiles(dexSavePath);
 			actLoader = new DexClassLoader(dexSavePath.getAbsolutePath(), optimizedDirectory,libraryPath, this){
 				@Override
 				protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
-					Log.d("PlugActClassLoader("+ actClassName+")", "loadClass: " + name);
-					if (ActivityOverider.targetClassName.equals(name)) {
+					if (ActivityOverider.isProxyClassName(name)) {
 						Class<?> c = findLoadedClass(name);
-						if (c == null) {
-							Log.d("PlugActClassLoader("+ actClassName+")", "findClass");
+						if (c != null) {
+							if (ClassLoadingMetrics.isEnabled()) {
+								proxyMetrics.increment(ClassLoadingMetrics.Counter.LOADED_HITS);
+							}
+						} else if (!ClassLoadingMetrics.isEnabled()) {
 							c = findClass(name);
+						} else {
+							long start = System.nanoTime();
+							c = findClass(name);
+							proxyMetrics.record(ClassLoadingMetrics.Timer.FIND_CLASS,
+									System.nanoTime() - start);
+							proxyMetrics.increment(ClassLoadingMetrics.Counter.DEFINED);
 						}
 						if (resolve) {
 							resolveClass(c);
@@ -73,16 +200,266 @@ class PluginClassLoader extends DexClassLoader {
 					return super.loadClass(name, resolve);
 				}
 			};
-			proxyActivityLoaderMap.put(actClassName, actLoader);
+			proxyActivityLoader = actLoader;
+			return actLoader;
 		}
-		return actLoader.loadClass(ActivityOverider.targetClassName);
 	}
 	
-	protected Object getClassLoadingLock(String name){
-		return name.hashCode();
+	/**
+	 * 代理dex还没有写到磁盘时，直接从内存中的dex创建类加载器(InMemoryDexClassLoader, Android 8.0+)，
+	 * 启动路径上不写文件、不读文件；文件在后台写入，以后的进程直接从文件加载
+	 * 
+	 * @return 不支持时返回 null
+	 */
+	private ClassLoader prepareInMemoryProxyLoader() {
+		synchronized (this) {
+			if (proxyActivityLoader != null) {
+				return proxyActivityLoader;
+			}
+			final List<byte[]> dexes = ActivityOverider
+					.createProxyDexes(thisPlugin);
+			ClassLoader actLoader = newInMemoryDexClassLoader(dexes,
+					new ProxyFilterClassLoader(this));
+			if (actLoader == null) {
+				// 已经生成的dex直接写到磁盘，不再重复生成
+				ActivityOverider.saveProxyDexes(thisPlugin, dexes);
+				return null;
+			}
+			BackgroundExecutor.execute(new Runnable() {
+				public void run() {
+					ActivityOverider.saveProxyDexes(thisPlugin, dexes);
+				}
+			});
+			proxyActivityLoader = actLoader;
+			return actLoader;
+		}
+	}
+
+	/**
+	 * 读取插件的类索引；没有缓存时在后台建立
+	 */
+	void loadClassIndexAsync() {
+		final File apk = new File(thisPlugin.getFilePath());
+		final File cache = PluginLayout.getClassIndexFile(thisPlugin.getId());
+		String key = thisPlugin.getCodeFingerprint();
+		DexClassIndex index = key == null ? null : DexClassIndex.read(cache,
+				key);
+		if (index != null) {
+			onClassIndexLoaded(index);
+			return;
+		}
+		BackgroundExecutor.execute(new Runnable() {
+			public void run() {
+				try {
+					onClassIndexLoaded(DexClassIndex.load(apk, cache));
+				} catch (Exception e) {
+					Log.w(tag, "class index unavailable: " + e);
+				}
+			}
+		});
+	}
+
+	private void onClassIndexLoaded(DexClassIndex index) {
+		classIndex = index;
+		PluginManager mgr = PluginManager.getInstance();
+		if (mgr.isShareSupportLibrary()) {
+			mgr.getSharedLibraries().prepareSupportLoader(thisPlugin, index);
+		}
+	}
+
+	/**
+	 * 有可用的记录时在后台预先加载，否则开始记录这次启动的类加载顺序
+	 */
+	void startClassLoadProfiling() {
+		File file = PluginLayout.getClassTraceFile(thisPlugin.getId());
+		if (file.isFile()) {
+			ClassLoadTrace.prewarmAsync(thisPlugin, file);
+		} else if (thisPlugin.getCodeFingerprint() != null) {
+			trace = new ClassLoadTrace(thisPlugin.getCodeFingerprint());
+		}
+	}
+
+	/**
+	 * 插件的Activity已显示：结束并保存记录
+	 */
+	void onActivityResumed() {
+		ClassLoadTrace t = trace;
+		if (t != null) {
+			trace = null;
+			t.saveAsync(PluginLayout.getClassTraceFile(thisPlugin.getId()));
+		}
+	}
+
+	/**
+	 * @return 共用的 support 库加载器，使用插件自己的副本时返回 null
+	 */
+	private ClassLoader getSupportLoader() {
+		if (!supportLoaderChosen) {
+			synchronized (this) {
+				if (!supportLoaderChosen) {
+					DexClassIndex index = classIndex;
+					PluginManager mgr = PluginManager.getInstance();
+					if (index != null && mgr.isShareSupportLibrary()) {
+						supportLoader = mgr.getSharedLibraries()
+								.getSupportLoader(index.getSupportFingerprint());
+					}
+					if (supportLoader != null) {
+						Log.i(tag, "use shared support library");
+					}
+					supportLoaderChosen = true;
+				}
+			}
+		}
+		return supportLoader;
+	}
+
+	/**
+	 * @return 类索引还没建立时返回 null
+	 */
+	DexClassIndex getClassIndex() {
+		return classIndex;
+	}
+
+	/**
+	 * @return 插件的dex中是否可能有这个类(类索引还没建立时返回 true)
+	 */
+	boolean mayContain(String className) {
+		DexClassIndex index = classIndex;
+		return index == null || index.contains(className);
+	}
+
+	static boolean isInMemoryProxySupported() {
+		return android.os.Build.VERSION.SDK_INT >= 26
+				&& PluginManager.getInstance().isProxyInMemory();
+	}
+
+	/**
+	 * 通过反射创建 InMemoryDexClassLoader(编译时的SDK中没有这个类)
+	 * <p>
+	 * 多个dex需要 Android 8.1 的 ByteBuffer[] 构造方法
+	 */
+	private ClassLoader newInMemoryDexClassLoader(List<byte[]> dexes,
+			ClassLoader parent) {
+		try {
+			Class<?> clazz = Class.forName("dalvik.system.InMemoryDexClassLoader");
+			if (dexes.size() == 1) {
+				return (ClassLoader) clazz.getConstructor(ByteBuffer.class,
+						ClassLoader.class).newInstance(
+						ByteBuffer.wrap(dexes.get(0)), parent);
+			}
+			if (android.os.Build.VERSION.SDK_INT < 27) {
+				return null;
+			}
+			ByteBuffer[] buffers = new ByteBuffer[dexes.size()];
+			for (int i = 0; i < buffers.length; i++) {
+				buffers[i] = ByteBuffer.wrap(dexes.get(i));
+			}
+			return (ClassLoader) clazz.getConstructor(ByteBuffer[].class,
+					ClassLoader.class).newInstance(buffers, parent);
+		} catch (Exception e) {
+			Log.w(tag, "InMemoryDexClassLoader unavailable: " + e);
+			return null;
+		}
+	}
+
+	/**
+	 * 内存中的代理类加载器的父加载器：代理类只能由子加载器定义，其余委托给插件类加载器
+	 */
+	private static final class ProxyFilterClassLoader extends ClassLoader {
+		ProxyFilterClassLoader(ClassLoader pluginLoader) {
+			super(pluginLoader);
+		}
+
+		@Override
+		protected Class<?> loadClass(String name, boolean resolve)
+				throws ClassNotFoundException {
+			if (ActivityOverider.isProxyClassName(name)) {
+				throw new ClassNotFoundException(name);
+			}
+			return super.loadClass(name, resolve);
+		}
+	}
+
+	@Override
+	protected Class<?> findClass(String name) throws ClassNotFoundException {
+		if (!ClassLoadingMetrics.isEnabled()) {
+			return findClassInDex(name);
+		}
+		long start = System.nanoTime();
+		try {
+			Class<?> c = findClassInDex(name);
+			metrics.increment(ClassLoadingMetrics.Counter.DEFINED);
+			return c;
+		} catch (ClassNotFoundException e) {
+			metrics.increment(ClassLoadingMetrics.Counter.FIND_CLASS_FAILURES);
+			throw e;
+		} finally {
+			metrics.record(ClassLoadingMetrics.Timer.FIND_CLASS,
+					System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Dalvik 上主dex中没有的类：打开类索引指出的次级dex后再找一次
+	 */
+	private Class<?> findClassInDex(String name) throws ClassNotFoundException {
+		SecondaryDexes secondary = secondaryDexes;
+		if (secondary == null) {
+			return super.findClass(name);
+		}
+		DexClassIndex index = classIndex;
+		int dex = index == null ? -1 : index.dexOf(name);
+		if (dex > 0 && secondary.openFor(dex)) {
+			onDexAdded();
+		}
+		try {
+			return super.findClass(name);
+		} catch (ClassNotFoundException e) {
+			// 没有类索引时不知道类在哪个dex，打开全部次级dex
+			if (index == null && secondary.openFor(-1)) {
+				onDexAdded();
+				return super.findClass(name);
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * 新的dex可能包含之前找不到的类
+	 */
+	private void onDexAdded() {
+		clearMissingClasses();
+		FrameworkClassLoader framework = PluginManager.getInstance()
+				.getFrameworkClassLoader();
+		if (framework != null) {
+			framework.onPluginLoaded(thisPlugin.getId());
+		}
+	}
+
+	void clearMissingClasses() {
+		missingClasses.clear();
+	}
+
+	/**
+	 * 每个类名一个锁：不同的类可以并行加载，同一个类不会重复定义。
+	 * <p>
+	 * 不用固定数量的分段锁：加载A时会在锁内加载父类B，两个线程按相反顺序拿到同一对分段锁就会死锁
+	 */
+	protected Object getClassLoadingLock(String name) {
+		Object lock = classLoadingLocks.get(name);
+		if (lock == null) {
+			lock = new Object();
+			Object old = classLoadingLocks.putIfAbsent(name, lock);
+			if (old != null) {
+				lock = old;
+			}
+		}
+		return lock;
 	}
 	
     private  Class<?>  findByParent(String name,boolean throwEx)throws ClassNotFoundException{
+    	boolean metered = ClassLoadingMetrics.isEnabled();
+    	long start = metered ? System.nanoTime() : 0;
     	Class<?> c =null;
     	try {
 			ClassLoader parent = getParent();
@@ -91,41 +468,158 @@ class PluginClassLoader extends DexClassLoader {
 					parent = parent.getParent();
 				}
 				if (parent != null) {
-					c = parent.loadClass(name);
+					HostExportPolicy policy = PluginManager.getInstance()
+							.getHostExportPolicy();
+					if (policy == null || policy.isExported(name)) {
+						c = parent.loadClass(name);
+					} else {
+						// 宿主没有开放的类：只找系统类，不遍历宿主的dex
+						if (metered) {
+							metrics.increment(ClassLoadingMetrics.Counter.PARENT_FILTERED);
+						}
+						c = Class.forName(name, false, parent.getParent());
+					}
 				}
 			}
 		} catch (ClassNotFoundException e) {
+			if (metered) {
+				metrics.increment(ClassLoadingMetrics.Counter.PARENT_NOT_FOUND);
+			}
 			if(throwEx){
 				throw e;
 			}
+		} finally {
+			if (metered) {
+				if (c != null) {
+					metrics.increment(ClassLoadingMetrics.Counter.PARENT_FOUND);
+				}
+				metrics.record(ClassLoadingMetrics.Timer.PARENT,
+						System.nanoTime() - start);
+			}
 		}
     	return c;
     }
+
 	protected Class<?> loadClass(String name, boolean resolve)
 			throws ClassNotFoundException {
-		synchronized (getClassLoadingLock(name)) {
-			// First, check if the class has already been loaded
-			Class<?> c = findLoadedClass(name);
-			if (c == null) {
-				if(name.startsWith("android.support.")){
-					try {
-						c = findClass(name);
-					} catch (ClassNotFoundException e) {
-					}
-					if (c == null) {
-						c = findByParent(name, true);
-					}
-				}else{
-					c = findByParent(name, false);
-					if (c == null) {
-						c = findClass(name);
-					}
-				}
+		if (!ClassLoadingMetrics.isEnabled()) {
+			return loadClass(name, resolve, null);
+		}
+		long start = System.nanoTime();
+		metrics.increment(ClassLoadingMetrics.Counter.LOAD_REQUESTS);
+		try {
+			return loadClass(name, resolve, metrics);
+		} catch (ClassNotFoundException e) {
+			metrics.increment(ClassLoadingMetrics.Counter.NOT_FOUND);
+			throw e;
+		} finally {
+			// 包括在锁内加载父类等嵌套的加载
+			metrics.record(ClassLoadingMetrics.Timer.LOAD, System.nanoTime()
+					- start);
+		}
+	}
+
+	/**
+	 * @param m
+	 *            - 统计关闭时为 null
+	 */
+	private Class<?> loadClass(String name, boolean resolve,
+			ClassLoadingMetrics m) throws ClassNotFoundException {
+		// 已加载的类不需要加锁
+		Class<?> c = findLoadedClass(name);
+		if (c != null) {
+			if (m != null) {
+				m.increment(ClassLoadingMetrics.Counter.LOADED_HITS);
 			}
 			if (resolve) {
 				resolveClass(c);
 			}
 			return c;
 		}
+		if (missingClasses.contains(name)) {
+			if (m != null) {
+				m.increment(ClassLoadingMetrics.Counter.MISSING_CACHE_HITS);
+			}
+			throw MissingClassCache.newException(name);
+		}
+		Object lock = getClassLoadingLock(name);
+		try {
+			synchronized (lock) {
+				c = loadClassLocked(name, resolve);
+			}
+			ClassLoadTrace t = trace;
+			if (t != null && c.getClassLoader() == this) {
+				t.add(name);
+			}
+			return c;
+		} catch (ClassNotFoundException e) {
+			missingClasses.add(name);
+			throw e;
+		} finally {
+			// 类定义之后不再需要这个锁；仍在等待旧锁的线程进入后会通过 findLoadedClass 拿到同一个类
+			classLoadingLocks.remove(name, lock);
+		}
+	}
+
+	private Class<?> loadClassLocked(String name, boolean resolve)
+			throws ClassNotFoundException {
+		// First, check if the class has already been loaded
+		Class<?> c = findLoadedClass(name);
+		if (c == null) {
+			if(name.startsWith(SharedLibraries.SUPPORT_PREFIX)){
+				// R 类总是用插件自己的，资源id属于插件
+				ClassLoader shared = SharedLibraries.isSharable(name) ? getSupportLoader()
+						: null;
+				try {
+					c = shared != null ? shared.loadClass(name) : findClass(name);
+				} catch (ClassNotFoundException e) {
+				}
+				if (c == null) {
+					c = findByParent(name, true);
+				}
+			}else{
+				c = loadByIndex(name);
+			}
+		}
+		if (resolve) {
+			resolveClass(c);
+		}
+		return c;
+	}
+
+	/**
+	 * 有类索引时直接决定去哪里加载：插件中没有的类只问父加载器；
+	 * 能确定父加载器链中没有的插件类(见 {@link PluginManager#isAbsentFromParent})直接 findClass，
+	 * 都不需要通过捕获 ClassNotFoundException 来试探。其他类仍然父加载器优先
+	 */
+	private Class<?> loadByIndex(String name) throws ClassNotFoundException {
+		DexClassIndex pluginIndex = classIndex;
+		if (pluginIndex != null && !DexClassIndex.isSystemClass(name)) {
+			if (!pluginIndex.contains(name)) {
+				if (ClassLoadingMetrics.isEnabled()) {
+					metrics.increment(ClassLoadingMetrics.Counter.INDEX_TO_PARENT);
+				}
+				return findByParent(name, true);
+			}
+			if (PluginManager.getInstance().isAbsentFromParent(name)) {
+				if (ClassLoadingMetrics.isEnabled()) {
+					metrics.increment(ClassLoadingMetrics.Counter.INDEX_TO_PLUGIN);
+				}
+				try {
+					return findClass(name);
+				} catch (ClassNotFoundException e) {
+					// 哈希冲突
+					return findByParent(name, true);
+				}
+			}
+		}
+		if (ClassLoadingMetrics.isEnabled()) {
+			metrics.increment(ClassLoadingMetrics.Counter.PROBED);
+		}
+		Class<?> c = findByParent(name, false);
+		if (c == null) {
+			c = findClass(name);
+		}
+		return c;
 	}
 }
@@ -0,0 +1,332 @@
+/*
+ * Copyright (C) 2015 HouKx <hkx.aidream@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package androidx.pluginmgr;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * zip条目级别的插件增量包
+ * <p>
+ * 增量包本身是一个zip：
+ *
+ * <pre>
+ * delta.properties     基础apk与目标apk的 SHA-256、目标条目的顺序与时间
+ * data/&lt;name&gt;          有变化或新增的条目，保持目标apk中的压缩数据不变
+ * </pre>
+ *
+ * 应用时按目标顺序逐个条目原样复制(未变化的取自已安装的apk，变化的取自增量包)，
+ * 不解压也不重新压缩，由 {@link ZipRawWriter} 写出，因此结果是确定的，可以用 SHA-256 校验。
+ * <p>
+ * 注意结果是目标apk的"规范形式"(条目数据相同，文件布局可能不同)，v1(jar)签名仍然有效，
+ * apk 签名方案 v2 的整体签名则不再适用，插件加载不依赖它。
+ * 生成增量时的 base 必须与设备上已安装的那份apk逐字节相同(首次安装的原始apk，或上一次应用增量的结果)。
+ */
+final class PluginDelta {
+	static final String FORMAT = "1";
+	static final String ENTRY_PROPERTIES = "delta.properties";
+	static final String DATA_PREFIX = "data/";
+
+	private static final String KEY_FORMAT = "format";
+	private static final String KEY_BASE_SHA256 = "base.sha256";
+	private static final String KEY_TARGET_SHA256 = "target.sha256";
+	private static final String KEY_TARGET_SIZE = "target.size";
+	private static final String KEY_COUNT = "entry.count";
+	private static final String KEY_ENTRY = "entry.";
+	private static final String KEY_TIME = "time.";
+
+	/**
+	 * 应用增量的结果
+	 */
+	static final class Result {
+		final String digest;
+		final long size;
+		/**
+		 * 新增、删除或内容有变化的条目名
+		 */
+		final Set<String> changedEntries;
+		/**
+		 * 从增量包中读取的字节数
+		 */
+		final long patchBytes;
+
+		Result(String digest, long size, Set<String> changedEntries,
+				long patchBytes) {
+			this.digest = digest;
+			this.size = size;
+			this.changedEntries = Collections.unmodifiableSet(changedEntries);
+			this.patchBytes = patchBytes;
+		}
+
+		boolean isManifestChanged() {
+			return changedEntries.contains(XmlManifestReader.DEFAULT_XML);
+		}
+
+		boolean isDexChanged() {
+			for (String name : changedEntries) {
+				if (name.startsWith("classes") && name.endsWith(".dex")
+						&& name.indexOf('/') < 0) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		boolean isLibChanged() {
+			for (String name : changedEntries) {
+				if (name.startsWith("lib/")) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	private PluginDelta() {
+	}
+
+	/**
+	 * 生成从 base 到 target 的增量包(在构建端使用)
+	 *
+	 * @return 增量包中目标apk规范形式的 SHA-256
+	 */
+	static String createPatch(File base, File target, File patchFile)
+			throws IOException {
+		PluginZipFile baseZip = new PluginZipFile(base);
+		PluginZipFile targetZip = null;
+		try {
+			targetZip = new PluginZipFile(target);
+			Properties props = new Properties();
+			props.setProperty(KEY_FORMAT, FORMAT);
+			props.setProperty(KEY_BASE_SHA256, sha256(base));
+
+			// 先计算目标的规范形式的摘要，不落盘
+			MessageDigest md = newDigest();
+			CountingOutputStream counter = new CountingOutputStream();
+			ZipRawWriter canonical = new ZipRawWriter(new DigestOutputStream(
+					counter, md));
+			int i = 0;
+			for (PluginZipFile.Entry e : targetZip.entries()) {
+				canonical.copyEntry(targetZip, e);
+				props.setProperty(KEY_ENTRY + i, e.name);
+				props.setProperty(KEY_TIME + i, Integer.toHexString(e.dosTime));
+				i++;
+			}
+			canonical.finish();
+			props.setProperty(KEY_COUNT, String.valueOf(i));
+			props.setProperty(KEY_TARGET_SHA256,
+					FileUtil.toHexString(md.digest()));
+			props.setProperty(KEY_TARGET_SIZE, String.valueOf(counter.count));
+
+			ZipRawWriter patch = new ZipRawWriter(new BufferedOutputStream(
+					new FileOutputStream(patchFile), IoPools.BUFFER_SIZE));
+			try {
+				ByteArrayOutputStream bos = new ByteArrayOutputStream();
+				props.store(bos, null);
+				byte[] data = bos.toByteArray();
+				CRC32 crc = new CRC32();
+				crc.update(data);
+				patch.addRawEntry(ENTRY_PROPERTIES, ZipEntry.STORED,
+						crc.getValue(), data.length, data.length, 0,
+						new ByteArrayInputStream(data));
+				for (PluginZipFile.Entry e : targetZip.entries()) {
+					if (!isSameRaw(baseZip.getEntry(e.name), e)) {
+						patch.copyEntry(targetZip, e, DATA_PREFIX + e.name,
+								e.dosTime);
+					}
+				}
+				patch.finish();
+			} finally {
+				patch.close();
+			}
+			return props.getProperty(KEY_TARGET_SHA256);
+		} finally {
+			baseZip.close();
+			if (targetZip != null) {
+				targetZip.close();
+			}
+		}
+	}
+
+	/**
+	 * 把增量包应用到已安装的apk上，结果写到 out
+	 *
+	 * @param baseSha256
+	 *            - 已安装apk的 SHA-256，为 null 时现场计算
+	 * @throws ZipException
+	 *             增量包不匹配或结果校验失败，此时 out 的内容无效
+	 */
+	static Result apply(File base, String baseSha256, File patchFile, File out)
+			throws IOException {
+		PluginZipFile patchZip = new PluginZipFile(patchFile);
+		PluginZipFile baseZip = null;
+		try {
+			Properties props = readProperties(patchZip);
+			if (!FORMAT.equals(props.getProperty(KEY_FORMAT))) {
+				throw new ZipException("unsupported delta format: "
+						+ props.getProperty(KEY_FORMAT));
+			}
+			if (baseSha256 == null) {
+				baseSha256 = sha256(base);
+			}
+			if (!baseSha256.equalsIgnoreCase(props
+					.getProperty(KEY_BASE_SHA256))) {
+				throw new ZipException("delta does not apply to " + base
+						+ ": base sha256 " + baseSha256 + " != "
+						+ props.getProperty(KEY_BASE_SHA256));
+			}
+			baseZip = new PluginZipFile(base);
+			int count = Integer.parseInt(props.getProperty(KEY_COUNT, "-1"));
+			if (count < 0) {
+				throw new ZipException("bad delta: no entries");
+			}
+
+			MessageDigest md = newDigest();
+			Set<String> changed = new HashSet<String>();
+			Set<String> targetNames = new HashSet<String>();
+			long patchBytes = 0;
+			ZipRawWriter writer = new ZipRawWriter(new DigestOutputStream(
+					new BufferedOutputStream(new FileOutputStream(out),
+							IoPools.BUFFER_SIZE), md));
+			try {
+				for (int i = 0; i < count; i++) {
+					String name = props.getProperty(KEY_ENTRY + i);
+					int dosTime = (int) Long.parseLong(
+							props.getProperty(KEY_TIME + i, "0"), 16);
+					if (name == null) {
+						throw new ZipException("bad delta: missing entry " + i);
+					}
+					targetNames.add(name);
+					PluginZipFile.Entry baseEntry = baseZip.getEntry(name);
+					PluginZipFile.Entry patchEntry = patchZip
+							.getEntry(DATA_PREFIX + name);
+					if (patchEntry != null) {
+						writer.copyEntry(patchZip, patchEntry, name, dosTime);
+						patchBytes += patchEntry.compressedSize;
+						if (!patchEntry.sameContent(baseEntry)) {
+							changed.add(name);
+						}
+					} else if (baseEntry != null) {
+						writer.copyEntry(baseZip, baseEntry, name, dosTime);
+					} else {
+						throw new ZipException("bad delta: " + name
+								+ " is neither in base nor in delta");
+					}
+				}
+				writer.finish();
+			} finally {
+				writer.close();
+			}
+			for (PluginZipFile.Entry e : baseZip.entries()) {
+				if (!targetNames.contains(e.name)) {
+					changed.add(e.name);
+				}
+			}
+			String digest = FileUtil.toHexString(md.digest());
+			String expected = props.getProperty(KEY_TARGET_SHA256);
+			if (!digest.equalsIgnoreCase(expected)) {
+				throw new ZipException("delta result mismatch: sha256 "
+						+ digest + " != " + expected);
+			}
+			return new Result(digest, writer.getBytesWritten(), changed,
+					patchBytes);
+		} finally {
+			patchZip.close();
+			if (baseZip != null) {
+				baseZip.close();
+			}
+		}
+	}
+
+	private static Properties readProperties(PluginZipFile patchZip)
+			throws IOException {
+		PluginZipFile.Entry e = patchZip.getEntry(ENTRY_PROPERTIES);
+		if (e == null) {
+			throw new ZipException("not a plugin delta: "
+					+ patchZip.getFile());
+		}
+		Properties props = new Properties();
+		InputStream in = patchZip.getInputStream(e);
+		try {
+			props.load(in);
+		} finally {
+			in.close();
+		}
+		return props;
+	}
+
+	/**
+	 * 原样复制base中的条目能否得到target中的条目
+	 */
+	private static boolean isSameRaw(PluginZipFile.Entry base,
+			PluginZipFile.Entry target) {
+		return target.sameContent(base) && base.method == target.method
+				&& base.compressedSize == target.compressedSize;
+	}
+
+	static String sha256(File f) throws IOException {
+		StreamCopier copier = new StreamCopier();
+		InputStream in = new FileInputStream(f);
+		try {
+			copier.copy(in, new CountingOutputStream());
+		} finally {
+			in.close();
+		}
+		return copier.getDigestHex();
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance(StreamCopier.DEFAULT_DIGEST);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * 只计数、丢弃数据的输出流
+	 */
+	private static final class CountingOutputStream extends OutputStream {
+		long count;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+}
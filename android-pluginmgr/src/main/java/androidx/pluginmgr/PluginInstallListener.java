@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2015 HouKx <hkx.aidream@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package androidx.pluginmgr;
+
+/**
+ * 插件安装(复制apk到私有目录)进度回调
+ * <p>
+ * 在调用 loadPlugin 的线程中回调
+ */
+public interface PluginInstallListener {
+
+	/**
+	 * @param pluginId
+	 *            - 插件id
+	 * @param bytesCopied
+	 *            - 已复制字节数
+	 * @param totalBytes
+	 *            - apk总字节数
+	 * @param bytesPerSecond
+	 *            - 吞吐量(字节/秒)
+	 */
+	public void onCopyProgress(String pluginId, long bytesCopied,
+			long totalBytes, long bytesPerSecond);
+
+	/**
+	 * 复制完成
+	 * 
+	 * @param pluginId
+	 *            - 插件id
+	 * @param sha256
+	 *            - apk 的 SHA-256(十六进制)
+	 */
+	public void onCopyFinished(String pluginId, String sha256);
+}
@@ -0,0 +1,362 @@
+/*
+ * Copyright (C) 2015 HouKx <hkx.aidream@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package androidx.pluginmgr;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import android.app.Activity;
+import android.app.Instrumentation;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.ActivityInfo;
+import android.os.Bundle;
+import android.os.IBinder;
+import android.util.Log;
+
+/**
+ * 替换 ActivityThread 的 Instrumentation，按 intent 中的插件id与类名创建插件Activity
+ * <p>
+ * stub 启动引擎：系统要创建占位Activity(见 {@link StubActivityPool})时，改为通过插件类加载器创建真正的插件Activity，
+ * 并在 onCreate 之前换上插件的 Context、资源、Application 与 ActivityInfo，不需要生成任何代理类。
+ * 插件Activity中的 startActivity 在 execStartActivity 中改写目标。
+ * <p>
+ * 加载第一个插件时安装，宿主不使用插件时不替换。
+ * 代理方式启动的 intent 同样按其中的插件id与类名，用对应插件的类加载器加载代理类，
+ * 连续启动多个插件Activity时不会错位。
+ * <p>
+ * 与代理方式不同，插件Activity的 getComponentName() 返回的是占位的类名
+ */
+class PluginInstrumentation extends Instrumentation {
+	private static final String tag = "PluginInstrumentation";
+	/**
+	 * 启动插件Activity的 intent 中携带的插件id与Activity类名
+	 */
+	static final String EXTRA_PLUGIN_ID = "androidx.pluginmgr.extra.PLUGIN_ID";
+	static final String EXTRA_ACTIVITY = "androidx.pluginmgr.extra.ACTIVITY";
+	private static volatile boolean installed;
+
+	private final Instrumentation base;
+	/**
+	 * 由本引擎创建的插件Activity
+	 */
+	private final Map<Activity, Record> records = new WeakHashMap<Activity, Record>();
+
+	private static final class Record {
+		final PlugInfo plugin;
+		final ActivityInfo activityInfo;
+		final String stubName;
+
+		Record(PlugInfo plugin, ActivityInfo activityInfo, String stubName) {
+			this.plugin = plugin;
+			this.activityInfo = activityInfo;
+			this.stubName = stubName;
+		}
+	}
+
+	private PluginInstrumentation(Instrumentation base) {
+		this.base = base;
+	}
+
+	/**
+	 * 安装到当前进程的 ActivityThread(只安装一次)
+	 *
+	 * @return 是否可用
+	 */
+	static boolean install() {
+		if (installed) {
+			return true;
+		}
+		synchronized (PluginInstrumentation.class) {
+			if (!installed) {
+				installLocked();
+			}
+		}
+		return installed;
+	}
+
+	private static void installLocked() {
+		try {
+			Object thread = Class.forName("android.app.ActivityThread")
+					.getMethod("currentActivityThread").invoke(null);
+			Instrumentation base = ReflectionUtils.getFieldValue(thread,
+					"mInstrumentation");
+			if (!(base instanceof PluginInstrumentation)) {
+				PluginInstrumentation inst = new PluginInstrumentation(base);
+				// 复制原对象的状态，继承来的方法才能照常工作
+				for (Field f : Instrumentation.class.getDeclaredFields()) {
+					if (Modifier.isStatic(f.getModifiers())) {
+						continue;
+					}
+					f.setAccessible(true);
+					f.set(inst, f.get(base));
+				}
+				ReflectionUtils.setFieldValue(thread, "mInstrumentation", inst);
+			}
+			installed = true;
+			Log.i(tag, "installed");
+		} catch (Throwable e) {
+			Log.e(tag, "install failed: " + Log.getStackTraceString(e));
+		}
+	}
+
+	private Record getRecord(Activity activity) {
+		synchronized (records) {
+			return records.get(activity);
+		}
+	}
+
+	@Override
+	public Activity newActivity(ClassLoader cl, String className, Intent intent)
+			throws InstantiationException, IllegalAccessException,
+			ClassNotFoundException {
+		boolean proxy = ActivityOverider.targetClassName.equals(className);
+		if (intent == null || !proxy && !StubActivityPool.isStubName(className)) {
+			return super.newActivity(cl, className, intent);
+		}
+		PluginManager mgr = PluginManager.getInstance();
+		intent.setExtrasClassLoader(mgr.getFrameworkClassLoader());
+		String pluginId = intent.getStringExtra(EXTRA_PLUGIN_ID);
+		String actName = intent.getStringExtra(EXTRA_ACTIVITY);
+		PlugInfo plugin = mgr.getPluginById(pluginId);
+		if (plugin == null || actName == null) {
+			if (proxy) {
+				// 不是通过 PluginManager 启动的，由 FrameworkClassLoader 按最近一次启动加载
+				return super.newActivity(cl, className, intent);
+			}
+			throw new ClassNotFoundException(className + " -> " + pluginId
+					+ '/' + actName);
+		}
+		intent.setExtrasClassLoader(plugin.getClassLoader());
+		if (proxy) {
+			// 按 intent 中的插件与类名加载代理，不依赖共享的状态
+			return (Activity) plugin.getClassLoader()
+					.loadActivityClass(actName).newInstance();
+		}
+		Activity activity = (Activity) plugin.getClassLoader()
+				.loadClass(actName).newInstance();
+		synchronized (records) {
+			records.put(activity, new Record(plugin,
+					plugin.findActivityByClassName(actName), className));
+		}
+		mgr.getStubActivityPool().onActivityCreated(className, pluginId,
+				actName);
+		return activity;
+	}
+
+	@Override
+	public void callActivityOnCreate(Activity activity, Bundle icicle) {
+		Record r = getRecord(activity);
+		if (r != null) {
+			attachPluginContext(activity, r);
+		}
+		super.callActivityOnCreate(activity, icicle);
+		if (r != null) {
+			PluginActivityLifeCycleCallback callback = PluginManager
+					.getInstance().getPluginActivityLifeCycleCallback();
+			if (callback != null) {
+				callback.onCreate(r.plugin.getId(), activity);
+			}
+		}
+	}
+
+	private void attachPluginContext(Activity activity, Record r) {
+		PlugInfo plugin = r.plugin;
+		try {
+			if (plugin.getApplication() == null) {
+				PluginManager.getInstance().initPluginApplication(plugin, null);
+			}
+			ReflectionUtils.setFieldValue(activity, "mBase",
+					new PluginActivityWrapper(activity.getBaseContext(),
+							plugin.appWrapper, plugin));
+			try {
+				// ContextThemeWrapper 在 Android 4.2 以后缓存了资源
+				ReflectionUtils.setFieldValue(activity, "mResources",
+						plugin.getResources());
+			} catch (NoSuchFieldException e) {
+			}
+			ReflectionUtils.setFieldValue(activity, "mApplication",
+					plugin.getApplication());
+			ActivityInfo actInfo = r.activityInfo;
+			if (actInfo != null) {
+				actInfo.applicationInfo = plugin.getPackageInfo().applicationInfo;
+				ReflectionUtils.setFieldValue(activity, "mActivityInfo", actInfo);
+				int theme = actInfo.getThemeResource();
+				if (theme != 0) {
+					activity.setTheme(theme);
+				}
+			}
+		} catch (Exception e) {
+			Log.e(tag, Log.getStackTraceString(e));
+		}
+	}
+
+	@Override
+	public void callActivityOnStart(Activity activity) {
+		super.callActivityOnStart(activity);
+		Record r = getRecord(activity);
+		PluginActivityLifeCycleCallback callback = getCallback(r);
+		if (callback != null) {
+			callback.onStart(r.plugin.getId(), activity);
+		}
+	}
+
+	@Override
+	public void callActivityOnRestart(Activity activity) {
+		super.callActivityOnRestart(activity);
+		Record r = getRecord(activity);
+		PluginActivityLifeCycleCallback callback = getCallback(r);
+		if (callback != null) {
+			callback.onRestart(r.plugin.getId(), activity);
+		}
+	}
+
+	@Override
+	public void callActivityOnResume(Activity activity) {
+		super.callActivityOnResume(activity);
+		Record r = getRecord(activity);
+		if (r != null) {
+			r.plugin.getClassLoader().onActivityResumed();
+		}
+		PluginActivityLifeCycleCallback callback = getCallback(r);
+		if (callback != null) {
+			callback.onResume(r.plugin.getId(), activity);
+		}
+	}
+
+	@Override
+	public void callActivityOnPause(Activity activity) {
+		super.callActivityOnPause(activity);
+		Record r = getRecord(activity);
+		PluginActivityLifeCycleCallback callback = getCallback(r);
+		if (callback != null) {
+			callback.onPause(r.plugin.getId(), activity);
+		}
+	}
+
+	@Override
+	public void callActivityOnStop(Activity activity) {
+		super.callActivityOnStop(activity);
+		Record r = getRecord(activity);
+		PluginActivityLifeCycleCallback callback = getCallback(r);
+		if (callback != null) {
+			callback.onStop(r.plugin.getId(), activity);
+		}
+	}
+
+	@Override
+	public void callActivityOnDestroy(Activity activity) {
+		super.callActivityOnDestroy(activity);
+		Record r;
+		synchronized (records) {
+			r = records.remove(activity);
+		}
+		if (r == null) {
+			return;
+		}
+		PluginManager.getInstance().getStubActivityPool()
+				.onActivityDestroyed(r.stubName);
+		PluginActivityLifeCycleCallback callback = getCallback(r);
+		if (callback != null) {
+			callback.onDestroy(r.plugin.getId(), activity);
+		}
+	}
+
+	private static PluginActivityLifeCycleCallback getCallback(Record r) {
+		if (r == null) {
+			return null;
+		}
+		return PluginManager.getInstance().getPluginActivityLifeCycleCallback();
+	}
+
+	/**
+	 * Activity.startActivityForResult 调用的隐藏方法(Android 4.1+)，插件Activity发出的 intent 在这里改写
+	 */
+	public ActivityResult execStartActivity(Context who, IBinder contextThread,
+			IBinder token, Activity target, Intent intent, int requestCode,
+			Bundle options) {
+		redirect(target, intent);
+		try {
+			return (ActivityResult) invokeBase("execStartActivity",
+					new Class<?>[] { Context.class, IBinder.class,
+							IBinder.class, Activity.class, Intent.class,
+							int.class, Bundle.class }, who, contextThread,
+					token, target, intent, requestCode, options);
+		} catch (RuntimeException e) {
+			releaseStub(intent);
+			throw e;
+		}
+	}
+
+	/**
+	 * Android 4.1 以前的版本
+	 */
+	public ActivityResult execStartActivity(Context who, IBinder contextThread,
+			IBinder token, Activity target, Intent intent, int requestCode) {
+		redirect(target, intent);
+		try {
+			return (ActivityResult) invokeBase("execStartActivity",
+					new Class<?>[] { Context.class, IBinder.class,
+							IBinder.class, Activity.class, Intent.class,
+							int.class }, who, contextThread, token, target,
+					intent, requestCode);
+		} catch (RuntimeException e) {
+			releaseStub(intent);
+			throw e;
+		}
+	}
+
+	/**
+	 * 启动失败(找不到Activity、没有权限等)时归还分配的占位
+	 */
+	private static void releaseStub(Intent intent) {
+		ComponentName comp = intent.getComponent();
+		if (comp == null || !StubActivityPool.isStubName(comp.getClassName())) {
+			return;
+		}
+		PluginManager.getInstance().getStubActivityPool().release(
+				comp.getClassName(), intent.getStringExtra(EXTRA_PLUGIN_ID),
+				intent.getStringExtra(EXTRA_ACTIVITY));
+	}
+
+	private void redirect(Activity target, Intent intent) {
+		Record r = target == null ? null : getRecord(target);
+		if (r != null) {
+			ActivityOverider.redirectIntent(r.plugin, intent);
+		}
+	}
+
+	private Object invokeBase(String name, Class<?>[] types, Object... args) {
+		try {
+			Method m = Instrumentation.class.getDeclaredMethod(name, types);
+			m.setAccessible(true);
+			return m.invoke(base, args);
+		} catch (InvocationTargetException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new RuntimeException(cause);
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2015 HouKx <hkx.aidream@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package androidx.pluginmgr;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import android.util.Log;
+
+/**
+ * 插件的安装日志
+ * <p>
+ * 每个插件目录下一个 journal 文件，记录布局版本、安装状态、apk 的来源与摘要，
+ * 以及每个派生文件的大小和摘要。启动时读一个文件即可判断插件是否完整可用；
+ * 状态不是 {@link #STATE_COMPLETE} 说明上次安装被中断，派生文件会被确定地清理后重建。
+ * <p>
+ * 写入时先写临时文件再改名，保证 journal 本身不会半写。
+ */
+class PluginJournal {
+	private static final String tag = "PluginJournal";
+
+	static final String STATE_INSTALLING = "installing";
+	static final String STATE_COMPLETE = "complete";
+	static final String STATE_UNINSTALLED = "uninstalled";
+
+	private static final String KEY_LAYOUT = "layout";
+	private static final String KEY_STATE = "state";
+	private static final String KEY_APK = "apk";
+	private static final String KEY_APK_SHA256 = "apk.sha256";
+	private static final String KEY_APK_SIZE = "apk.size";
+	private static final String KEY_SOURCE = "source";
+	private static final String KEY_SOURCE_SIZE = "source.size";
+	private static final String KEY_SOURCE_MTIME = "source.mtime";
+	private static final String ARTIFACT_PREFIX = "artifact.";
+
+	/**
+	 * 派生文件记录
+	 */
+	static final class Artifact {
+		final String path;
+		final long size;
+		final String hash;
+
+		Artifact(String path, long size, String hash) {
+			this.path = path;
+			this.size = size;
+			this.hash = hash;
+		}
+	}
+
+	private final String pluginId;
+	private final Properties props;
+
+	PluginJournal(String pluginId) {
+		this(pluginId, new Properties());
+		props.setProperty(KEY_LAYOUT, String.valueOf(PluginLayout.VERSION));
+		props.setProperty(KEY_STATE, STATE_INSTALLING);
+	}
+
+	private PluginJournal(String pluginId, Properties props) {
+		this.pluginId = pluginId;
+		this.props = props;
+	}
+
+	/**
+	 * @return 插件的 journal，不存在或已损坏时返回 null
+	 */
+	static PluginJournal read(String pluginId) {
+		File f = PluginLayout.getJournalFile(pluginId);
+		if (!f.isFile()) {
+			return null;
+		}
+		Properties p = new Properties();
+		FileInputStream in = null;
+		try {
+			in = new FileInputStream(f);
+			p.load(in);
+		} catch (Exception e) {
+			Log.w(tag, "unreadable journal: " + f + ", " + e);
+			return null;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+		return new PluginJournal(pluginId, p);
+	}
+
+	/**
+	 * 原子地写入 journal
+	 */
+	synchronized void write() throws IOException {
+		File f = PluginLayout.getJournalFile(pluginId);
+		File tmp = new File(f.getParentFile(), f.getName() + ".tmp");
+		FileOutputStream out = new FileOutputStream(tmp);
+		try {
+			props.store(out, null);
+			out.flush();
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(f)) {
+			tmp.delete();
+			throw new IOException("could not write journal: " + f);
+		}
+	}
+
+	/**
+	 * 写入失败只记录日志，journal 损坏等价于没有安装记录，下次加载会重建
+	 */
+	void writeQuietly() {
+		try {
+			write();
+		} catch (IOException e) {
+			Log.e(tag, Log.getStackTraceString(e));
+		}
+	}
+
+	String getPluginId() {
+		return pluginId;
+	}
+
+	int getLayoutVersion() {
+		try {
+			return Integer.parseInt(props.getProperty(KEY_LAYOUT, "0"));
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	synchronized String getState() {
+		return props.getProperty(KEY_STATE);
+	}
+
+	synchronized void setState(String state) {
+		props.setProperty(KEY_STATE, state);
+	}
+
+	/**
+	 * 布局版本一致且状态为完成
+	 */
+	boolean isComplete() {
+		return getLayoutVersion() == PluginLayout.VERSION
+				&& STATE_COMPLETE.equals(getState());
+	}
+
+	synchronized String getApkName() {
+		return props.getProperty(KEY_APK);
+	}
+
+	synchronized String getApkDigest() {
+		return props.getProperty(KEY_APK_SHA256);
+	}
+
+	synchronized long getApkSize() {
+		return parseLong(props.getProperty(KEY_APK_SIZE));
+	}
+
+	synchronized void setApk(File privateApk, String sha256) {
+		props.setProperty(KEY_APK, privateApk.getName());
+		props.setProperty(KEY_APK_SIZE, String.valueOf(privateApk.length()));
+		if (sha256 != null) {
+			props.setProperty(KEY_APK_SHA256, sha256);
+		} else {
+			props.remove(KEY_APK_SHA256);
+		}
+	}
+
+	/**
+	 * 记录apk的来源，下次加载同一个未改动的来源文件时无需再复制
+	 */
+	synchronized void setSource(File source) {
+		props.setProperty(KEY_SOURCE, source.getAbsolutePath());
+		props.setProperty(KEY_SOURCE_SIZE, String.valueOf(source.length()));
+		props.setProperty(KEY_SOURCE_MTIME,
+				String.valueOf(source.lastModified()));
+	}
+
+	synchronized File getSource() {
+		String path = props.getProperty(KEY_SOURCE);
+		return path == null ? null : new File(path);
+	}
+
+	synchronized boolean isSameSource(File source) {
+		return source.getAbsolutePath().equals(props.getProperty(KEY_SOURCE))
+				&& source.length() == parseLong(props
+						.getProperty(KEY_SOURCE_SIZE))
+				&& source.lastModified() == parseLong(props
+						.getProperty(KEY_SOURCE_MTIME));
+	}
+
+	synchronized void putArtifact(File file, String hash) {
+		String path = PluginLayout.relativize(pluginId, file);
+		props.setProperty(ARTIFACT_PREFIX + path, file.length() + ","
+				+ (hash == null ? "-" : hash));
+	}
+
+	synchronized void removeArtifact(File file) {
+		props.remove(ARTIFACT_PREFIX + PluginLayout.relativize(pluginId, file));
+	}
+
+	synchronized boolean hasArtifact(File file) {
+		return props.containsKey(ARTIFACT_PREFIX
+				+ PluginLayout.relativize(pluginId, file));
+	}
+
+	synchronized Artifact getArtifact(File file) {
+		String path = PluginLayout.relativize(pluginId, file);
+		return toArtifact(path, props.getProperty(ARTIFACT_PREFIX + path));
+	}
+
+	/**
+	 * @return 以指定相对路径前缀开头的派生文件，例如 "lib/"
+	 */
+	synchronized List<Artifact> getArtifacts(String pathPrefix) {
+		List<Artifact> rs = new ArrayList<Artifact>();
+		String prefix = ARTIFACT_PREFIX + (pathPrefix == null ? "" : pathPrefix);
+		for (String key : props.stringPropertyNames()) {
+			if (key.startsWith(prefix)) {
+				String path = key.substring(ARTIFACT_PREFIX.length());
+				rs.add(toArtifact(path, props.getProperty(key)));
+			}
+		}
+		return rs;
+	}
+
+	List<Artifact> getArtifacts() {
+		return getArtifacts(null);
+	}
+
+	synchronized void clearArtifacts() {
+		for (String key : props.stringPropertyNames()) {
+			if (key.startsWith(ARTIFACT_PREFIX)) {
+				props.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * 删除 journal 中记录的所有派生文件以及派生目录，然后清空记录
+	 */
+	synchronized void deleteArtifacts() {
+		for (Artifact a : getArtifacts()) {
+			PluginLayout.resolve(pluginId, a.path).delete();
+		}
+		PluginLayout.deleteDerived(pluginId);
+		clearArtifacts();
+	}
+
+	private static Artifact toArtifact(String path, String value) {
+		if (value == null) {
+			return null;
+		}
+		int sp = value.indexOf(',');
+		long size = parseLong(sp < 0 ? value : value.substring(0, sp));
+		String hash = sp < 0 ? null : value.substring(sp + 1);
+		if ("-".equals(hash)) {
+			hash = null;
+		}
+		return new Artifact(path, size, hash);
+	}
+
+	private static long parseLong(String s) {
+		if (s == null) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(s);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "PluginJournal[ " + pluginId + ", state=" + getState()
+				+ ", layout=" + getLayoutVersion() + ", artifacts="
+				+ getArtifacts().size() + " ]";
+	}
+}
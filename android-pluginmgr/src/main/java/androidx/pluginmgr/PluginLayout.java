@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2015 HouKx <hkx.aidream@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package androidx.pluginmgr;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 插件在磁盘上的目录布局
+ *
+ * <pre>
+ * plugins/
+ *   &lt;apk&gt;                 插件apk的私有副本
+ *   host-classes.idx      宿主apk的类索引(见 DexClassIndex)
+ *   lib-classes/          boot classpath 与宿主 uses-library 的类索引
+ *   shared/               插件之间共用的库(见 SharedLibraries)
+ *   &lt;id&gt;-dir/
+ *     journal             记录布局版本、安装状态与所有派生文件(见 PluginJournal)
+ *     lib/                解压出的 .so
+ *     activities/         代理Activity的dex(每个插件一个，包含所有代理类)
+ *     proxies.sidecar     安装时随apk带来的预生成代理(见 ProxySidecar)，可选
+ *     classes.idx         插件apk的类索引(见 DexClassIndex)
+ *     class_trace         启动时的类加载顺序(见 ClassLoadTrace)，可选
+ *     files/              插件自己的数据，永不清理
+ * </pre>
+ *
+ * 布局有变化时递增 {@link #VERSION}，旧版本的派生文件会在加载时被清理后重建
+ */
+final class PluginLayout {
+	/**
+	 * 当前布局版本
+	 */
+	static final int VERSION = 2;
+	static final String DIR_SUFFIX = "-dir";
+	static final String DIR_LIB = "lib";
+	static final String DIR_ACTIVITIES = "activities";
+	static final String DIR_FILES = "files";
+	static final String DIR_SHARED = "shared";
+	static final String DIR_LIBRARY_CLASS_INDEXES = "lib-classes";
+	static final String FILE_JOURNAL = "journal";
+	static final String FILE_PROXY_SIDECAR = "proxies.sidecar";
+	static final String FILE_CLASS_INDEX = "classes.idx";
+	static final String FILE_HOST_CLASS_INDEX = "host-classes.idx";
+	static final String FILE_CLASS_TRACE = "class_trace";
+	/**
+	 * 可以由apk重新生成的派生目录，中断的安装或布局升级时被删除
+	 */
+	static final String[] DERIVED_DIRS = { DIR_LIB, DIR_ACTIVITIES };
+
+	/**
+	 * 已经确认存在的目录，避免每次调用都 mkdirs
+	 */
+	private static final Map<String, Boolean> createdDirs = new ConcurrentHashMap<String, Boolean>();
+
+	private PluginLayout() {
+	}
+
+	static File getRootDir() {
+		return PluginManager.getInstance().getDexInternalStoragePath();
+	}
+
+	static File getPluginBaseDir(String pluginId) {
+		return ensureDir(new File(getRootDir(), pluginId + DIR_SUFFIX));
+	}
+
+	static File getLibDir(String pluginId) {
+		return new File(getPluginBaseDir(pluginId), DIR_LIB);
+	}
+
+	static File getProxyDir(String pluginId) {
+		return ensureDir(new File(getPluginBaseDir(pluginId), DIR_ACTIVITIES));
+	}
+
+	static File getFilesDir(String pluginId) {
+		return new File(getPluginBaseDir(pluginId), DIR_FILES);
+	}
+
+	static File getJournalFile(String pluginId) {
+		return new File(getPluginBaseDir(pluginId), FILE_JOURNAL);
+	}
+
+	static File getProxySidecarFile(String pluginId) {
+		return new File(getPluginBaseDir(pluginId), FILE_PROXY_SIDECAR);
+	}
+
+	static File getClassIndexFile(String pluginId) {
+		return new File(getPluginBaseDir(pluginId), FILE_CLASS_INDEX);
+	}
+
+	static File getClassTraceFile(String pluginId) {
+		return new File(getPluginBaseDir(pluginId), FILE_CLASS_TRACE);
+	}
+
+	static File getHostClassIndexFile() {
+		return new File(getRootDir(), FILE_HOST_CLASS_INDEX);
+	}
+
+	/**
+	 * 系统jar的类索引，文件名包含路径的哈希，不同目录下的同名jar互不覆盖
+	 */
+	static File getLibraryClassIndexFile(File jar) {
+		return new File(ensureDir(new File(getRootDir(),
+				DIR_LIBRARY_CLASS_INDEXES)), jar.getName() + '-'
+				+ Integer.toHexString(jar.getPath().hashCode()) + ".idx");
+	}
+
+	static File getSharedDir() {
+		return ensureDir(new File(getRootDir(), DIR_SHARED));
+	}
+
+	static File getSharedLibraryFile(String name) {
+		return new File(getSharedDir(), name + ".jar");
+	}
+
+	/**
+	 * @return 派生文件相对于插件目录的路径，用作 journal 中的键
+	 */
+	static String relativize(String pluginId, File artifact) {
+		String base = getPluginBaseDir(pluginId).getAbsolutePath() + '/';
+		String path = artifact.getAbsolutePath();
+		if (path.startsWith(base)) {
+			return path.substring(base.length());
+		}
+		return path;
+	}
+
+	static File resolve(String pluginId, String relativePath) {
+		if (relativePath.startsWith("/")) {
+			return new File(relativePath);
+		}
+		return new File(getPluginBaseDir(pluginId), relativePath);
+	}
+
+	static File ensureDir(File dir) {
+		String key = dir.getAbsolutePath();
+		if (createdDirs.containsKey(key)) {
+			return dir;
+		}
+		if (dir.isDirectory() || dir.mkdirs()) {
+			createdDirs.put(key, Boolean.TRUE);
+		}
+		return dir;
+	}
+
+	/**
+	 * 删除插件的所有派生文件(不包括 files/ 与 journal)
+	 */
+	static void deleteDerived(String pluginId) {
+		File base = getPluginBaseDir(pluginId);
+		for (String d : DERIVED_DIRS) {
+			File dir = new File(base, d);
+			deleteRecursive(dir);
+			forgetDir(dir);
+		}
+	}
+
+	/**
+	 * 目录被删除后调用：忘记它与其下所有子目录，下次使用时重新创建
+	 */
+	static void forgetDir(File dir) {
+		String path = dir.getAbsolutePath();
+		String prefix = path + File.separatorChar;
+		Iterator<String> it = createdDirs.keySet().iterator();
+		while (it.hasNext()) {
+			String key = it.next();
+			if (key.equals(path) || key.startsWith(prefix)) {
+				it.remove();
+			}
+		}
+	}
+
+	static boolean deleteRecursive(File f) {
+		if (f.isDirectory()) {
+			File[] children = f.listFiles();
+			if (children != null) {
+				for (File c : children) {
+					deleteRecursive(c);
+				}
+			}
+		}
+		return !f.exists() || f.delete();
+	}
+}
@@ -18,9 +18,12 @@ package androidx.pluginmgr;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -30,6 +33,9 @@ import android.app.Service;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.pm.ActivityInfo;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
 import android.content.res.AssetManager;
 import android.content.res.Resources;
 import android.util.Log;
@@ -41,6 +47,14 @@ import android.util.Log;
  */
 public class PluginManager implements FileFilter {
 	private static final String tag = "plugmgr";
+	/**
+	 * 启动引擎：为每个插件Activity生成代理类(默认)
+	 */
+	public static final int LAUNCH_ENGINE_PROXY = 0;
+	/**
+	 * 启动引擎：使用宿主预先声明的占位Activity，见 {@link StubActivityPool}
+	 */
+	public static final int LAUNCH_ENGINE_STUB = 1;
 	
 	private static final PluginManager instance = new PluginManager();
 
@@ -51,7 +65,26 @@ public class PluginManager implements FileFilter {
 	private volatile boolean hasInit = false;
 	private File dexInternalStoragePath;
 	private FrameworkClassLoader frameworkClassLoader;
+	private PluginStorageManager storageManager;
+	private ProxyDexScheduler proxyDexScheduler;
+	private volatile boolean precompileProxies = true;
+	private volatile boolean proxyTemplateMode = true;
+	private volatile boolean proxyInMemory = true;
+	private volatile int defaultLaunchEngine = LAUNCH_ENGINE_PROXY;
+	private final Map<String, Integer> launchEngines = new ConcurrentHashMap<String, Integer>();
+	private volatile StubActivityPool stubActivityPool;
+	private volatile DexClassIndex hostClassIndex;
+	/**
+	 * boot classpath 与宿主 uses-library 的类索引，全部建立成功后才不为 null
+	 */
+	private volatile DexClassIndex[] libraryClassIndexes;
+	private SharedLibraries sharedLibraries;
+	private volatile boolean shareSupportLibrary = false;
+	private volatile boolean classLoadProfiling = false;
+	private volatile HostExportPolicy hostExportPolicy;
 	private PluginActivityLifeCycleCallback pluginActivityLifeCycleCallback;
+	private volatile PluginInstallListener pluginInstallListener;
+	private volatile boolean verifyApkOnInstall = true;
 	private volatile Activity actFrom;
 	
 	private PluginManager() {
@@ -102,10 +135,9 @@ public class PluginManager implements FileFilter {
 					"startMainActivity: plug.getMainActivity().activityInfo == null!");
 			return false;
 		}
-		String className = frameworkClassLoader.newActivityClassName(
-				plug.getId(), plug.getMainActivity().activityInfo.name);
-		context.startActivity(new Intent().setComponent(new ComponentName(
-				context, className)));
+		Intent intent = new Intent();
+		setLaunchTarget(intent, plug, plug.getMainActivity().activityInfo.name);
+		context.startActivity(intent);
 		return true;
 	}
 
@@ -148,12 +180,56 @@ public class PluginManager implements FileFilter {
 					"plug intent must set the ComponentName!");
 		}
 		PlugInfo plug = preparePlugForStartActivity(context, plugIdOrPkg);
-		String className = frameworkClassLoader.newActivityClassName(
-				plug.getId(), actName);
 		Log.i(tag, "performStartActivity: " + actName);
-		ComponentName comp = new ComponentName(context, className);
 		intent.setAction(null);
-		intent.setComponent(comp);
+		setLaunchTarget(intent, plug, actName);
+	}
+
+	/**
+	 * 按插件的启动引擎把 intent 指向占位Activity或代理Activity
+	 */
+	void setLaunchTarget(Intent intent, PlugInfo plugin, String actName) {
+		String pluginId = plugin.getId();
+		intent.putExtra(PluginInstrumentation.EXTRA_PLUGIN_ID, pluginId);
+		intent.putExtra(PluginInstrumentation.EXTRA_ACTIVITY, actName);
+		if (getLaunchEngine(pluginId) == LAUNCH_ENGINE_STUB) {
+			String stub = assignStubActivity(plugin, actName);
+			if (stub != null) {
+				intent.setComponent(new ComponentName(context, stub));
+				return;
+			}
+			// 没有合适的占位时退回代理方式
+			Log.w(tag, "no stub activity for " + actName + ", use proxy");
+		}
+		String className = frameworkClassLoader.newActivityClassName(pluginId,
+				actName);
+		intent.setComponent(new ComponentName(context, className));
+	}
+
+	private String assignStubActivity(PlugInfo plugin, String actName) {
+		StubActivityPool pool = getStubActivityPool();
+		if (pool.isEmpty() || !PluginInstrumentation.install()) {
+			return null;
+		}
+		ActivityInfo actInfo = plugin.findActivityByClassName(actName);
+		if (actInfo == null) {
+			return null;
+		}
+		return pool.assign(plugin, actInfo);
+	}
+
+	StubActivityPool getStubActivityPool() {
+		StubActivityPool pool = stubActivityPool;
+		if (pool == null) {
+			synchronized (this) {
+				pool = stubActivityPool;
+				if (pool == null) {
+					pool = new StubActivityPool(context);
+					stubActivityPool = pool;
+				}
+			}
+		}
+		return pool;
 	}
 
 
@@ -168,6 +244,14 @@ public class PluginManager implements FileFilter {
 		dexInternalStoragePath = context
 				.getDir("plugins", Context.MODE_PRIVATE);
 		dexInternalStoragePath.mkdirs();
+		storageManager = new PluginStorageManager(this,
+				dexInternalStoragePath, optimizedDexPath);
+		proxyDexScheduler = new ProxyDexScheduler(dexInternalStoragePath);
+		sharedLibraries = new SharedLibraries(ctx.getClassLoader(),
+				dexOutputPath);
+		if (hostExportPolicy == null) {
+			hostExportPolicy = readHostExportPolicy(ctx);
+		}
 		// change ClassLoader
 		try {
 			Object mPackageInfo = ReflectionUtils.getFieldValue(ctx,
@@ -180,9 +264,114 @@ public class PluginManager implements FileFilter {
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
+		loadHostClassIndexAsync();
 		hasInit = true;
 	}
 
+	private void loadHostClassIndexAsync() {
+		final File hostApk = new File(context.getApplicationInfo().sourceDir);
+		final List<File> libraries = getParentLibraries(context
+				.getApplicationInfo().sharedLibraryFiles);
+		BackgroundExecutor.execute(new Runnable() {
+			public void run() {
+				try {
+					hostClassIndex = DexClassIndex.load(hostApk,
+							PluginLayout.getHostClassIndexFile());
+				} catch (Exception e) {
+					Log.w(tag, "host class index unavailable: " + e);
+				}
+				libraryClassIndexes = loadLibraryClassIndexes(libraries);
+			}
+		});
+	}
+
+	/**
+	 * @return 父加载器链中除宿主apk以外的jar：boot classpath 与宿主的 uses-library，
+	 *         不知道 boot classpath 时返回 null
+	 */
+	private static List<File> getParentLibraries(String[] sharedLibraryFiles) {
+		String boot = System.getenv("BOOTCLASSPATH");
+		if (boot == null) {
+			return null;
+		}
+		List<File> rs = new ArrayList<File>();
+		for (String path : boot.split(":")) {
+			if (path.length() > 0) {
+				rs.add(new File(path));
+			}
+		}
+		if (sharedLibraryFiles != null) {
+			for (String path : sharedLibraryFiles) {
+				rs.add(new File(path));
+			}
+		}
+		return rs;
+	}
+
+	/**
+	 * 有一个jar不能建立索引(不存在、读取失败，或dex已被剥离只剩oat)时返回 null，
+	 * 这时无法断定父加载器中没有某个类
+	 */
+	private static DexClassIndex[] loadLibraryClassIndexes(List<File> jars) {
+		if (jars == null) {
+			return null;
+		}
+		DexClassIndex[] rs = new DexClassIndex[jars.size()];
+		for (int i = 0; i < rs.length; i++) {
+			File jar = jars.get(i);
+			try {
+				rs[i] = DexClassIndex.load(jar,
+						PluginLayout.getLibraryClassIndexFile(jar));
+			} catch (Exception e) {
+				Log.w(tag, "library class index unavailable: " + jar + ", "
+						+ e);
+				return null;
+			}
+			if (rs[i].size() == 0) {
+				Log.w(tag, "no dex in " + jar);
+				return null;
+			}
+		}
+		return rs;
+	}
+
+	/**
+	 * @return 是否能确定父加载器链(boot classpath、宿主的 uses-library 与宿主apk)中没有这个类，
+	 *         索引还没有建立完成或不完整时返回 false
+	 */
+	boolean isAbsentFromParent(String className) {
+		DexClassIndex host = hostClassIndex;
+		DexClassIndex[] libraries = libraryClassIndexes;
+		if (host == null || libraries == null || host.contains(className)) {
+			return false;
+		}
+		for (DexClassIndex lib : libraries) {
+			if (lib.contains(className)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return 父加载器链(宿主apk与宿主的 uses-library)中是否(可能)有类把这个名称的虚方法声明为 final，
+	 *         索引还没有建立完成时返回 true
+	 */
+	boolean mayDeclareFinalMethodInParent(String methodName) {
+		DexClassIndex host = hostClassIndex;
+		DexClassIndex[] libraries = libraryClassIndexes;
+		if (host == null || libraries == null
+				|| host.declaresFinalMethod(methodName)) {
+			return true;
+		}
+		for (DexClassIndex lib : libraries) {
+			if (lib.declaresFinalMethod(methodName)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
 	private void checkInit() {
 		if (!hasInit) {
 			throw new IllegalStateException("PluginManager has not init!");
@@ -218,6 +407,23 @@ public class PluginManager implements FileFilter {
 		if (pl == null) {
 			return;
 		}
+		// 标记为已卸载，文件由后台的垃圾回收删除
+		PluginJournal journal = pl.getJournal();
+		if (journal == null) {
+			journal = PluginJournal.read(pl.getId());
+		}
+		if (journal != null) {
+			journal.setState(PluginJournal.STATE_UNINSTALLED);
+			journal.writeQuietly();
+		}
+		storageManager.scheduleMaintenance();
+		unregisterPluginApplication(pl);
+	}
+
+	private void unregisterPluginApplication(PlugInfo pl) {
+		if (pl.getApplication() == null) {
+			return;
+		}
 		if (context instanceof Application) {
 			if (android.os.Build.VERSION.SDK_INT >= 14) {
 				try {
@@ -291,17 +497,22 @@ public class PluginManager implements FileFilter {
 					+ pluginSrcDirFile);
 		}
 		for (File pluginApk : pluginApks) {
-			PlugInfo plugInfo = buildPlugInfo(pluginApk, null, null);
-			if (plugInfo != null) {
-				savePluginToMap(plugInfo);
-			}
+			installPlugin(pluginApk, null, null);
 		}
 		return pluginIdToInfoMap.values();
 	}
 
-	private synchronized void savePluginToMap(PlugInfo plugInfo) {
-		pluginPkgToInfoMap.put(plugInfo.getPackageName(), plugInfo);
-		pluginIdToInfoMap.put(plugInfo.getId(), plugInfo);
+	private void savePluginToMap(PlugInfo plugInfo) {
+		synchronized (this) {
+			pluginPkgToInfoMap.put(plugInfo.getPackageName(), plugInfo);
+			pluginIdToInfoMap.put(plugInfo.getId(), plugInfo);
+		}
+		// 两种启动引擎都按 intent 中的插件id与类名创建Activity；
+		// 在加载插件时安装，进程被杀后系统恢复的插件Activity也能找到
+		PluginInstrumentation.install();
+		if (precompileProxies) {
+			proxyDexScheduler.schedule(plugInfo);
+		}
 	}
 
 	// /**
@@ -334,13 +545,116 @@ public class PluginManager implements FileFilter {
 	public PlugInfo loadPluginWithId(File pluginApk, String pluginId,
 			String targetFileName) throws Exception {
 		checkInit();
-		PlugInfo plugInfo = buildPlugInfo(pluginApk, pluginId, targetFileName);
-		if (plugInfo != null) {
+		return installPlugin(pluginApk, pluginId, targetFileName);
+	}
+
+	/**
+	 * 安装期间(直到插件可以按id找到)清理存储不会处理它的文件，不同插件的安装可以并行
+	 */
+	private PlugInfo installPlugin(File pluginApk, String pluginId,
+			String targetFileName) throws Exception {
+		String id = pluginId == null ? pluginApk.getName() : pluginId;
+		storageManager.beginInstall(id);
+		try {
+			PlugInfo plugInfo = buildPlugInfo(pluginApk, id, targetFileName);
+			if (plugInfo != null) {
+				savePluginToMap(plugInfo);
+			}
+			return plugInfo;
+		} finally {
+			storageManager.endInstall(id);
+		}
+	}
+
+	/**
+	 * 用增量包更新已安装的插件
+	 * <p>
+	 * 增量包在构建端由 pluginmgr-proxygen 中的 PluginDeltaTool(见 {@link PluginDelta#createPatch(File, File, File)})生成。
+	 * 应用后校验新apk的 SHA-256，只重建输入有变化的派生文件：lib/ 有变化时重新解压 .so，dex 有变化时删除优化dex，
+	 * 代理Activity的dex在其缓存键变化时重新生成，只改了资源时派生文件全部保留。
+	 * <p>
+	 * 插件会以新版本重新加载，调用前应结束该插件正在运行的Activity
+	 * 
+	 * @param pluginId
+	 *            - 已安装插件的id
+	 * @param patchFile
+	 *            - 增量包
+	 * @return 更新后的插件
+	 * @throws Exception
+	 *             增量包与已安装的版本不匹配或校验失败时，已安装的插件保持不变
+	 */
+	public PlugInfo updatePlugin(String pluginId, File patchFile)
+			throws Exception {
+		checkInit();
+		storageManager.beginInstall(pluginId);
+		try {
+			PlugInfo plugInfo = applyUpdate(pluginId, patchFile);
 			savePluginToMap(plugInfo);
+			return plugInfo;
+		} finally {
+			storageManager.endInstall(pluginId);
+		}
+	}
+
+	private PlugInfo applyUpdate(String pluginId, File patchFile)
+			throws Exception {
+		PluginJournal journal = PluginJournal.read(pluginId);
+		if (journal == null || !journal.isComplete()
+				|| journal.getApkName() == null) {
+			throw new IllegalStateException("plugin not installed: "
+					+ pluginId);
+		}
+		File apk = new File(dexInternalStoragePath, journal.getApkName());
+		File tmp = new File(dexInternalStoragePath, apk.getName() + ".delta");
+		long start = System.currentTimeMillis();
+		PluginDelta.Result rs;
+		try {
+			rs = PluginDelta.apply(apk, journal.getApkDigest(), patchFile,
+					tmp);
+		} catch (IOException e) {
+			tmp.delete();
+			throw e;
+		}
+		Log.i(tag, "updatePlugin: " + pluginId + ", changed="
+				+ rs.changedEntries + ", read " + rs.patchBytes
+				+ " bytes from delta for " + rs.size + " bytes apk");
+
+		PlugInfo old = removePlugById(pluginId);
+		if (old != null) {
+			unregisterPluginApplication(old);
+		}
+		// 先标记为安装中，中途失败时下次加载会从来源重新完整安装
+		journal.setState(PluginJournal.STATE_INSTALLING);
+		journal.write();
+		if (!tmp.renameTo(apk)) {
+			tmp.delete();
+			throw new IOException("could not replace " + apk);
+		}
+		// 代理Activity的dex按缓存键校验，dex或Activity列表有变化时自动重新生成；
+		// dex有变化时优化dex使用新版本的目录，旧版本由 collectGarbage 删除
+		if (rs.isLibChanged()) {
+			PluginManifestUtil.reextractLibFiles(apk, pluginId, journal);
+		}
+		journal.setApk(apk, rs.digest);
+		// 来源文件未变时保留来源记录，以后用同一个来源加载会复用更新后的版本
+		File source = journal.getSource();
+		if (source == null || !journal.isSameSource(source)) {
+			source = apk;
+			journal.setSource(apk);
 		}
-		return plugInfo;
+		journal.setState(PluginJournal.STATE_COMPLETE);
+		journal.write();
+
+		PlugInfo info = buildPlugInfo(source, pluginId, apk.getName());
+		Log.i(tag, "updatePlugin: " + pluginId + " done in "
+				+ (System.currentTimeMillis() - start) + "ms, sha256="
+				+ rs.digest);
+		return info;
 	}
 
+	/**
+	 * 调用前必须 {@link PluginStorageManager#beginInstall}
+	 */
 	private PlugInfo buildPlugInfo(File pluginApk, String pluginId,
 			String targetFileName) throws Exception {
 		PlugInfo info = new PlugInfo();
@@ -351,15 +665,38 @@ public class PluginManager implements FileFilter {
 
 		info.setFilePath(privateFile.getAbsolutePath());
 
-		if (!pluginApk.getAbsolutePath().equals(privateFile.getAbsolutePath())) {
-			copyApkToPrivatePath(pluginApk, privateFile);
+		PluginJournal journal = prepareJournal(info, pluginApk, privateFile);
+		info.setJournal(journal);
+		final boolean installed = journal.isComplete();
+		if (!installed
+				&& !pluginApk.getAbsolutePath().equals(
+						privateFile.getAbsolutePath())) {
+			copyApkToPrivatePath(pluginApk, privateFile, info);
+		}
+		if (!installed) {
+			importProxySidecar(pluginApk, info.getId());
 		}
 		String dexPath = privateFile.getAbsolutePath();
 		PluginManifestUtil.setManifestInfo(context, dexPath, info);
+		if (!installed) {
+			journal.setApk(privateFile, info.getApkDigest());
+			journal.setSource(pluginApk);
+			journal.setState(PluginJournal.STATE_COMPLETE);
+			journal.write();
+		}
 
+		File optimizedDir = storageManager.prepareOptimizedDir(info);
 		PluginClassLoader loader = new PluginClassLoader(dexPath,
-				dexOutputPath, frameworkClassLoader, info);
+				optimizedDir.getAbsolutePath(), frameworkClassLoader, info);
 		info.setClassLoader(loader);
+		loader.loadClassIndexAsync();
+		if (classLoadProfiling) {
+			loader.startClassLoadProfiling();
+		}
+		if (frameworkClassLoader != null) {
+			frameworkClassLoader.onPluginLoaded(info.getId());
+		}
+		loader.touchOptimizedFiles(privateFile);
 
 		try {
 			AssetManager am = (AssetManager) AssetManager.class.newInstance();
@@ -376,25 +713,44 @@ public class PluginManager implements FileFilter {
 		if (actFrom != null) {
 			initPluginApplication(info, actFrom, true);
 		}
-		// createPluginActivityProxyDexes(info);
 		Log.i(tag, "buildPlugInfo: " + info);
+		Log.d(tag, IoPools.dumpStats());
+		if (storageManager.getDiskBudget() >= 0) {
+			storageManager.scheduleMaintenance();
+		}
 		return info;
 	}
 
-	// private void createPluginActivityProxyDexes(PlugInfo plugin) {
-	// {
-	// ActInfo act = plugin.getApplicationInfo().getMainActivity();
-	// if (act != null) {
-	// ActivityOverider.createProxyDex(plugin, act.name, false);
-	// }
-	// }
-	// if (plugin.getApplicationInfo().getOtherActivities() != null) {
-	// for (ActInfo act : plugin.getApplicationInfo().getOtherActivities())
-	// {
-	// ActivityOverider.createProxyDex(plugin, act.name, false);
-	// }
-	// }
-	// }
+	/**
+	 * 读取插件的 journal，判断上次的安装能否直接复用(只读一个文件)
+	 * <p>
+	 * 不能复用时(没有 journal、安装被中断、布局版本变化、apk来源已改变)，
+	 * 先确定地清理旧的派生文件，再开始一条新的安装记录
+	 */
+	private PluginJournal prepareJournal(PlugInfo info, File pluginApk,
+			File privateFile) {
+		String pluginId = info.getId();
+		PluginJournal journal = PluginJournal.read(pluginId);
+		if (journal != null && journal.isComplete()
+				&& privateFile.getName().equals(journal.getApkName())
+				&& privateFile.length() == journal.getApkSize()
+				&& journal.isSameSource(pluginApk)) {
+			info.setApkDigest(journal.getApkDigest());
+			Log.d(tag, "reuse installed plugin: " + journal);
+			return journal;
+		}
+		if (journal != null) {
+			Log.i(tag, "discard previous install: " + journal);
+			journal.deleteArtifacts();
+		} else {
+			// 首次安装或旧版本的布局，清理可能残留的派生文件
+			PluginLayout.deleteDerived(pluginId);
+		}
+		journal = new PluginJournal(pluginId);
+		journal.writeQuietly();
+		return journal;
+	}
+
 	void initPluginApplication(final PlugInfo info, Activity actFrom)
 			throws Exception {
 		initPluginApplication(info, actFrom, false);
@@ -469,12 +825,51 @@ public class PluginManager implements FileFilter {
 		}
 	}
 
-	private void copyApkToPrivatePath(File pluginApk, File f) {
-		// if (f.exists() && pluginApk.length() == f.length()) {
-		// // 这里只是简单的判断如果两个文件长度相同则不拷贝，严格的做应该比较签名如 md5\sha-1
-		// return;
-		// }
-		FileUtil.copyFile(pluginApk, f);
+	/**
+	 * 复制apk到私有目录，同一趟内计算 SHA-256、校验zip条目CRC并报告进度
+	 */
+	private void copyApkToPrivatePath(File pluginApk, File f,
+			final PlugInfo info) throws IOException {
+		final String pluginId = info.getId();
+		final PluginInstallListener listener = pluginInstallListener;
+		StreamCopier copier = new StreamCopier().setVerifyZip(
+				verifyApkOnInstall);
+		if (listener != null) {
+			copier.setProgressListener(new StreamCopier.ProgressListener() {
+				public void onProgress(long bytesCopied, long totalBytes,
+						long bytesPerSecond) {
+					listener.onCopyProgress(pluginId, bytesCopied, totalBytes,
+							bytesPerSecond);
+				}
+			});
+		}
+		try {
+			copier.copy(pluginApk, f);
+		} catch (IOException e) {
+			f.delete();
+			throw e;
+		}
+		info.setApkDigest(copier.getDigestHex());
+		Log.i(tag, "copyApkToPrivatePath: " + pluginApk + ", "
+				+ copier.getBytesCopied() + " bytes in "
+				+ copier.getElapsedMillis() + "ms, sha256="
+				+ info.getApkDigest());
+		if (listener != null) {
+			listener.onCopyFinished(pluginId, info.getApkDigest());
+		}
+	}
+
+	/**
+	 * 复制与apk放在一起的预生成代理(&lt;apk&gt;.proxies)，生成代理时如果缓存键一致就直接使用
+	 */
+	private void importProxySidecar(File pluginApk, String pluginId) {
+		File target = PluginLayout.getProxySidecarFile(pluginId);
+		target.delete();
+		File sidecar = ProxySidecar.getSidecarFile(pluginApk);
+		if (sidecar.isFile()) {
+			FileUtil.copyFile(sidecar, target);
+			Log.d(tag, "imported prebuilt proxies: " + sidecar);
+		}
 	}
 
 	File getDexInternalStoragePath() {
@@ -494,6 +889,236 @@ public class PluginManager implements FileFilter {
 		this.pluginActivityLifeCycleCallback = pluginActivityLifeCycleCallback;
 	}
 
+	public PluginInstallListener getPluginInstallListener() {
+		return pluginInstallListener;
+	}
+
+	public void setPluginInstallListener(
+			PluginInstallListener pluginInstallListener) {
+		this.pluginInstallListener = pluginInstallListener;
+	}
+
+	/**
+	 * 复制apk时是否校验zip条目的CRC(默认开启)
+	 */
+	public void setVerifyApkOnInstall(boolean verifyApkOnInstall) {
+		this.verifyApkOnInstall = verifyApkOnInstall;
+	}
+
+	/**
+	 * 设置派生文件(优化dex、代理Activity的dex等)的磁盘预算，超出时在后台按最近最少使用淘汰
+	 * 
+	 * @param maxBytes
+	 *            - 小于0表示不限制(默认)
+	 */
+	public void setDiskBudget(long maxBytes) {
+		checkInit();
+		storageManager.setDiskBudget(maxBytes);
+		storageManager.scheduleMaintenance();
+	}
+
+	/**
+	 * 在后台清理已卸载插件的文件与孤立的派生文件，并检查磁盘预算
+	 */
+	public void trimStorage() {
+		checkInit();
+		storageManager.scheduleMaintenance();
+	}
+
+	/**
+	 * @return 派生文件占用的字节数(会扫描目录，不要在UI线程调用)
+	 */
+	public long getDerivedStorageSize() {
+		checkInit();
+		return storageManager.getDerivedSize();
+	}
+
+	/**
+	 * 插件加载后是否在后台预先生成代理Activity的dex(默认开启)
+	 * <p>
+	 * 关闭后在第一次启动插件的Activity时生成
+	 */
+	public void setPrecompileProxies(boolean precompileProxies) {
+		this.precompileProxies = precompileProxies;
+	}
+
+	/**
+	 * 是否用模板改写的方式生成代理Activity(默认开启，仅在 Android 5.0 及以上生效)
+	 * <p>
+	 * 父类名长度相同的代理共用一个由 DexMaker 生成的模板，其余只做字节改写。应在加载插件之前设置
+	 */
+	public void setProxyTemplateMode(boolean proxyTemplateMode) {
+		this.proxyTemplateMode = proxyTemplateMode;
+	}
+
+	boolean isProxyTemplateMode() {
+		return proxyTemplateMode;
+	}
+
+	/**
+	 * 是否在首次启动插件Activity时直接从内存加载代理(默认开启，仅在 Android 8.0 及以上生效)
+	 * <p>
+	 * 代理dex仍会在后台写到插件目录，以后的进程从文件加载
+	 */
+	public void setProxyInMemory(boolean proxyInMemory) {
+		this.proxyInMemory = proxyInMemory;
+	}
+
+	boolean isProxyInMemory() {
+		return proxyInMemory;
+	}
+
+	/**
+	 * 设置默认的启动引擎({@link #LAUNCH_ENGINE_PROXY} 或 {@link #LAUNCH_ENGINE_STUB})
+	 * <p>
+	 * stub 引擎需要宿主声明占位Activity，不生成代理dex；没有合适的占位时自动退回代理方式
+	 */
+	public void setDefaultLaunchEngine(int engine) {
+		this.defaultLaunchEngine = engine;
+	}
+
+	/**
+	 * 为单个插件设置启动引擎，便于对比两种方式
+	 */
+	public void setLaunchEngine(String pluginId, int engine) {
+		launchEngines.put(pluginId, engine);
+	}
+
+	int getLaunchEngine(String pluginId) {
+		Integer engine = launchEngines.get(pluginId);
+		return engine != null ? engine : defaultLaunchEngine;
+	}
+
+	/**
+	 * 是否让 support 库版本相同的插件共用一份 support 库(默认关闭)
+	 * <p>
+	 * 开启后可以减少内存占用与类加载时间，但 support 库中的静态状态(例如
+	 * LocalBroadcastManager 的单例)会在这些插件之间共享。应在加载插件之前设置。
+	 * 只在 ART(Android 5.0 及以上)上生效，见 {@link SharedLibraries}
+	 */
+	public void setShareSupportLibrary(boolean shareSupportLibrary) {
+		this.shareSupportLibrary = shareSupportLibrary;
+	}
+
+	boolean isShareSupportLibrary() {
+		return shareSupportLibrary && SharedLibraries.isSupported();
+	}
+
+	/**
+	 * 是否记录插件启动时的类加载顺序，并在以后加载插件时在后台预先加载这些类(默认关闭)
+	 * <p>
+	 * 第一次启动插件时记录到它的第一个Activity显示为止，之后每次加载插件都在后台重放，
+	 * 缩短再次打开插件时主线程上的类加载时间。应在加载插件之前设置
+	 */
+	public void setClassLoadProfiling(boolean classLoadProfiling) {
+		this.classLoadProfiling = classLoadProfiling;
+	}
+
+	/**
+	 * 设置宿主向插件开放的类，插件只能从宿主加载这些类(以及系统类)，其余的类直接到系统类加载器中查找
+	 * 
+	 * @param policy
+	 *            - null 表示宿主的所有类都开放(默认，除非宿主的 AndroidManifest.xml 中声明了
+	 *            {@value HostExportPolicy#META_DATA_KEY})
+	 */
+	public void setHostExportPolicy(HostExportPolicy policy) {
+		this.hostExportPolicy = policy;
+		// 之前找不到的类可能已经开放
+		if (frameworkClassLoader != null) {
+			frameworkClassLoader.clearMissingClasses();
+		}
+		for (PlugInfo plugin : getPlugins()) {
+			if (plugin.getClassLoader() != null) {
+				plugin.getClassLoader().clearMissingClasses();
+			}
+		}
+	}
+
+	public HostExportPolicy getHostExportPolicy() {
+		return hostExportPolicy;
+	}
+
+	private static HostExportPolicy readHostExportPolicy(Context ctx) {
+		try {
+			ApplicationInfo ai = ctx.getPackageManager().getApplicationInfo(
+					ctx.getPackageName(), PackageManager.GET_META_DATA);
+			if (ai.metaData == null) {
+				return null;
+			}
+			HostExportPolicy policy = HostExportPolicy.parse(ai.metaData
+					.getString(HostExportPolicy.META_DATA_KEY));
+			if (policy != null) {
+				Log.i(tag, "host exports: " + policy);
+			}
+			return policy;
+		} catch (Exception e) {
+			Log.w(tag, "cannot read host export policy: " + e);
+			return null;
+		}
+	}
+
+	/**
+	 * 是否统计类加载(默认关闭)，见 {@link #getClassLoadingMetrics()}
+	 */
+	public void setClassLoadingMetricsEnabled(boolean enabled) {
+		ClassLoadingMetrics.setEnabled(enabled);
+	}
+
+	/**
+	 * @return FrameworkClassLoader 与每个已加载插件的类加载器、代理Activity类加载器的统计
+	 */
+	public List<ClassLoadingMetrics> getClassLoadingMetrics() {
+		List<ClassLoadingMetrics> rs = new ArrayList<ClassLoadingMetrics>();
+		if (frameworkClassLoader != null) {
+			rs.add(frameworkClassLoader.metrics);
+		}
+		for (PlugInfo plugin : getPlugins()) {
+			PluginClassLoader loader = plugin.getClassLoader();
+			if (loader != null) {
+				rs.add(loader.metrics);
+				rs.add(loader.proxyMetrics);
+			}
+		}
+		return rs;
+	}
+
+	/**
+	 * @return 插件类加载器的统计，插件没有加载时返回 null
+	 */
+	public ClassLoadingMetrics getClassLoadingMetrics(String pluginId) {
+		PlugInfo plugin = getPluginById(pluginId);
+		return plugin == null || plugin.getClassLoader() == null ? null
+				: plugin.getClassLoader().metrics;
+	}
+
+	public String dumpClassLoadingMetrics() {
+		StringBuilder sb = new StringBuilder();
+		for (ClassLoadingMetrics m : getClassLoadingMetrics()) {
+			sb.append(m).append('\n');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return 插件代理Activity dex的大小与方法引用数；本进程还没有生成或读取预生成代理(直接加载了磁盘上的代理dex)时返回 null
+	 */
+	public ProxyDexStats getProxyDexStats(String pluginId) {
+		PlugInfo plugin = getPluginById(pluginId);
+		return plugin == null ? null : plugin.getProxyDexStats();
+	}
+
+	SharedLibraries getSharedLibraries() {
+		return sharedLibraries;
+	}
+
+	ProxyDexScheduler getProxyDexScheduler() {
+		return proxyDexScheduler;
+	}
+
+	PluginStorageManager getStorageManager() {
+		return storageManager;
+	}
+
 	FrameworkClassLoader getFrameworkClassLoader() {
 		return frameworkClassLoader;
 	}
@@ -17,15 +17,14 @@ package androidx.pluginmgr;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.StringReader;
-import java.util.Enumeration;
+import java.io.UnsupportedEncodingException;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
-import java.util.zip.ZipFile;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
@@ -37,17 +36,21 @@ import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
+import android.util.Log;
 
 /**
  * @author HouKangxi
  * 
  */
 class PluginManifestUtil {
+	private static final String tag = "PluginManifestUtil";
+
 	static void setManifestInfo(Context context, String apkPath, PlugInfo info)
 			throws XmlPullParserException, IOException {
 		
-		ZipFile zipFile = new ZipFile(new File(apkPath), ZipFile.OPEN_READ);
-		ZipEntry manifestXmlEntry = zipFile.getEntry(XmlManifestReader.DEFAULT_XML);
+		PluginZipFile zipFile = new PluginZipFile(new File(apkPath));
+		PluginZipFile.Entry manifestXmlEntry = zipFile
+				.getEntry(XmlManifestReader.DEFAULT_XML);
 		
 		String manifestXML = XmlManifestReader.getManifestXMLFromAPK(zipFile,
 				manifestXmlEntry);
@@ -65,25 +68,95 @@ class PluginManifestUtil {
 		// Log.d("ManifestReader: setManifestInfo", "GET_SHARED_LIBRARY_FILES="
 		// + pkgInfo.applicationInfo.nativeLibraryDir);
 		info.setPackageInfo(pkgInfo);
+		info.setCodeFingerprint(getCodeFingerprint(zipFile));
 		File libdir = ActivityOverider.getPluginLibDir(info.getId());
+		PluginJournal journal = info.getJournal();
+		boolean hasLib;
 		try {
-			if(extractLibFile(zipFile, libdir)){
-				pkgInfo.applicationInfo.nativeLibraryDir=libdir.getAbsolutePath();
+			if (journal != null && journal.isComplete()
+					&& libFilesExist(info.getId(), journal)) {
+				// 上次安装已完成，直接使用 journal 中记录的 .so，不再解压
+				hasLib = !journal.getArtifacts(PluginLayout.DIR_LIB + '/')
+						.isEmpty();
+			} else if (journal != null && journal.isComplete()) {
+				// 记录的 .so 在 trim() 之外被删除了，重新解压
+				Log.w(tag, "lib files missing, re-extract: " + info.getId());
+				hasLib = extractLibFile(zipFile, libdir, journal);
+				journal.writeQuietly();
+			} else {
+				hasLib = extractLibFile(zipFile, libdir, journal);
 			}
 		} finally {
 			zipFile.close();
 		}
+		if (hasLib) {
+			pkgInfo.applicationInfo.nativeLibraryDir = libdir.getAbsolutePath();
+		}
 		setAttrs(info, manifestXML);
 	}
-	private static boolean extractLibFile(ZipFile zip, File tardir)
-			throws ZipException, IOException {
-		
-		
+
+	/**
+	 * journal 中记录的 .so 是否都还在(只检查是否存在，不读内容)
+	 */
+	private static boolean libFilesExist(String pluginId, PluginJournal journal) {
+		for (PluginJournal.Artifact a : journal.getArtifacts(PluginLayout.DIR_LIB
+				+ '/')) {
+			if (!PluginLayout.resolve(pluginId, a.path).exists()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * 根据中央目录中 classes*.dex 条目的名称、CRC与大小计算指纹，不读取条目内容
+	 */
+	static String getCodeFingerprint(PluginZipFile zip) {
+		StringBuilder sb = new StringBuilder();
+		for (PluginZipFile.Entry entry : zip.entries()) {
+			String name = entry.getName();
+			if (name.startsWith("classes") && name.endsWith(".dex")
+					&& name.indexOf('/') < 0) {
+				sb.append(name).append(':').append(entry.getCrc()).append(':')
+						.append(entry.getSize()).append('\n');
+			}
+		}
+		try {
+			return FileUtil.sha256Hex(sb.toString().getBytes("UTF-8"));
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * 删除已解压的 .so 并从apk中重新解压(插件增量更新后 lib/ 有变化时使用)
+	 */
+	static void reextractLibFiles(File apk, String pluginId,
+			PluginJournal journal) throws IOException {
+		for (PluginJournal.Artifact a : journal.getArtifacts(PluginLayout.DIR_LIB
+				+ '/')) {
+			File f = PluginLayout.resolve(pluginId, a.path);
+			f.delete();
+			journal.removeArtifact(f);
+		}
+		File libdir = ActivityOverider.getPluginLibDir(pluginId);
+		PluginLayout.deleteRecursive(libdir);
+		PluginZipFile zip = new PluginZipFile(apk);
+		try {
+			extractLibFile(zip, libdir, journal);
+		} finally {
+			zip.close();
+		}
+	}
+
+	/**
+	 * 解压 .so 到插件的 lib 目录
+	 */
+	private static boolean extractLibFile(PluginZipFile zip, File tardir,
+			PluginJournal journal) throws ZipException, IOException {
 		String defaultArch = "armeabi";
-        Map<String,List<ZipEntry>> archLibEntries = new HashMap<String, List<ZipEntry>>();
-		for (Enumeration<? extends ZipEntry> e = zip.entries(); e
-				.hasMoreElements();) {
-			ZipEntry entry = e.nextElement();
+        Map<String,List<PluginZipFile.Entry>> archLibEntries = new HashMap<String, List<PluginZipFile.Entry>>();
+		for (PluginZipFile.Entry entry : zip.entries()) {
 			String name = entry.getName();
 			if (name.startsWith("/")) {
 				name = name.substring(1);
@@ -100,16 +173,16 @@ class PluginManifestUtil {
 				} else {
 					en2add=defaultArch;
 				}
-				List<ZipEntry> ents = archLibEntries.get(en2add);
+				List<PluginZipFile.Entry> ents = archLibEntries.get(en2add);
 				if (ents == null) {
-					ents = new LinkedList<ZipEntry>();
+					ents = new LinkedList<PluginZipFile.Entry>();
 					archLibEntries.put(en2add, ents);
 				}
 				ents.add(entry);
 			}
 		}
 		String arch = System.getProperty("os.arch");
-		List<ZipEntry> libEntries = archLibEntries.get(arch.toLowerCase());
+		List<PluginZipFile.Entry> libEntries = archLibEntries.get(arch.toLowerCase());
 		if (libEntries == null) {
 			libEntries = archLibEntries.get(defaultArch);
 		}
@@ -119,11 +192,20 @@ class PluginManifestUtil {
 			if (!tardir.exists()) {
 				tardir.mkdirs();
 			}
-			for (ZipEntry libEntry : libEntries) {
+			for (PluginZipFile.Entry libEntry : libEntries) {
 				String ename = libEntry.getName();
 				String pureName = ename.substring(ename.lastIndexOf('/') + 1);
 				File target = new File(tardir, pureName);
-				FileUtil.writeToFile(zip.getInputStream(libEntry), target);
+				InputStream in = zip.getInputStream(libEntry);
+				StreamCopier copier = new StreamCopier();
+				try {
+					copier.copy(in, target);
+				} finally {
+					in.close();
+				}
+				if (journal != null) {
+					journal.putArtifact(target, copier.getDigestHex());
+				}
 			}
 		}
 		
@@ -282,7 +364,7 @@ class PluginManifestUtil {
 		info.addReceiver(receiver);
 	}
 
-	private static String getName(String nameOrig, String pkgName) {
+	static String getName(String nameOrig, String pkgName) {
 		if (nameOrig == null) {
 			return null;
 		}
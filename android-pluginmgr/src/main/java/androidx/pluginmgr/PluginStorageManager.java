@@ -0,0 +1,644 @@
+/*
+ * Copyright (C) 2015 HouKx <hkx.aidream@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package androidx.pluginmgr;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * 插件派生文件的存储管理
+ * <p>
+ * Android 8.0 以下插件的优化dex按版本分目录(见 {@link #prepareOptimizedDir(PlugInfo)})，
+ * plugsout 根目录下只有共用库的优化dex。
+ * Android 8.0 起 DexClassLoader 忽略 optimizedDirectory，ART 把 .odex/.vdex/.art 写到来源文件旁边的
+ * oat/&lt;isa&gt;/ 中(plugins/oat/、代理dex目录与共用库目录下)，版本目录只保存 stamp；
+ * 这些文件同样计入预算，来源文件不存在时由 {@link #collectGarbage()} 删除。
+ * <p>
+ * 派生文件(优化后的dex、代理Activity的dex、解压的.so)的大小取自文件长度，
+ * 最近使用时间记录在文件的修改时间上(使用时调用 {@link #touch(File)})，因此跨进程重启有效。
+ * 只能 touch 优化dex与版本目录的 stamp，不能 touch apk或代理dex：Dalvik 按来源文件的修改时间校验优化dex。
+ * 代理dex的最近使用时间取插件优化dex目录的 stamp。
+ * <ul>
+ * <li>{@link #trim()}：超出磁盘预算时按最近最少使用淘汰可以重新生成的派生文件，
+ * 当前进程中已加载插件的文件不会被淘汰</li>
+ * <li>{@link #collectGarbage()}：删除已卸载插件的全部文件、中断安装残留的派生文件，
+ * 已卸载插件与旧版本的优化dex目录，以及没有对应来源的优化dex</li>
+ * </ul>
+ * 两者都在后台线程执行，不处理已加载与正在安装的插件。
+ * 安装开始时({@link #beginInstall})等待进行中的清理结束，之后安装不再持有 {@link #lock}
+ */
+class PluginStorageManager {
+	private static final String tag = "PluginStorageManager";
+	/**
+	 * 优化dex目录中记录完整版本指纹的文件
+	 */
+	static final String FILE_OPTIMIZED_STAMP = "stamp";
+	/**
+	 * Android 8.0 起 ART 在来源文件旁边存放优化文件的目录
+	 */
+	static final String DIR_OAT = "oat";
+	private static final String[] OAT_SUFFIXES = { ".odex", ".vdex", ".art" };
+	private static final int VERSION_DIR_LENGTH = 16;
+
+	/**
+	 * 清理存储时持有
+	 */
+	final Object lock = new Object();
+	/**
+	 * 正在安装或更新的插件id
+	 */
+	private final Set<String> installing = new HashSet<String>();
+	private final PluginManager mgr;
+	private final File pluginsDir;
+	private final File optimizedDir;
+	private volatile long diskBudget = -1;
+	private final AtomicBoolean maintenanceScheduled = new AtomicBoolean();
+
+	/**
+	 * 派生文件
+	 */
+	static final class Artifact {
+		final File file;
+		final String pluginId;
+		final long size;
+		final long lastUsed;
+		/**
+		 * 能否淘汰：可以重新生成且当前没有被使用
+		 */
+		final boolean evictable;
+
+		Artifact(File file, String pluginId, boolean evictable) {
+			this(file, pluginId, evictable, file.lastModified());
+		}
+
+		Artifact(File file, String pluginId, boolean evictable, long lastUsed) {
+			this.file = file;
+			this.pluginId = pluginId;
+			this.size = file.length();
+			this.lastUsed = lastUsed;
+			this.evictable = evictable;
+		}
+	}
+
+	PluginStorageManager(PluginManager mgr, File pluginsDir, File optimizedDir) {
+		this.mgr = mgr;
+		this.pluginsDir = pluginsDir;
+		this.optimizedDir = optimizedDir;
+	}
+
+	/**
+	 * @param bytes
+	 *            - 派生文件的磁盘预算，小于0表示不限制
+	 */
+	void setDiskBudget(long bytes) {
+		diskBudget = bytes;
+	}
+
+	long getDiskBudget() {
+		return diskBudget;
+	}
+
+	/**
+	 * 记录文件被使用(不能用于dex/apk等 dexopt 的来源文件)
+	 */
+	static void touch(File f) {
+		if (f != null) {
+			// 文件不存在或文件系统不支持时返回 false，忽略即可
+			f.setLastModified(System.currentTimeMillis());
+		}
+	}
+
+	/**
+	 * DexClassLoader 为dex/apk生成的优化文件名(Android 8.0 以下)
+	 */
+	static String optimizedFileName(File dexPath) {
+		return baseName(dexPath.getName()) + ".dex";
+	}
+
+	private static String baseName(String name) {
+		int dot = name.lastIndexOf('.');
+		return dot > 0 ? name.substring(0, dot) : name;
+	}
+
+	/**
+	 * @return 优化文件是否在来源文件旁边的 oat/&lt;isa&gt;/ 中(Android 8.0 起)
+	 */
+	static boolean isOatBesideSource() {
+		return Build.VERSION.SDK_INT >= 26;
+	}
+
+	/**
+	 * @return ART 为来源文件生成的 oat/&lt;isa&gt;/&lt;名称&gt;.{odex,vdex,art} 中已存在的文件
+	 */
+	static List<File> listOatFiles(File dexPath) {
+		List<File> rs = new ArrayList<File>();
+		File[] isas = new File(dexPath.getParentFile(), DIR_OAT).listFiles();
+		if (isas == null) {
+			return rs;
+		}
+		String base = baseName(dexPath.getName());
+		for (File isa : isas) {
+			for (String suffix : OAT_SUFFIXES) {
+				File f = new File(isa, base + suffix);
+				if (f.isFile()) {
+					rs.add(f);
+				}
+			}
+		}
+		return rs;
+	}
+
+	/**
+	 * 删除 dir/oat/ 中来源文件已不存在的优化文件
+	 */
+	private static long collectOatOrphans(File dir) {
+		File[] isas = new File(dir, DIR_OAT).listFiles();
+		String[] sources = dir.list();
+		if (isas == null || sources == null) {
+			return 0;
+		}
+		Set<String> live = new HashSet<String>();
+		for (String s : sources) {
+			live.add(baseName(s));
+		}
+		long freed = 0;
+		for (File isa : isas) {
+			File[] files = isa.listFiles();
+			if (files == null) {
+				continue;
+			}
+			for (File f : files) {
+				if (!live.contains(baseName(f.getName()))) {
+					freed += f.length();
+					f.delete();
+				}
+			}
+		}
+		return freed;
+	}
+
+	/**
+	 * 插件当前版本的优化dex目录 plugsout/&lt;id&gt;/&lt;版本&gt;/，Android 8.0 以下插件apk与代理dex的优化文件都在其中；
+	 * Android 8.0 起只用它的 stamp 记录最近加载时间(优化文件见 {@link #listOatFiles})
+	 * <p>
+	 * 版本取代码指纹(没有dex时取apk摘要)的前16位。同一版本在进程重启后直接复用已有的优化dex，
+	 * 每个版本只执行一次 dexopt；同名apk重新安装为新版本时使用新目录，不会与旧的优化文件混淆。
+	 * 目录中的 stamp 记录完整指纹，不一致时清空后重建
+	 */
+	File prepareOptimizedDir(PlugInfo plugin) {
+		String version = plugin.getCodeFingerprint();
+		if (version == null) {
+			version = plugin.getApkDigest();
+		}
+		if (version == null) {
+			version = "0";
+		}
+		File dir = new File(new File(optimizedDir, plugin.getId()),
+				version.substring(0,
+						Math.min(VERSION_DIR_LENGTH, version.length())));
+		File stamp = new File(dir, FILE_OPTIMIZED_STAMP);
+		if (version.equals(readStamp(stamp))) {
+			touch(stamp);
+			return dir;
+		}
+		PluginLayout.deleteRecursive(dir);
+		dir.mkdirs();
+		try {
+			FileUtil.writeToFile(version.getBytes("UTF-8"), stamp);
+		} catch (IOException e) {
+			// 没有 stamp 只是下次不能复用
+			Log.w(tag, "cannot write " + stamp + ": " + e);
+		}
+		Log.i(tag, "new optimized dir for " + plugin.getId() + ": " + dir);
+		String[] versions = dir.getParentFile().list();
+		if (versions != null && versions.length > 1) {
+			// 旧版本的优化dex不会再使用
+			scheduleMaintenance();
+		}
+		return dir;
+	}
+
+	private static String readStamp(File stamp) {
+		if (!stamp.isFile()) {
+			return null;
+		}
+		FileInputStream in = null;
+		try {
+			in = new FileInputStream(stamp);
+			byte[] buf = new byte[(int) Math.min(stamp.length(), 256)];
+			int n = 0;
+			while (n < buf.length) {
+				int r = in.read(buf, n, buf.length - n);
+				if (r < 0) {
+					break;
+				}
+				n += r;
+			}
+			return new String(buf, 0, n, "UTF-8");
+		} catch (IOException e) {
+			return null;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * 在后台执行一次垃圾回收和预算检查，已经在排队时不会重复提交
+	 */
+	void scheduleMaintenance() {
+		if (!maintenanceScheduled.compareAndSet(false, true)) {
+			return;
+		}
+		BackgroundExecutor.execute(new Runnable() {
+			public void run() {
+				maintenanceScheduled.set(false);
+				collectGarbage();
+				trim();
+			}
+		});
+	}
+
+	private static String pluginIdOf(File dir) {
+		String name = dir.getName();
+		if (!dir.isDirectory() || !name.endsWith(PluginLayout.DIR_SUFFIX)) {
+			return null;
+		}
+		return name.substring(0, name.length()
+				- PluginLayout.DIR_SUFFIX.length());
+	}
+
+	/**
+	 * 标记插件正在安装，清理存储时跳过它的所有文件；必须与 {@link #endInstall} 成对调用。
+	 * 同一个插件同时只能有一个安装，后来的等待前一个结束
+	 */
+	void beginInstall(String pluginId) throws InterruptedException {
+		synchronized (installing) {
+			while (!installing.add(pluginId)) {
+				installing.wait();
+			}
+		}
+		// 等待标记之前已经开始的清理结束
+		synchronized (lock) {
+		}
+	}
+
+	void endInstall(String pluginId) {
+		synchronized (installing) {
+			installing.remove(pluginId);
+			installing.notifyAll();
+		}
+	}
+
+	private boolean isInstalling(String pluginId) {
+		synchronized (installing) {
+			return installing.contains(pluginId);
+		}
+	}
+
+	private boolean isInUse(String pluginId) {
+		return isInstalling(pluginId) || mgr.getPluginById(pluginId) != null;
+	}
+
+	/**
+	 * 删除孤立的文件
+	 */
+	void collectGarbage() {
+		synchronized (lock) {
+			File[] files = pluginsDir.listFiles();
+			if (files == null) {
+				return;
+			}
+			long freed = 0;
+			for (File dir : files) {
+				String pluginId = pluginIdOf(dir);
+				if (pluginId == null || isInUse(pluginId)) {
+					continue;
+				}
+				PluginJournal journal = PluginJournal.read(pluginId);
+				if (journal == null) {
+					// 没有记录(旧布局)，不知道是否还会被使用，保留
+					continue;
+				}
+				if (PluginJournal.STATE_UNINSTALLED.equals(journal.getState())) {
+					if (journal.getApkName() != null) {
+						File apk = new File(pluginsDir, journal.getApkName());
+						freed += apk.length();
+						apk.delete();
+					}
+					freed += sizeOf(dir);
+					PluginLayout.deleteRecursive(dir);
+					PluginLayout.forgetDir(dir);
+					Log.i(tag, "gc: removed uninstalled plugin " + pluginId);
+				} else if (!journal.isComplete()) {
+					// 中断的安装
+					freed += sizeOf(new File(dir, PluginLayout.DIR_LIB))
+							+ sizeOf(new File(dir, PluginLayout.DIR_ACTIVITIES));
+					journal.deleteArtifacts();
+					journal.writeQuietly();
+				}
+			}
+			freed += collectOptimizedOrphans();
+			freed += collectOatOrphans();
+			Log.i(tag, "gc: freed " + freed + " bytes");
+		}
+	}
+
+	/**
+	 * Android 8.0 起：插件apk、代理dex与共用库已删除后留在 oat/ 中的文件
+	 */
+	private long collectOatOrphans() {
+		long freed = collectOatOrphans(pluginsDir)
+				+ collectOatOrphans(new File(pluginsDir, PluginLayout.DIR_SHARED));
+		File[] files = pluginsDir.listFiles();
+		if (files != null) {
+			for (File dir : files) {
+				String pluginId = pluginIdOf(dir);
+				if (pluginId != null && !isInUse(pluginId)) {
+					freed += collectOatOrphans(new File(dir,
+							PluginLayout.DIR_ACTIVITIES));
+				}
+			}
+		}
+		return freed;
+	}
+
+	/**
+	 * 删除已卸载插件与旧版本的优化dex目录，以及 plugsout 根目录下没有对应共用库的优化dex(包括旧布局留下的文件)
+	 */
+	private long collectOptimizedOrphans() {
+		File[] entries = optimizedDir.listFiles();
+		if (entries == null || entries.length == 0) {
+			return 0;
+		}
+		Set<String> live = new HashSet<String>();
+		File[] libs = new File(pluginsDir, PluginLayout.DIR_SHARED).listFiles();
+		if (libs != null) {
+			for (File l : libs) {
+				live.add(optimizedFileName(l));
+			}
+		}
+		long freed = 0;
+		for (File f : entries) {
+			if (f.isDirectory()) {
+				freed += collectOptimizedVersions(f);
+			} else if (!live.contains(f.getName())) {
+				freed += f.length();
+				f.delete();
+			}
+		}
+		return freed;
+	}
+
+	/**
+	 * 已加载的插件只保留正在使用的版本，没有加载的保留最近使用的版本
+	 */
+	private long collectOptimizedVersions(File pluginOdexDir) {
+		String pluginId = pluginOdexDir.getName();
+		if (isInstalling(pluginId)) {
+			return 0;
+		}
+		File[] versions = pluginOdexDir.listFiles();
+		long freed = 0;
+		PluginJournal journal = null;
+		if (new File(pluginsDir, pluginId + PluginLayout.DIR_SUFFIX)
+				.isDirectory()) {
+			journal = PluginJournal.read(pluginId);
+		}
+		if (versions == null || journal == null
+				|| PluginJournal.STATE_UNINSTALLED.equals(journal.getState())) {
+			freed += sizeOf(pluginOdexDir);
+			PluginLayout.deleteRecursive(pluginOdexDir);
+			return freed;
+		}
+		File keep = null;
+		PlugInfo plugin = mgr.getPluginById(pluginId);
+		if (plugin != null && plugin.getClassLoader() != null) {
+			keep = plugin.getClassLoader().getOptimizedDir();
+		} else {
+			for (File v : versions) {
+				if (keep == null
+						|| new File(v, FILE_OPTIMIZED_STAMP).lastModified() > new File(
+								keep, FILE_OPTIMIZED_STAMP).lastModified()) {
+					keep = v;
+				}
+			}
+		}
+		for (File v : versions) {
+			if (!v.equals(keep)) {
+				freed += sizeOf(v);
+				PluginLayout.deleteRecursive(v);
+				Log.i(tag, "gc: removed old optimized dir " + v);
+			}
+		}
+		return freed;
+	}
+
+	/**
+	 * 所有派生文件
+	 */
+	List<Artifact> collectArtifacts() {
+		List<Artifact> rs = new ArrayList<Artifact>();
+		File[] files = pluginsDir.listFiles();
+		if (files == null) {
+			return rs;
+		}
+		for (File dir : files) {
+			String pluginId = pluginIdOf(dir);
+			if (pluginId == null) {
+				continue;
+			}
+			boolean loaded = isInUse(pluginId);
+			File[] proxies = new File(dir, PluginLayout.DIR_ACTIVITIES)
+					.listFiles();
+			if (proxies != null) {
+				long lastLoaded = lastLoaded(pluginId);
+				for (File p : proxies) {
+					if (!p.isFile()) {
+						continue;
+					}
+					long lastUsed = Math.max(p.lastModified(), lastLoaded);
+					rs.add(new Artifact(p, pluginId, !loaded, lastUsed));
+					for (File oat : listOatFiles(p)) {
+						rs.add(new Artifact(oat, pluginId, !loaded, lastUsed));
+					}
+				}
+			}
+			File[] libs = new File(dir, PluginLayout.DIR_LIB).listFiles();
+			if (libs != null) {
+				for (File l : libs) {
+					// .so 只在安装时解压，不淘汰
+					rs.add(new Artifact(l, pluginId, false));
+				}
+			}
+		}
+		addOatArtifacts(rs, pluginsDir, false);
+		addOatArtifacts(rs, new File(pluginsDir, PluginLayout.DIR_SHARED), true);
+		File[] odexes = optimizedDir.listFiles();
+		if (odexes != null) {
+			for (File odex : odexes) {
+				if (odex.isFile()) {
+					// 共用库的优化dex
+					rs.add(new Artifact(odex, null, true));
+					continue;
+				}
+				boolean loaded = isInUse(odex.getName());
+				File[] versions = odex.listFiles();
+				if (versions == null) {
+					continue;
+				}
+				for (File v : versions) {
+					File[] odexFiles = v.listFiles();
+					if (odexFiles == null) {
+						continue;
+					}
+					for (File f : odexFiles) {
+						if (!FILE_OPTIMIZED_STAMP.equals(f.getName())) {
+							rs.add(new Artifact(f, null, !loaded));
+						}
+					}
+				}
+			}
+		}
+		return rs;
+	}
+
+	/**
+	 * 插件apk的 oat 文件只计入预算，不淘汰(与 .so 一样只在来源删除后清理)
+	 */
+	private static void addOatArtifacts(List<Artifact> rs, File dir,
+			boolean evictable) {
+		File[] isas = new File(dir, DIR_OAT).listFiles();
+		if (isas == null) {
+			return;
+		}
+		for (File isa : isas) {
+			File[] files = isa.listFiles();
+			if (files != null) {
+				for (File f : files) {
+					rs.add(new Artifact(f, null, evictable));
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return 插件最近一次加载的时间(优化dex目录的 stamp 在每次加载时更新)
+	 */
+	private long lastLoaded(String pluginId) {
+		File[] versions = new File(optimizedDir, pluginId).listFiles();
+		long rs = 0;
+		if (versions != null) {
+			for (File v : versions) {
+				rs = Math.max(rs, new File(v, FILE_OPTIMIZED_STAMP)
+						.lastModified());
+			}
+		}
+		return rs;
+	}
+
+	/**
+	 * @return 派生文件占用的总字节数
+	 */
+	long getDerivedSize() {
+		long total = 0;
+		for (Artifact a : collectArtifacts()) {
+			total += a.size;
+		}
+		return total;
+	}
+
+	/**
+	 * 超出预算时按LRU淘汰
+	 *
+	 * @return 释放的字节数
+	 */
+	long trim() {
+		long budget = diskBudget;
+		if (budget < 0) {
+			return 0;
+		}
+		synchronized (lock) {
+			List<Artifact> all = collectArtifacts();
+			long total = 0;
+			List<Artifact> candidates = new ArrayList<Artifact>();
+			for (Artifact a : all) {
+				total += a.size;
+				if (a.evictable) {
+					candidates.add(a);
+				}
+			}
+			if (total <= budget) {
+				return 0;
+			}
+			Collections.sort(candidates, new Comparator<Artifact>() {
+				public int compare(Artifact lhs, Artifact rhs) {
+					return lhs.lastUsed < rhs.lastUsed ? -1
+							: (lhs.lastUsed == rhs.lastUsed ? 0 : 1);
+				}
+			});
+			long freed = 0;
+			for (Artifact a : candidates) {
+				if (total - freed <= budget) {
+					break;
+				}
+				if (!a.file.delete()) {
+					continue;
+				}
+				freed += a.size;
+				if (a.pluginId != null) {
+					PluginJournal journal = PluginJournal.read(a.pluginId);
+					if (journal != null && journal.hasArtifact(a.file)) {
+						journal.removeArtifact(a.file);
+						journal.writeQuietly();
+					}
+				}
+			}
+			Log.i(tag, "trim: total=" + total + ", budget=" + budget
+					+ ", freed=" + freed);
+			return freed;
+		}
+	}
+
+	private static long sizeOf(File f) {
+		if (f.isFile()) {
+			return f.length();
+		}
+		long total = 0;
+		File[] children = f.listFiles();
+		if (children != null) {
+			for (File c : children) {
+				total += sizeOf(c);
+			}
+		}
+		return total;
+	}
+}
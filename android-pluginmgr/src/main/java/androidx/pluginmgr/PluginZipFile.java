@@ -0,0 +1,423 @@
+/*
+ * Copyright (C) 2015 HouKx <hkx.aidream@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package androidx.pluginmgr;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * 轻量的只读zip(apk)读取器
+ * <p>
+ * 与 {@link java.util.zip.ZipFile} 不同，打开条目时使用 {@link IoPools} 中共享的 Inflater 和缓冲区，
+ * 关闭条目流时归还。读取使用 FileChannel 的定位读，多个线程可以同时读取不同条目。
+ * <p>
+ * 只支持 STORED 和 DEFLATED 条目，不支持 zip64 与加密条目(apk 不会用到)。
+ */
+class PluginZipFile implements Closeable {
+	private static final int LOCSIG = 0x04034b50;
+	private static final int CENSIG = 0x02014b50;
+	private static final int ENDSIG = 0x06054b50;
+	private static final int LOCHDR = 30;
+	private static final int CENHDR = 46;
+	private static final int ENDHDR = 22;
+	/**
+	 * 中央目录结束记录最多带 64K 的注释
+	 */
+	private static final int MAX_COMMENT = 0xFFFF;
+
+	/**
+	 * zip 条目(中央目录中的记录)
+	 */
+	static final class Entry {
+		final String name;
+		final int method;
+		final long crc;
+		final long compressedSize;
+		final long size;
+		final long localHeaderOffset;
+		/**
+		 * MS-DOS 格式的修改时间(低16位时间，高16位日期)
+		 */
+		final int dosTime;
+		/**
+		 * 数据起始偏移，第一次打开时从本地文件头解析
+		 */
+		volatile long dataOffset = -1;
+
+		Entry(String name, int method, long crc, long compressedSize,
+				long size, long localHeaderOffset, int dosTime) {
+			this.name = name;
+			this.dosTime = dosTime;
+			this.method = method;
+			this.crc = crc;
+			this.compressedSize = compressedSize;
+			this.size = size;
+			this.localHeaderOffset = localHeaderOffset;
+		}
+
+		String getName() {
+			return name;
+		}
+
+		long getSize() {
+			return size;
+		}
+
+		long getCrc() {
+			return crc;
+		}
+
+		/**
+		 * 内容是否相同(比较CRC与大小)
+		 */
+		boolean sameContent(Entry other) {
+			return other != null && crc == other.crc && size == other.size;
+		}
+
+		boolean isDirectory() {
+			return name.endsWith("/");
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+
+	private final File file;
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private final Map<String, Entry> entries;
+
+	PluginZipFile(File file) throws IOException {
+		this.file = file;
+		raf = new RandomAccessFile(file, "r");
+		channel = raf.getChannel();
+		try {
+			entries = readCentralDirectory();
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		}
+	}
+
+	File getFile() {
+		return file;
+	}
+
+	Entry getEntry(String name) {
+		return entries.get(name);
+	}
+
+	/**
+	 * @return 按中央目录顺序排列的所有条目
+	 */
+	Collection<Entry> entries() {
+		return Collections.unmodifiableCollection(entries.values());
+	}
+
+	/**
+	 * 打开条目的解压流，调用者必须关闭它以归还池中的资源
+	 */
+	InputStream getInputStream(Entry entry) throws IOException {
+		InputStream raw = new SliceInputStream(channel, getDataOffset(entry),
+				entry.compressedSize);
+		if (entry.method == ZipEntry.STORED) {
+			return raw;
+		}
+		if (entry.method != ZipEntry.DEFLATED) {
+			throw new ZipException("unsupported compression method "
+					+ entry.method + ": " + entry.name);
+		}
+		return new PooledInflaterInputStream(raw, entry.size);
+	}
+
+	/**
+	 * 打开条目未解压的原始数据
+	 */
+	InputStream getRawInputStream(Entry entry) throws IOException {
+		return new SliceInputStream(channel, getDataOffset(entry),
+				entry.compressedSize);
+	}
+
+	private long getDataOffset(Entry entry) throws IOException {
+		long off = entry.dataOffset;
+		if (off >= 0) {
+			return off;
+		}
+		ByteBuffer loc = readFully(entry.localHeaderOffset, LOCHDR);
+		if (loc.getInt(0) != LOCSIG) {
+			throw new ZipException("bad local header: " + entry.name);
+		}
+		int nameLen = loc.getShort(26) & 0xFFFF;
+		int extraLen = loc.getShort(28) & 0xFFFF;
+		off = entry.localHeaderOffset + LOCHDR + nameLen + extraLen;
+		entry.dataOffset = off;
+		return off;
+	}
+
+	private Map<String, Entry> readCentralDirectory() throws IOException {
+		long fileLen = channel.size();
+		if (fileLen < ENDHDR) {
+			throw new ZipException("not a zip file: " + file);
+		}
+		int scanLen = (int) Math.min(fileLen, ENDHDR + MAX_COMMENT);
+		long scanStart = fileLen - scanLen;
+		ByteBuffer tail = readFully(scanStart, scanLen);
+		int endPos = -1;
+		for (int i = scanLen - ENDHDR; i >= 0; i--) {
+			if (tail.getInt(i) == ENDSIG) {
+				endPos = i;
+				break;
+			}
+		}
+		if (endPos < 0) {
+			throw new ZipException("end of central directory not found: "
+					+ file);
+		}
+		int count = tail.getShort(endPos + 10) & 0xFFFF;
+		long cenSize = tail.getInt(endPos + 12) & 0xFFFFFFFFL;
+		long cenOffset = tail.getInt(endPos + 16) & 0xFFFFFFFFL;
+		if (cenOffset + cenSize > scanStart + endPos) {
+			throw new ZipException("bad central directory: " + file);
+		}
+		ByteBuffer cen = readFully(cenOffset, (int) cenSize);
+		Map<String, Entry> map = new LinkedHashMap<String, Entry>(
+				count * 4 / 3 + 1);
+		int pos = 0;
+		for (int i = 0; i < count; i++) {
+			if (pos + CENHDR > cenSize || cen.getInt(pos) != CENSIG) {
+				throw new ZipException("bad central directory entry: "
+						+ file);
+			}
+			int flags = cen.getShort(pos + 8) & 0xFFFF;
+			int method = cen.getShort(pos + 10) & 0xFFFF;
+			int dosTime = cen.getInt(pos + 12);
+			long crc = cen.getInt(pos + 16) & 0xFFFFFFFFL;
+			long csize = cen.getInt(pos + 20) & 0xFFFFFFFFL;
+			long size = cen.getInt(pos + 24) & 0xFFFFFFFFL;
+			int nameLen = cen.getShort(pos + 28) & 0xFFFF;
+			int extraLen = cen.getShort(pos + 30) & 0xFFFF;
+			int commentLen = cen.getShort(pos + 32) & 0xFFFF;
+			long locOffset = cen.getInt(pos + 42) & 0xFFFFFFFFL;
+			byte[] nameBytes = new byte[nameLen];
+			cen.position(pos + CENHDR);
+			cen.get(nameBytes);
+			String name = new String(nameBytes, "UTF-8");
+			if ((flags & 1) == 0) {
+				// 跳过加密条目
+				map.put(name, new Entry(name, method, crc, csize, size,
+						locOffset, dosTime));
+			}
+			pos += CENHDR + nameLen + extraLen + commentLen;
+		}
+		return map;
+	}
+
+	private ByteBuffer readFully(long position, int len) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(len).order(ByteOrder.LITTLE_ENDIAN);
+		while (buf.hasRemaining()) {
+			int n = channel.read(buf, position + buf.position());
+			if (n < 0) {
+				throw new EOFException(file.toString());
+			}
+		}
+		buf.flip();
+		return buf;
+	}
+
+	public void close() throws IOException {
+		raf.close();
+	}
+
+	/**
+	 * 文件中一段区域的输入流，使用定位读，不改变 channel 的位置
+	 */
+	private static final class SliceInputStream extends InputStream {
+		private final FileChannel channel;
+		private long position;
+		private long remaining;
+
+		SliceInputStream(FileChannel channel, long position, long length) {
+			this.channel = channel;
+			this.position = position;
+			this.remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining <= 0) {
+				return -1;
+			}
+			if (len > remaining) {
+				len = (int) remaining;
+			}
+			int n = channel.read(ByteBuffer.wrap(b, off, len), position);
+			if (n < 0) {
+				throw new EOFException();
+			}
+			position += n;
+			remaining -= n;
+			return n;
+		}
+
+		@Override
+		public long skip(long n) {
+			long k = Math.min(n, remaining);
+			position += k;
+			remaining -= k;
+			return k;
+		}
+
+		@Override
+		public int available() {
+			return (int) Math.min(remaining, Integer.MAX_VALUE);
+		}
+	}
+
+	/**
+	 * 使用池中 Inflater 与缓冲区的解压流
+	 * <p>
+	 * 解压结果先放入输出缓冲区，单字节读取(例如 XmlManifestReader)也不会频繁调用 native 方法
+	 */
+	private static final class PooledInflaterInputStream extends InputStream {
+		private final InputStream in;
+		private final long size;
+		private Inflater inf;
+		private byte[] inBuf;
+		private byte[] outBuf;
+		private int outPos;
+		private int outLen;
+		private long produced;
+		private boolean inputEof;
+
+		PooledInflaterInputStream(InputStream in, long size) {
+			this.in = in;
+			this.size = size;
+			inf = IoPools.obtainInflater();
+			inBuf = IoPools.obtainBuffer();
+			outBuf = IoPools.obtainBuffer();
+		}
+
+		private void ensureOpen() throws IOException {
+			if (inf == null) {
+				throw new IOException("stream closed");
+			}
+		}
+
+		/**
+		 * @return false 表示已到达数据末尾
+		 */
+		private boolean fillOutput() throws IOException {
+			outPos = 0;
+			outLen = 0;
+			try {
+				while (outLen == 0) {
+					if (inf.finished() || inf.needsDictionary()) {
+						return false;
+					}
+					if (inf.needsInput()) {
+						int n = in.read(inBuf, 0, inBuf.length);
+						if (n == -1) {
+							if (inputEof) {
+								throw new EOFException(
+										"unexpected end of zip entry");
+							}
+							// nowrap 模式下需要额外一个哑字节
+							inputEof = true;
+							inBuf[0] = 0;
+							n = 1;
+						}
+						inf.setInput(inBuf, 0, n);
+					}
+					outLen = inf.inflate(outBuf, 0, outBuf.length);
+				}
+			} catch (DataFormatException e) {
+				String msg = e.getMessage();
+				throw new ZipException(msg != null ? msg
+						: "invalid deflate data");
+			}
+			produced += outLen;
+			return true;
+		}
+
+		@Override
+		public int read() throws IOException {
+			ensureOpen();
+			if (outPos >= outLen && !fillOutput()) {
+				return -1;
+			}
+			return outBuf[outPos++] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			ensureOpen();
+			if (len == 0) {
+				return 0;
+			}
+			if (outPos >= outLen && !fillOutput()) {
+				return -1;
+			}
+			int n = Math.min(len, outLen - outPos);
+			System.arraycopy(outBuf, outPos, b, off, n);
+			outPos += n;
+			return n;
+		}
+
+		@Override
+		public int available() throws IOException {
+			ensureOpen();
+			long left = size - produced + (outLen - outPos);
+			return (int) Math.max(0, Math.min(left, Integer.MAX_VALUE));
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (inf == null) {
+				return;
+			}
+			IoPools.recycleInflater(inf);
+			IoPools.recycleBuffer(inBuf);
+			IoPools.recycleBuffer(outBuf);
+			inf = null;
+			inBuf = null;
+			outBuf = null;
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2015 HouKx <hkx.aidream@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package androidx.pluginmgr;
+
+import android.content.pm.ActivityInfo;
+
+/**
+ * 代理Activity运行时需要的插件信息
+ * <p>
+ * 每个代理类在第一次需要时绑定一次：生成的 <code>private static ProxyActivityHandle _getHandle()</code>
+ * 在静态字段 <code>_handle</code>(非 final)为 null 时调用 <code>ProxyActivityHandle.bind(pluginId, 代理类.class)</code>
+ * 并保存，之后的生命周期回调直接读这个字段，不再按插件id查表、也不再通过 getSuperclass() 取类名。
+ * 并发时可能重复绑定，结果等价，不需要加锁。
+ * <p>
+ * 代理类由插件自己的代理类加载器定义，插件重新加载后是新的类，因此绑定的 PlugInfo 不会过期
+ */
+public final class ProxyActivityHandle {
+	final PlugInfo plugin;
+	final String pluginId;
+	/**
+	 * 插件Activity的类名(代理类的父类)
+	 */
+	final String activityName;
+	final ActivityInfo activityInfo;
+	final int theme;
+
+	private ProxyActivityHandle(PlugInfo plugin, String activityName,
+			ActivityInfo activityInfo) {
+		this.plugin = plugin;
+		this.pluginId = plugin.getId();
+		this.activityName = activityName;
+		this.activityInfo = activityInfo;
+		this.theme = activityInfo == null ? 0 : activityInfo
+				.getThemeResource();
+	}
+
+	/**
+	 * 供生成的代理类在 _getHandle() 中调用(第一次调用时)
+	 */
+	public static ProxyActivityHandle bind(String pluginId, Class<?> proxyClass) {
+		PlugInfo plugin = PluginManager.getInstance().getPluginById(pluginId);
+		if (plugin == null) {
+			throw new IllegalStateException("plugin not loaded: " + pluginId);
+		}
+		String actName = proxyClass.getSuperclass().getName();
+		ActivityInfo actInfo = plugin.findActivityByClassName(actName);
+		if (actInfo != null) {
+			actInfo.applicationInfo = plugin.getPackageInfo().applicationInfo;
+		}
+		return new ProxyActivityHandle(plugin, actName, actInfo);
+	}
+
+	@Override
+	public String toString() {
+		return "ProxyActivityHandle[" + pluginId + '/' + activityName + ']';
+	}
+}
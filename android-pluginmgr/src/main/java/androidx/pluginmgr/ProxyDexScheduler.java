@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2015 HouKx <hkx.aidream@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package androidx.pluginmgr;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+/**
+ * 在后台预先生成代理Activity的dex并完成dexopt
+ * <p>
+ * 插件加载后排队，按过去的启动次数排序(启动越多越先生成)，次数相同时按加载顺序。
+ * 启动Activity时如果该插件的任务还在排队，则由启动线程接手(直接执行，或撤销后在内存中生成)；
+ * 如果正在执行，则等待其完成，不会重复生成。
+ * <p>
+ * 启动次数保存在插件目录下的 launch_stats 文件中，跨进程重启有效
+ */
+class ProxyDexScheduler {
+	private static final String tag = "ProxyDexScheduler";
+	private static final String FILE_STATS = "launch_stats";
+
+	private final File statsFile;
+	private final ThreadPoolExecutor executor;
+	private final ConcurrentHashMap<String, Task> inFlight = new ConcurrentHashMap<String, Task>();
+	private final AtomicLong sequence = new AtomicLong();
+	private final AtomicBoolean saveScheduled = new AtomicBoolean();
+	private ConcurrentHashMap<String, AtomicInteger> launchCounts;
+
+	/**
+	 * 一个插件的生成任务，按启动次数从多到少、再按提交顺序出队
+	 */
+	private final class Task extends FutureTask<File> implements
+			Comparable<Task> {
+		final PlugInfo plugin;
+		final int launches;
+		final long seq;
+		/**
+		 * 开始执行或被启动线程接手后置位，之后后台不会再生成
+		 */
+		final AtomicBoolean claimed;
+
+		Task(final PlugInfo plugin, int launches) {
+			this(plugin, launches, new AtomicBoolean());
+		}
+
+		private Task(final PlugInfo plugin, int launches,
+				final AtomicBoolean claimed) {
+			super(new Callable<File>() {
+				public File call() throws Exception {
+					if (!claimed.compareAndSet(false, true)) {
+						return null;
+					}
+					return generate(plugin);
+				}
+			});
+			this.claimed = claimed;
+			this.plugin = plugin;
+			this.launches = launches;
+			this.seq = sequence.incrementAndGet();
+		}
+
+		public int compareTo(Task another) {
+			if (launches != another.launches) {
+				return launches > another.launches ? -1 : 1;
+			}
+			return seq < another.seq ? -1 : (seq == another.seq ? 0 : 1);
+		}
+
+		@Override
+		protected void done() {
+			inFlight.remove(plugin.getId(), this);
+		}
+	}
+
+	ProxyDexScheduler(File pluginsDir) {
+		statsFile = new File(pluginsDir, FILE_STATS);
+		executor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+				new PriorityBlockingQueue<Runnable>(),
+				BackgroundExecutor.newThreadFactory("pluginmgr-aot"));
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * 为插件排队生成代理dex
+	 */
+	void schedule(PlugInfo plugin) {
+		if (plugin.getActivities() == null || plugin.getActivities().isEmpty()) {
+			return;
+		}
+		Task task = new Task(plugin, getLaunchCount(plugin.getId()));
+		Task old = inFlight.put(plugin.getId(), task);
+		if (old != null && old.plugin != plugin) {
+			// 插件已被重新加载，旧任务作废
+			old.cancel(false);
+		}
+		executor.execute(task);
+	}
+
+	/**
+	 * 启动路径调用：确保插件的代理dex已生成
+	 */
+	void awaitProxyDex(PlugInfo plugin) {
+		Task task = inFlight.get(plugin.getId());
+		if (task == null || task.plugin != plugin) {
+			return;
+		}
+		// 还在排队时直接在当前线程执行，正在执行时 run() 立即返回，get() 等待结果
+		task.run();
+		try {
+			task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			Log.e(tag, Log.getStackTraceString(e.getCause()));
+		} catch (CancellationException e) {
+		}
+	}
+
+	/**
+	 * 启动路径调用：插件的任务还没开始执行时撤销它，由调用者自己生成(例如在内存中生成)
+	 * 
+	 * @return false 表示任务正在执行或已经执行，调用者应通过 {@link #awaitProxyDex(PlugInfo)} 等待结果
+	 */
+	boolean claimProxyDex(PlugInfo plugin) {
+		Task task = inFlight.get(plugin.getId());
+		if (task == null || task.plugin != plugin) {
+			return true;
+		}
+		if (!task.claimed.compareAndSet(false, true)) {
+			return false;
+		}
+		inFlight.remove(plugin.getId(), task);
+		task.cancel(false);
+		return true;
+	}
+
+	private File generate(PlugInfo plugin) {
+		if (PluginManager.getInstance().getPluginById(plugin.getId()) != plugin) {
+			// 已卸载或被替换
+			return null;
+		}
+		long start = System.currentTimeMillis();
+		File dex = ActivityOverider.createProxyDex(plugin, true);
+		// 同时完成dexopt，启动时只需加载
+		plugin.getClassLoader().prepareProxyActivityLoader();
+		Log.i(tag, "precompiled proxies of " + plugin.getId() + " in "
+				+ (System.currentTimeMillis() - start) + "ms");
+		return dex;
+	}
+
+	/**
+	 * 记录一次Activity启动
+	 */
+	void recordLaunch(String pluginId) {
+		ConcurrentHashMap<String, AtomicInteger> counts = getLaunchCounts();
+		AtomicInteger c = counts.get(pluginId);
+		if (c == null) {
+			AtomicInteger n = new AtomicInteger();
+			c = counts.putIfAbsent(pluginId, n);
+			if (c == null) {
+				c = n;
+			}
+		}
+		c.incrementAndGet();
+		if (saveScheduled.compareAndSet(false, true)) {
+			BackgroundExecutor.execute(new Runnable() {
+				public void run() {
+					saveScheduled.set(false);
+					saveLaunchCounts();
+				}
+			});
+		}
+	}
+
+	int getLaunchCount(String pluginId) {
+		AtomicInteger c = getLaunchCounts().get(pluginId);
+		return c == null ? 0 : c.get();
+	}
+
+	private synchronized ConcurrentHashMap<String, AtomicInteger> getLaunchCounts() {
+		if (launchCounts != null) {
+			return launchCounts;
+		}
+		launchCounts = new ConcurrentHashMap<String, AtomicInteger>();
+		if (!statsFile.isFile()) {
+			return launchCounts;
+		}
+		Properties p = new Properties();
+		FileInputStream in = null;
+		try {
+			in = new FileInputStream(statsFile);
+			p.load(in);
+			for (String id : p.stringPropertyNames()) {
+				try {
+					launchCounts.put(id,
+							new AtomicInteger(Integer.parseInt(p
+									.getProperty(id))));
+				} catch (NumberFormatException e) {
+				}
+			}
+		} catch (IOException e) {
+			Log.w(tag, "unreadable launch stats: " + e);
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+		return launchCounts;
+	}
+
+	private void saveLaunchCounts() {
+		Properties p = new Properties();
+		for (Map.Entry<String, AtomicInteger> e : getLaunchCounts().entrySet()) {
+			p.setProperty(e.getKey(), String.valueOf(e.getValue().get()));
+		}
+		File tmp = new File(statsFile.getParentFile(), FILE_STATS + ".tmp");
+		FileOutputStream out = null;
+		try {
+			out = new FileOutputStream(tmp);
+			p.store(out, null);
+			out.close();
+			out = null;
+			if (!tmp.renameTo(statsFile)) {
+				tmp.delete();
+			}
+		} catch (IOException e) {
+			Log.w(tag, "could not save launch stats: " + e);
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+}
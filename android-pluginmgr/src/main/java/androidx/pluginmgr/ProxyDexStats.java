@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2015 HouKx <hkx.aidream@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package androidx.pluginmgr;
+
+/**
+ * 一个插件的代理Activity dex的统计，通过 {@link PluginManager#getProxyDexStats(String)} 查询
+ * <p>
+ * 每个dex的大小与方法引用数(方法引用不能超过65536)，以及生成它们的耗时与检查了父类链的Activity个数
+ */
+public final class ProxyDexStats {
+	private final String pluginId;
+	private final int activityCount;
+	private final int checkedActivities;
+	private final int[] dexSizes;
+	private final int[] methodRefs;
+	private final long generationMillis;
+	private final boolean prebuilt;
+
+	ProxyDexStats(String pluginId, int activityCount, int checkedActivities,
+			int[] dexSizes, int[] methodRefs, long generationMillis,
+			boolean prebuilt) {
+		this.pluginId = pluginId;
+		this.activityCount = activityCount;
+		this.checkedActivities = checkedActivities;
+		this.dexSizes = dexSizes;
+		this.methodRefs = methodRefs;
+		this.generationMillis = generationMillis;
+		this.prebuilt = prebuilt;
+	}
+
+	public String getPluginId() {
+		return pluginId;
+	}
+
+	public int getActivityCount() {
+		return activityCount;
+	}
+
+	/**
+	 * @return 加载了Activity类检查父类链的Activity个数，插件中没有 final 的覆盖方法时为0
+	 */
+	public int getCheckedActivities() {
+		return checkedActivities;
+	}
+
+	public int getDexCount() {
+		return dexSizes.length;
+	}
+
+	/**
+	 * @return 第 i 个dex的字节数
+	 */
+	public int getDexSize(int i) {
+		return dexSizes[i];
+	}
+
+	/**
+	 * @return 第 i 个dex的方法引用数
+	 */
+	public int getMethodRefs(int i) {
+		return methodRefs[i];
+	}
+
+	public long getTotalBytes() {
+		long total = 0;
+		for (int size : dexSizes) {
+			total += size;
+		}
+		return total;
+	}
+
+	/**
+	 * @return 生成或读取预生成代理的耗时(毫秒)
+	 */
+	public long getGenerationMillis() {
+		return generationMillis;
+	}
+
+	/**
+	 * @return 是否使用了安装时带来的预生成代理(见 {@link ProxySidecar})
+	 */
+	public boolean isPrebuilt() {
+		return prebuilt;
+	}
+
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(pluginId).append(": ").append(dexSizes.length)
+				.append(" proxy dex for ").append(activityCount)
+				.append(" activities, ").append(getTotalBytes())
+				.append(" bytes in ").append(generationMillis).append("ms");
+		if (prebuilt) {
+			sb.append(" (prebuilt)");
+		}
+		for (int i = 0; i < dexSizes.length; i++) {
+			sb.append("\n  #").append(i).append(": ").append(dexSizes[i])
+					.append(" bytes, ").append(methodRefs[i])
+					.append(" method refs");
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2015 HouKx <hkx.aidream@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package androidx.pluginmgr;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * 构建时预先生成的代理dex(与插件apk放在一起的 &lt;apk&gt;.proxies 文件)
+ * <p>
+ * 它是一个zip：
+ *
+ * <pre>
+ * index.properties       生成器版本、覆盖方法集合、插件id、包名，以及每种模式的缓存键与dex个数
+ * single/classes.dex     普通模式：一个dex包含所有代理
+ * template/classesN.dex  模板模式：每个Activity一个dex
+ * </pre>
+ *
+ * 安装插件时复制到插件目录，生成代理时如果缓存键一致就直接使用其中的dex，不需要 DexMaker。
+ * 缓存键与运行时相同(见 {@link ActivityOverider#getProxyCacheKey})，因此插件id必须与运行时一致。
+ * 构建时生成全部覆盖方法({@link ActivityClassGenerator#OVERRIDES_FULL})，只能用于 API 16 以上，
+ * 更旧的系统上运行时重新生成；插件或宿主把某个覆盖方法声明为 final 时也重新生成(见 {@link ActivityOverider#createProxyDexes(PlugInfo)})
+ */
+final class ProxySidecar {
+	static final String SUFFIX = ".proxies";
+	static final String FORMAT = "1";
+	static final String ENTRY_INDEX = "index.properties";
+	static final String MODE_SINGLE = "single";
+	static final String MODE_TEMPLATE = "template";
+
+	private static final String KEY_FORMAT = "format";
+	private static final String KEY_GENERATOR = "generator";
+	private static final String KEY_OVERRIDES = "overrides";
+	private static final String KEY_ID = "id";
+	private static final String KEY_PACKAGE = "package";
+
+	private ProxySidecar() {
+	}
+
+	/**
+	 * @return 与apk放在一起的 sidecar 文件
+	 */
+	static File getSidecarFile(File apk) {
+		return new File(apk.getParentFile(), apk.getName() + SUFFIX);
+	}
+
+	/**
+	 * 生成两种模式的代理dex并写入 sidecar(在构建端使用)
+	 */
+	static void write(File out, String pluginId, String pkgName,
+			String codeFingerprint, List<String> activities) throws IOException {
+		Properties index = new Properties();
+		index.setProperty(KEY_FORMAT, FORMAT);
+		index.setProperty(KEY_GENERATOR,
+				String.valueOf(ActivityClassGenerator.GENERATOR_VERSION));
+		int overridesLevel = ActivityClassGenerator.OVERRIDES_FULL;
+		index.setProperty(KEY_OVERRIDES, String.valueOf(overridesLevel));
+		index.setProperty(KEY_ID, pluginId);
+		index.setProperty(KEY_PACKAGE, pkgName);
+		ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(out));
+		try {
+			String[] modes = { MODE_SINGLE, MODE_TEMPLATE };
+			for (String mode : modes) {
+				boolean template = MODE_TEMPLATE.equals(mode);
+				List<byte[]> dexes = ActivityClassGenerator.createProxyDexes(
+						activities, pluginId, pkgName, template);
+				index.setProperty(mode + ".key", ActivityOverider
+						.getProxyCacheKey(pluginId, pkgName, codeFingerprint,
+								activities, template, overridesLevel));
+				index.setProperty(mode + ".count",
+						String.valueOf(dexes.size()));
+				for (int i = 0; i < dexes.size(); i++) {
+					zos.putNextEntry(new ZipEntry(entryName(mode, i)));
+					zos.write(dexes.get(i));
+					zos.closeEntry();
+				}
+			}
+			zos.putNextEntry(new ZipEntry(ENTRY_INDEX));
+			index.store(zos, null);
+			zos.closeEntry();
+		} finally {
+			zos.close();
+		}
+	}
+
+	/**
+	 * @param overridesLevel
+	 *            - 本机的覆盖方法集合(见 {@link ActivityClassGenerator#getOverridesLevel})
+	 * @return sidecar 中缓存键为 key 的代理dex，没有或不匹配时返回 null
+	 */
+	static List<byte[]> read(File sidecar, String key, boolean template,
+			int overridesLevel) throws IOException {
+		if (!sidecar.isFile()) {
+			return null;
+		}
+		String mode = template ? MODE_TEMPLATE : MODE_SINGLE;
+		PluginZipFile zip = new PluginZipFile(sidecar);
+		try {
+			PluginZipFile.Entry indexEntry = zip.getEntry(ENTRY_INDEX);
+			if (indexEntry == null) {
+				return null;
+			}
+			Properties index = new Properties();
+			InputStream in = zip.getInputStream(indexEntry);
+			try {
+				index.load(in);
+			} finally {
+				in.close();
+			}
+			if (!FORMAT.equals(index.getProperty(KEY_FORMAT))
+					|| !String.valueOf(overridesLevel).equals(
+							index.getProperty(KEY_OVERRIDES))
+					|| !key.equals(index.getProperty(mode + ".key"))) {
+				return null;
+			}
+			int count = Integer.parseInt(index.getProperty(mode + ".count",
+					"0"));
+			List<byte[]> dexes = new ArrayList<byte[]>(count);
+			for (int i = 0; i < count; i++) {
+				PluginZipFile.Entry e = zip.getEntry(entryName(mode, i));
+				if (e == null) {
+					return null;
+				}
+				dexes.add(readFully(zip, e));
+			}
+			return dexes.isEmpty() ? null : dexes;
+		} finally {
+			zip.close();
+		}
+	}
+
+	private static String entryName(String mode, int i) {
+		return mode + (i == 0 ? "/classes.dex" : "/classes" + (i + 1) + ".dex");
+	}
+
+	private static byte[] readFully(PluginZipFile zip, PluginZipFile.Entry e)
+			throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream((int) e.getSize());
+		InputStream in = zip.getInputStream(e);
+		byte[] buf = IoPools.obtainBuffer();
+		try {
+			int n;
+			while ((n = in.read(buf)) != -1) {
+				bos.write(buf, 0, n);
+			}
+		} finally {
+			IoPools.recycleBuffer(buf);
+			in.close();
+		}
+		return bos.toByteArray();
+	}
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2015 HouKx <hkx.aidream@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package androidx.pluginmgr;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * 在 Dalvik 上按需打开插件apk中的次级dex(classes2.dex ... classesN.dex)
+ * <p>
+ * Dalvik 的 DexClassLoader 只打开 classes.dex。插件类加载器在主dex中找不到类时，按类索引
+ * (见 {@link DexClassIndex#dexOf(String)})找到所在的次级dex，解压到插件当前版本的优化dex目录，
+ * 再像 MultiDex 那样追加到类加载器的 pathList 中，同一个插件的类仍由同一个类加载器定义。
+ * 没有类索引时一次打开全部次级dex。
+ * <p>
+ * ART 在创建类加载器时已经打开了apk中的全部dex并一起编译，不需要也不能这样处理
+ */
+final class SecondaryDexes {
+	private static final String tag = "SecondaryDexes";
+
+	private final PluginClassLoader loader;
+	private final File apk;
+	private final File optimizedDir;
+	/**
+	 * 次级dex的序号 -&gt; 条目名，第一次需要时读取
+	 */
+	private String[] entries;
+	private boolean[] opened;
+
+	SecondaryDexes(PluginClassLoader loader, File apk, File optimizedDir) {
+		this.loader = loader;
+		this.apk = apk;
+		this.optimizedDir = optimizedDir;
+	}
+
+	/**
+	 * @return 当前虚拟机是否需要按需打开次级dex：Dalvik 且支持 pathList(Android 4.0+)
+	 */
+	static boolean isRequired() {
+		if (Build.VERSION.SDK_INT < 14) {
+			return false;
+		}
+		String vm = System.getProperty("java.vm.version");
+		return vm == null || vm.startsWith("0.") || vm.startsWith("1.");
+	}
+
+	/**
+	 * 打开类所在的次级dex
+	 * 
+	 * @param dexOrdinal
+	 *            - 类索引给出的dex序号，小于0表示不知道，打开全部
+	 * @return 是否打开了新的dex
+	 */
+	synchronized boolean openFor(int dexOrdinal) {
+		try {
+			if (entries == null) {
+				listEntries();
+			}
+			if (dexOrdinal >= 0) {
+				return dexOrdinal < entries.length && open(dexOrdinal);
+			}
+			boolean any = false;
+			for (int i = 1; i < entries.length; i++) {
+				any |= open(i);
+			}
+			return any;
+		} catch (Exception e) {
+			Log.e(tag, "cannot open secondary dex of " + apk + ": "
+					+ Log.getStackTraceString(e));
+			return false;
+		}
+	}
+
+	private void listEntries() throws IOException {
+		PluginZipFile zip = new PluginZipFile(apk);
+		try {
+			String[] rs = new String[1];
+			for (PluginZipFile.Entry entry : zip.entries()) {
+				int ordinal = DexClassIndex.dexOrdinal(entry.getName());
+				if (ordinal <= 0) {
+					continue;
+				}
+				if (ordinal >= rs.length) {
+					String[] grown = new String[ordinal + 1];
+					System.arraycopy(rs, 0, grown, 0, rs.length);
+					rs = grown;
+				}
+				rs[ordinal] = entry.getName();
+			}
+			entries = rs;
+			opened = new boolean[rs.length];
+		} finally {
+			zip.close();
+		}
+	}
+
+	private boolean open(int ordinal) throws Exception {
+		if (opened[ordinal] || entries[ordinal] == null) {
+			return false;
+		}
+		long start = System.currentTimeMillis();
+		File jar = extract(entries[ordinal]);
+		appendToPathList(jar);
+		PluginStorageManager.touch(new File(optimizedDir,
+				PluginStorageManager.optimizedFileName(jar)));
+		opened[ordinal] = true;
+		Log.i(tag, "opened " + entries[ordinal] + " of " + apk.getName()
+				+ " in " + (System.currentTimeMillis() - start) + "ms");
+		return true;
+	}
+
+	/**
+	 * 解压为只包含 classes.dex 的jar；优化dex目录按插件版本区分，已存在的jar直接使用
+	 */
+	private File extract(String entryName) throws IOException {
+		String base = entryName.substring(0, entryName.length()
+				- ".dex".length());
+		File jar = new File(optimizedDir, base + ".zip");
+		if (jar.isFile()) {
+			return jar;
+		}
+		File tmp = new File(optimizedDir, base + ".zip.tmp");
+		PluginZipFile zip = new PluginZipFile(apk);
+		try {
+			InputStream in = zip.getInputStream(zip.getEntry(entryName));
+			ZipOutputStream out = new ZipOutputStream(new FileOutputStream(tmp));
+			byte[] buf = IoPools.obtainBuffer();
+			try {
+				out.putNextEntry(new ZipEntry("classes.dex"));
+				int n;
+				while ((n = in.read(buf, 0, buf.length)) != -1) {
+					out.write(buf, 0, n);
+				}
+				out.closeEntry();
+			} finally {
+				IoPools.recycleBuffer(buf);
+				in.close();
+				out.close();
+			}
+		} finally {
+			zip.close();
+		}
+		if (!tmp.renameTo(jar)) {
+			tmp.delete();
+			throw new IOException("cannot rename " + tmp);
+		}
+		return jar;
+	}
+
+	/**
+	 * 与 MultiDex 相同：用 DexPathList.makeDexElements 创建元素并追加到 dexElements
+	 */
+	private void appendToPathList(File jar) throws Exception {
+		Object pathList = ReflectionUtils.getFieldValue(loader, "pathList");
+		ArrayList<File> files = new ArrayList<File>();
+		files.add(jar);
+		Object[] added;
+		if (Build.VERSION.SDK_INT >= 19) {
+			Method m = pathList.getClass().getDeclaredMethod("makeDexElements",
+					ArrayList.class, File.class, ArrayList.class);
+			m.setAccessible(true);
+			ArrayList<IOException> errors = new ArrayList<IOException>();
+			added = (Object[]) m.invoke(null, files, optimizedDir, errors);
+			if (!errors.isEmpty()) {
+				throw errors.get(0);
+			}
+		} else {
+			Method m = pathList.getClass().getDeclaredMethod("makeDexElements",
+					ArrayList.class, File.class);
+			m.setAccessible(true);
+			added = (Object[]) m.invoke(null, files, optimizedDir);
+		}
+		Object[] old = ReflectionUtils.getFieldValue(pathList, "dexElements");
+		Object[] merged = (Object[]) Array.newInstance(old.getClass()
+				.getComponentType(), old.length + added.length);
+		System.arraycopy(old, 0, merged, 0, old.length);
+		System.arraycopy(added, 0, merged, old.length, added.length);
+		ReflectionUtils.setFieldValue(pathList, "dexElements", merged);
+	}
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2015 HouKx <hkx.aidream@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package androidx.pluginmgr;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import android.os.Build;
+import android.util.Log;
+import dalvik.system.DexClassLoader;
+
+/**
+ * 插件之间共用的库(目前只有 support 库)
+ * <p>
+ * 指纹(见 {@link DexClassIndex#getSupportFingerprint()})相同的插件共用一个类加载器，
+ * 同一个版本的 support 库在进程中只加载一份；版本不同的插件各自使用自己的副本。
+ * <p>
+ * 共用的加载器从第一个带有该版本的插件中复制出含有 support 类的dex(plugins/shared/)，
+ * 复制与 dexopt 都在后台进行；准备好之前启动的插件仍使用自己的副本。
+ * 复制的dex中也有插件自己的类，多出的存储与 dexopt 时间与这些dex的大小成正比，每个版本只有一次。
+ * <p>
+ * 只在 ART 上共用：Dalvik 的 dexopt 会把插件dex中的类标记为已预校验，
+ * 它们引用的 support 类改由另一个加载器提供时会抛出 IllegalAccessError。
+ * 插件代码中的 R 类(android.support.**.R$*)不共用，总是从插件自己的dex加载；
+ * 共用的加载器内部使用的 R 类与插件的资源id一致，因为指纹包括了 R 类的内容
+ */
+final class SharedLibraries {
+	private static final String tag = "SharedLibraries";
+	static final String SUPPORT_PREFIX = "android.support.";
+	/**
+	 * ART(Android 5.0)
+	 */
+	private static final int MIN_SDK = 21;
+
+	private final ClassLoader hostLoader;
+	private final String optimizedDir;
+	/**
+	 * 指纹 -&gt; 已准备好的类加载器
+	 */
+	private final Map<Long, ClassLoader> supportLoaders = new HashMap<Long, ClassLoader>();
+	private final Set<Long> preparing = new HashSet<Long>();
+
+	SharedLibraries(ClassLoader hostLoader, String optimizedDir) {
+		this.hostLoader = hostLoader;
+		this.optimizedDir = optimizedDir;
+	}
+
+	static boolean isSupported() {
+		return Build.VERSION.SDK_INT >= MIN_SDK;
+	}
+
+	/**
+	 * @return 能否从共用的加载器加载：support 库中除 R 与 R$xxx 以外的类
+	 */
+	static boolean isSharable(String className) {
+		if (!className.startsWith(SUPPORT_PREFIX)) {
+			return false;
+		}
+		int simpleName = className.lastIndexOf('.') + 1;
+		return !className.startsWith("R", simpleName)
+				|| className.length() > simpleName + 1
+				&& className.charAt(simpleName + 1) != '$';
+	}
+
+	/**
+	 * @return 已准备好的共用 support 库加载器，没有时返回 null
+	 */
+	synchronized ClassLoader getSupportLoader(long fingerprint) {
+		return supportLoaders.get(fingerprint);
+	}
+
+	/**
+	 * 在后台为插件的 support 库准备共用的加载器(已有或正在准备时什么也不做)
+	 */
+	void prepareSupportLoader(PlugInfo plugin, final DexClassIndex index) {
+		final long fingerprint = index.getSupportFingerprint();
+		if (fingerprint == 0) {
+			return;
+		}
+		synchronized (this) {
+			if (supportLoaders.containsKey(fingerprint)
+					|| !preparing.add(fingerprint)) {
+				return;
+			}
+		}
+		final File apk = new File(plugin.getFilePath());
+		BackgroundExecutor.execute(new Runnable() {
+			public void run() {
+				ClassLoader loader = null;
+				try {
+					File jar = PluginLayout.getSharedLibraryFile("support-"
+							+ Long.toHexString(fingerprint));
+					if (!jar.isFile()) {
+						extractDexes(apk, index, jar);
+					}
+					loader = new LibraryClassLoader(jar.getAbsolutePath(),
+							optimizedDir, hostLoader, SUPPORT_PREFIX);
+					// 在后台完成 dexopt 与第一次加载
+					loader.loadClass(SUPPORT_PREFIX + "v4.app.Fragment");
+				} catch (ClassNotFoundException e) {
+					// 只有部分 support 库，不影响使用
+				} catch (Exception e) {
+					Log.w(tag, "cannot prepare shared support library: " + e);
+					loader = null;
+				}
+				synchronized (SharedLibraries.this) {
+					preparing.remove(fingerprint);
+					if (loader != null) {
+						supportLoaders.put(fingerprint, loader);
+						Log.i(tag, "shared support library ready: "
+								+ Long.toHexString(fingerprint));
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * 把apk中含有 support 类的 classes*.dex 原样复制到一个新的jar，按顺序重新编号
+	 */
+	private static void extractDexes(File apk, DexClassIndex index, File jar)
+			throws IOException {
+		File tmp = new File(jar.getPath() + ".tmp");
+		PluginZipFile zip = new PluginZipFile(apk);
+		try {
+			ZipRawWriter writer = new ZipRawWriter(new BufferedOutputStream(
+					new FileOutputStream(tmp), IoPools.BUFFER_SIZE));
+			try {
+				Map<Integer, PluginZipFile.Entry> dexes = new TreeMap<Integer, PluginZipFile.Entry>();
+				for (PluginZipFile.Entry e : zip.entries()) {
+					int ordinal = DexClassIndex.dexOrdinal(e.getName());
+					if (ordinal >= 0 && index.hasSupportClasses(ordinal)) {
+						dexes.put(ordinal, e);
+					}
+				}
+				int count = 0;
+				for (PluginZipFile.Entry e : dexes.values()) {
+					writer.copyEntry(zip, e, count == 0 ? "classes.dex"
+							: "classes" + (count + 1) + ".dex", e.dosTime);
+					count++;
+				}
+				writer.finish();
+			} finally {
+				writer.close();
+			}
+		} finally {
+			zip.close();
+		}
+		if (!tmp.renameTo(jar)) {
+			tmp.delete();
+			throw new IOException("cannot rename " + tmp);
+		}
+	}
+
+	/**
+	 * 只定义指定包中的类，其余交给宿主
+	 */
+	private static final class LibraryClassLoader extends DexClassLoader {
+		private final String prefix;
+
+		LibraryClassLoader(String dexPath, String optimizedDir,
+				ClassLoader parent, String prefix) {
+			super(dexPath, optimizedDir, null, parent);
+			this.prefix = prefix;
+		}
+
+		@Override
+		protected Class<?> loadClass(String name, boolean resolve)
+				throws ClassNotFoundException {
+			if (!name.startsWith(prefix)) {
+				return super.loadClass(name, resolve);
+			}
+			// 包括 R 类：support 库内部引用的资源id由指纹保证与插件一致
+			synchronized (this) {
+				Class<?> c = findLoadedClass(name);
+				if (c == null) {
+					c = findClass(name);
+				}
+				if (resolve) {
+					resolveClass(c);
+				}
+				return c;
+			}
+		}
+	}
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2015 HouKx <hkx.aidream@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package androidx.pluginmgr;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipInputStream;
+
+import android.util.Log;
+
+/**
+ * 单趟复制管道
+ * <p>
+ * 复制的同时计算摘要(默认SHA-256)和整个文件的CRC32，可选地校验zip中每个条目的CRC，
+ * 并按字节数报告进度与吞吐量。对大文件只读一遍。
+ * <p>
+ * 非线程安全，每次复制使用一个新实例
+ */
+class StreamCopier {
+	private static final String tag = "StreamCopier";
+	static final String DEFAULT_DIGEST = "SHA-256";
+	/**
+	 * 每复制这么多字节回调一次进度
+	 */
+	private static final long PROGRESS_STEP = 256 * 1024;
+
+	/**
+	 * 复制进度回调
+	 */
+	interface ProgressListener {
+		/**
+		 * @param bytesCopied
+		 *            - 已复制字节数
+		 * @param totalBytes
+		 *            - 总字节数，未知时为 -1
+		 * @param bytesPerSecond
+		 *            - 当前吞吐量
+		 */
+		void onProgress(long bytesCopied, long totalBytes, long bytesPerSecond);
+	}
+
+	private final MessageDigest digest;
+	private final CRC32 crc = new CRC32();
+	private boolean verifyZip;
+	private ProgressListener progressListener;
+	private long totalBytes = -1;
+	private long bytesCopied;
+	private long lastReported;
+	private long startNanos;
+	private long elapsedNanos;
+	private byte[] digestValue;
+
+	StreamCopier() {
+		this(DEFAULT_DIGEST);
+	}
+
+	StreamCopier(String digestAlgorithm) {
+		try {
+			digest = MessageDigest.getInstance(digestAlgorithm);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalArgumentException(digestAlgorithm, e);
+		}
+	}
+
+	/**
+	 * 是否在复制的同时校验zip条目的CRC(使用于apk)
+	 */
+	StreamCopier setVerifyZip(boolean verifyZip) {
+		this.verifyZip = verifyZip;
+		return this;
+	}
+
+	StreamCopier setProgressListener(ProgressListener progressListener) {
+		this.progressListener = progressListener;
+		return this;
+	}
+
+	/**
+	 * 复制文件
+	 *
+	 * @param source
+	 *            - 源文件
+	 * @param target
+	 *            - 目标文件
+	 * @throws IOException
+	 *             读写失败，或开启zip校验时条目CRC不匹配
+	 */
+	void copy(File source, File target) throws IOException {
+		totalBytes = source.length();
+		FileInputStream in = new FileInputStream(source);
+		try {
+			copy(in, target);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * 把输入流写入目标文件，不关闭输入流
+	 */
+	void copy(InputStream in, File target) throws IOException {
+		FileOutputStream out = new FileOutputStream(target);
+		try {
+			copy(in, out);
+		} finally {
+			out.close();
+		}
+	}
+
+	void copy(InputStream in, OutputStream out) throws IOException {
+		startNanos = System.nanoTime();
+		TeeInputStream tee = new TeeInputStream(in, out);
+		byte[] buf = IoPools.obtainBuffer();
+		try {
+			if (verifyZip) {
+				verifyZipEntries(tee, buf);
+			}
+			// 读完剩余部分(zip的中央目录等)
+			while (tee.read(buf, 0, buf.length) != -1) {
+			}
+		} finally {
+			IoPools.recycleBuffer(buf);
+		}
+		elapsedNanos = System.nanoTime() - startNanos;
+		digestValue = digest.digest();
+		reportProgress(true);
+	}
+
+	/**
+	 * 逐个条目计算CRC32与大小并与条目记录的值比较。读取条目数据时的任何 ZipException 都视为apk损坏
+	 * (Android 6.0 及以前 ZipInputStream 自己的校验抛出 "CRC mismatch"/"Size mismatch")。
+	 * <p>
+	 * 只有一种情况跳过校验：JDK 的 ZipInputStream 不支持带数据描述符的 STORED 条目，
+	 * 在 getNextEntry 时抛出 "only DEFLATED entries can have EXT descriptor"，这与条目内容无关
+	 */
+	private void verifyZipEntries(InputStream tee, byte[] buf)
+			throws IOException {
+		ZipInputStream zin = new ZipInputStream(tee);
+		CRC32 entryCrc = new CRC32();
+		for (;;) {
+			ZipEntry entry;
+			try {
+				entry = zin.getNextEntry();
+			} catch (ZipException e) {
+				if (!isUnsupportedDataDescriptor(e)) {
+					throw e;
+				}
+				// 不影响复制本身
+				Log.w(tag, "zip verification skipped: " + e.getMessage());
+				return;
+			}
+			if (entry == null) {
+				break;
+			}
+			entryCrc.reset();
+			long size = 0;
+			int n;
+			while ((n = zin.read(buf, 0, buf.length)) != -1) {
+				entryCrc.update(buf, 0, n);
+				size += n;
+			}
+			// 使用数据描述符的条目在读完后才有CRC与大小
+			if (entry.getCrc() != -1 && entry.getCrc() != entryCrc.getValue()
+					|| entry.getSize() != -1 && entry.getSize() != size) {
+				throw new ZipException("CRC or size mismatch: "
+						+ entry.getName());
+			}
+		}
+		// 注意: 不关闭 zin，否则会关闭底层流
+	}
+
+	private static boolean isUnsupportedDataDescriptor(ZipException e) {
+		String msg = e.getMessage();
+		return msg != null && msg.contains("EXT descriptor");
+	}
+
+	private void reportProgress(boolean force) {
+		if (progressListener == null) {
+			return;
+		}
+		if (!force && bytesCopied - lastReported < PROGRESS_STEP) {
+			return;
+		}
+		lastReported = bytesCopied;
+		progressListener.onProgress(bytesCopied, totalBytes,
+				getBytesPerSecond());
+	}
+
+	/**
+	 * @return 摘要的十六进制字符串，复制完成前为 null
+	 */
+	String getDigestHex() {
+		return digestValue == null ? null : FileUtil.toHexString(digestValue);
+	}
+
+	byte[] getDigest() {
+		return digestValue;
+	}
+
+	long getCrc32() {
+		return crc.getValue();
+	}
+
+	long getBytesCopied() {
+		return bytesCopied;
+	}
+
+	long getElapsedMillis() {
+		long nanos = elapsedNanos != 0 ? elapsedNanos : System.nanoTime()
+				- startNanos;
+		return nanos / 1000000L;
+	}
+
+	long getBytesPerSecond() {
+		long nanos = elapsedNanos != 0 ? elapsedNanos : System.nanoTime()
+				- startNanos;
+		if (nanos <= 0) {
+			return 0;
+		}
+		return bytesCopied * 1000000000L / nanos;
+	}
+
+	/**
+	 * 读取的每个字节都会写入目标并参与摘要、CRC计算
+	 */
+	private final class TeeInputStream extends FilterInputStream {
+		private final OutputStream out;
+
+		TeeInputStream(InputStream in, OutputStream out) {
+			super(in);
+			this.out = out;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b != -1) {
+				out.write(b);
+				digest.update((byte) b);
+				crc.update(b);
+				bytesCopied++;
+				reportProgress(false);
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0) {
+				out.write(b, off, n);
+				digest.update(b, off, n);
+				crc.update(b, off, n);
+				bytesCopied += n;
+				reportProgress(false);
+			}
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			// 跳过的字节也必须复制
+			byte[] buf = new byte[(int) Math.min(n, IoPools.BUFFER_SIZE)];
+			long skipped = 0;
+			while (skipped < n) {
+				int r = read(buf, 0, (int) Math.min(buf.length, n - skipped));
+				if (r == -1) {
+					break;
+				}
+				skipped += r;
+			}
+			return skipped;
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+
+		@Override
+		public void close() {
+			// 由调用者关闭
+		}
+	}
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2015 HouKx <hkx.aidream@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package androidx.pluginmgr;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.content.Context;
+import android.content.pm.ActivityInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.res.Resources;
+import android.content.res.TypedArray;
+import android.util.Log;
+
+/**
+ * 宿主预先声明的占位Activity池(stub 启动引擎，见 {@link PluginManager#LAUNCH_ENGINE_STUB})
+ * <p>
+ * 宿主在 AndroidManifest.xml 中声明类名以 {@link #STUB_PREFIX} 开头的Activity(类不需要存在)，
+ * 按 launchMode 与主题是否透明分组，例如：
+ *
+ * <pre>
+ * &lt;activity android:name="androidx.pluginmgr.stub.Standard0" /&gt;
+ * &lt;activity android:name="androidx.pluginmgr.stub.Translucent0"
+ *     android:theme="@android:style/Theme.Translucent" /&gt;
+ * &lt;activity android:name="androidx.pluginmgr.stub.SingleTop0" android:launchMode="singleTop" /&gt;
+ * &lt;activity android:name="androidx.pluginmgr.stub.SingleTask0" android:launchMode="singleTask" /&gt;
+ * &lt;activity android:name="androidx.pluginmgr.stub.SingleInstance0" android:launchMode="singleInstance" /&gt;
+ * </pre>
+ *
+ * standard 的占位可以同时承载任意多个插件Activity；其他 launchMode 的占位同一时间只分配给一个插件Activity，
+ * 以保持 singleTop/singleTask 的语义，所有实例销毁后归还。
+ * 启动失败时立即归还；启动被拦截(没有创建实例)的占位在 {@link #PENDING_TIMEOUT} 之后可以重新分配。
+ * 进程被杀后系统恢复的实例按 intent 中的插件id与类名重新登记
+ */
+class StubActivityPool {
+	private static final String tag = "StubActivityPool";
+	static final String STUB_PREFIX = "androidx.pluginmgr.stub.";
+	/**
+	 * 已分配但还没有创建实例的占位，超过这个时间(ms)视为启动没有发生
+	 */
+	static final long PENDING_TIMEOUT = 10000;
+
+	private static final class Stub {
+		final String name;
+		final boolean multiple;
+		/**
+		 * 分配到的插件Activity(pluginId/类名)，standard 模式不使用
+		 */
+		String owner;
+		long assignedAt;
+		int liveInstances;
+
+		Stub(String name, boolean multiple) {
+			this.name = name;
+			this.multiple = multiple;
+		}
+
+		boolean isFree(long now) {
+			return owner == null || liveInstances == 0
+					&& now - assignedAt > PENDING_TIMEOUT;
+		}
+	}
+
+	/**
+	 * launchMode:translucent -&gt; 占位
+	 */
+	private final Map<String, List<Stub>> stubs = new HashMap<String, List<Stub>>();
+	private final Map<String, Stub> stubsByName = new HashMap<String, Stub>();
+
+	StubActivityPool(Context host) {
+		PackageInfo pkg;
+		try {
+			pkg = host.getPackageManager().getPackageInfo(
+					host.getPackageName(), PackageManager.GET_ACTIVITIES);
+		} catch (Exception e) {
+			Log.e(tag, Log.getStackTraceString(e));
+			return;
+		}
+		if (pkg.activities == null) {
+			return;
+		}
+		for (ActivityInfo ai : pkg.activities) {
+			if (!ai.name.startsWith(STUB_PREFIX)) {
+				continue;
+			}
+			String key = key(ai.launchMode,
+					isTranslucent(host.getResources(), ai.getThemeResource()));
+			List<Stub> list = stubs.get(key);
+			if (list == null) {
+				list = new ArrayList<Stub>();
+				stubs.put(key, list);
+			}
+			Stub stub = new Stub(ai.name,
+					ai.launchMode == ActivityInfo.LAUNCH_MULTIPLE);
+			list.add(stub);
+			stubsByName.put(ai.name, stub);
+		}
+		Log.i(tag, "stub activities: " + stubs.keySet() + ", total "
+				+ stubsByName.size());
+	}
+
+	boolean isEmpty() {
+		return stubsByName.isEmpty();
+	}
+
+	static boolean isStubName(String className) {
+		return className != null && className.startsWith(STUB_PREFIX);
+	}
+
+	/**
+	 * 为插件Activity分配一个占位
+	 *
+	 * @return 占位的类名，没有合适的空闲占位时返回 null
+	 */
+	synchronized String assign(PlugInfo plugin, ActivityInfo act) {
+		int theme = act.getThemeResource();
+		if (theme == 0) {
+			theme = plugin.getPackageInfo().applicationInfo.theme;
+		}
+		List<Stub> list = stubs.get(key(act.launchMode,
+				isTranslucent(plugin.getResources(), theme)));
+		if (list == null || list.isEmpty()) {
+			return null;
+		}
+		if (act.launchMode == ActivityInfo.LAUNCH_MULTIPLE) {
+			return list.get(0).name;
+		}
+		String owner = owner(plugin.getId(), act.name);
+		long now = System.currentTimeMillis();
+		Stub free = null;
+		for (Stub s : list) {
+			if (owner.equals(s.owner)) {
+				s.assignedAt = now;
+				return s.name;
+			}
+			if (free == null && s.isFree(now)) {
+				free = s;
+			}
+		}
+		if (free == null) {
+			Log.w(tag, "no free stub for " + owner);
+			return null;
+		}
+		free.owner = owner;
+		free.assignedAt = now;
+		return free.name;
+	}
+
+	/**
+	 * 启动失败，归还还没有实例的占位
+	 */
+	synchronized void release(String stubName, String pluginId, String actName) {
+		Stub s = stubsByName.get(stubName);
+		if (s != null && s.liveInstances == 0
+				&& owner(pluginId, actName).equals(s.owner)) {
+			s.owner = null;
+		}
+	}
+
+	/**
+	 * 占位创建了插件Activity的实例；进程被杀后恢复的实例没有分配记录，在这里补上
+	 */
+	synchronized void onActivityCreated(String stubName, String pluginId,
+			String actName) {
+		Stub s = stubsByName.get(stubName);
+		if (s == null) {
+			return;
+		}
+		s.liveInstances++;
+		if (!s.multiple) {
+			s.owner = owner(pluginId, actName);
+		}
+	}
+
+	synchronized void onActivityDestroyed(String stubName) {
+		Stub s = stubsByName.get(stubName);
+		if (s != null && --s.liveInstances <= 0) {
+			s.liveInstances = 0;
+			s.owner = null;
+		}
+	}
+
+	private static String owner(String pluginId, String actName) {
+		return pluginId + '/' + actName;
+	}
+
+	private static String key(int launchMode, boolean translucent) {
+		return launchMode + (translucent ? ":translucent" : ":opaque");
+	}
+
+	private static boolean isTranslucent(Resources res, int theme) {
+		if (res == null || theme == 0) {
+			return false;
+		}
+		try {
+			Resources.Theme t = res.newTheme();
+			t.applyStyle(theme, true);
+			TypedArray a = t
+					.obtainStyledAttributes(new int[] { android.R.attr.windowIsTranslucent });
+			try {
+				return a.getBoolean(0, false);
+			} finally {
+				a.recycle();
+			}
+		} catch (Exception e) {
+			return false;
+		}
+	}
+}
@@ -39,12 +39,12 @@ class XmlManifestReader {
 	}
 	
 	public static String getManifestXMLFromAPK(String apkPath) {
-		ZipFile file = null;
+		PluginZipFile file = null;
 		String rs = null;
 		try {
 			File apkFile = new File(apkPath);
-			file = new ZipFile(apkFile, ZipFile.OPEN_READ);
-			ZipEntry entry = file.getEntry(DEFAULT_XML);
+			file = new PluginZipFile(apkFile);
+			PluginZipFile.Entry entry = file.getEntry(DEFAULT_XML);
 			rs = getManifestXMLFromAPK(file, entry);
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -61,11 +61,37 @@ class XmlManifestReader {
 	}
 	
 	public static String getManifestXMLFromAPK(ZipFile file, ZipEntry entry) {
+		try {
+			return getManifestXML(file.getInputStream(entry));
+		} catch (IOException e) {
+			e.printStackTrace();
+			return "";
+		}
+	}
+
+	/**
+	 * 使用共享的 Inflater 池读取
+	 */
+	static String getManifestXMLFromAPK(PluginZipFile file,
+			PluginZipFile.Entry entry) {
+		try {
+			return getManifestXML(file.getInputStream(entry));
+		} catch (IOException e) {
+			e.printStackTrace();
+			return "";
+		}
+	}
+
+	/**
+	 * @param manifestIns
+	 *            - 二进制 AndroidManifest.xml 的输入流，读完后关闭
+	 */
+	static String getManifestXML(InputStream manifestIns) {
 		StringBuilder xmlSb = new StringBuilder(100);
 		XmlResourceParser parser = null;
 		try {
 			parser = new XmlResourceParser();
-			parser.open(file.getInputStream(entry));
+			parser.open(manifestIns);
 
 			StringBuilder sb = new StringBuilder(10);
 			final String indentStep = "	";
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2015 HouKx <hkx.aidream@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package androidx.pluginmgr;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.ZipEntry;
+
+/**
+ * 按原样(不解压、不重新压缩)写入条目的zip写入器
+ * <p>
+ * 输出是确定的：同样的条目序列总是得到逐字节相同的文件。
+ * 不写数据描述符、不写注释，STORED 条目的数据按4字节对齐(与 zipalign 相同)
+ */
+class ZipRawWriter implements Closeable {
+	private static final int LOCSIG = 0x04034b50;
+	private static final int CENSIG = 0x02014b50;
+	private static final int ENDSIG = 0x06054b50;
+	private static final int LOCHDR = 30;
+	private static final int ALIGNMENT = 4;
+	private static final int FLAG_UTF8 = 0x800;
+
+	private final OutputStream out;
+	private final ByteArrayOutputStream cen = new ByteArrayOutputStream();
+	private final byte[] header = new byte[46];
+	private long written;
+	private int count;
+
+	ZipRawWriter(OutputStream out) {
+		this.out = out;
+	}
+
+	/**
+	 * 原样复制另一个zip中的条目
+	 */
+	void copyEntry(PluginZipFile from, PluginZipFile.Entry entry)
+			throws IOException {
+		copyEntry(from, entry, entry.name, entry.dosTime);
+	}
+
+	void copyEntry(PluginZipFile from, PluginZipFile.Entry entry,
+			String name, int dosTime) throws IOException {
+		InputStream raw = from.getRawInputStream(entry);
+		try {
+			addRawEntry(name, entry.method, entry.crc, entry.compressedSize,
+					entry.size, dosTime, raw);
+		} finally {
+			raw.close();
+		}
+	}
+
+	/**
+	 * @param raw
+	 *            - 已经压缩好的数据，长度必须等于 compressedSize
+	 */
+	void addRawEntry(String name, int method, long crc, long compressedSize,
+			long size, int dosTime, InputStream raw) throws IOException {
+		if (count == 0xFFFF || written > 0xFFFFFFFFL - LOCHDR) {
+			throw new IOException("zip64 not supported");
+		}
+		byte[] nameBytes = name.getBytes("UTF-8");
+		int flags = isAscii(nameBytes) ? 0 : FLAG_UTF8;
+		int version = method == ZipEntry.DEFLATED ? 20 : 10;
+		long localOffset = written;
+		int extraLen = 0;
+		if (method == ZipEntry.STORED) {
+			long dataStart = localOffset + LOCHDR + nameBytes.length;
+			extraLen = (int) ((ALIGNMENT - dataStart % ALIGNMENT) % ALIGNMENT);
+		}
+
+		int p = 0;
+		p = putInt(header, p, LOCSIG);
+		p = putShort(header, p, version);
+		p = putShort(header, p, flags);
+		p = putShort(header, p, method);
+		p = putInt(header, p, dosTime);
+		p = putInt(header, p, (int) crc);
+		p = putInt(header, p, (int) compressedSize);
+		p = putInt(header, p, (int) size);
+		p = putShort(header, p, nameBytes.length);
+		p = putShort(header, p, extraLen);
+		write(header, 0, p);
+		write(nameBytes, 0, nameBytes.length);
+		for (int i = 0; i < extraLen; i++) {
+			out.write(0);
+		}
+		written += extraLen;
+
+		byte[] buf = IoPools.obtainBuffer();
+		try {
+			long remaining = compressedSize;
+			while (remaining > 0) {
+				int n = raw.read(buf, 0,
+						(int) Math.min(buf.length, remaining));
+				if (n < 0) {
+					throw new IOException("truncated entry: " + name);
+				}
+				write(buf, 0, n);
+				remaining -= n;
+			}
+		} finally {
+			IoPools.recycleBuffer(buf);
+		}
+
+		p = 0;
+		p = putInt(header, p, CENSIG);
+		p = putShort(header, p, 20);
+		p = putShort(header, p, version);
+		p = putShort(header, p, flags);
+		p = putShort(header, p, method);
+		p = putInt(header, p, dosTime);
+		p = putInt(header, p, (int) crc);
+		p = putInt(header, p, (int) compressedSize);
+		p = putInt(header, p, (int) size);
+		p = putShort(header, p, nameBytes.length);
+		p = putShort(header, p, 0); // extra
+		p = putShort(header, p, 0); // comment
+		p = putShort(header, p, 0); // disk
+		p = putShort(header, p, 0); // internal attrs
+		p = putInt(header, p, 0); // external attrs
+		p = putInt(header, p, (int) localOffset);
+		cen.write(header, 0, p);
+		cen.write(nameBytes, 0, nameBytes.length);
+		count++;
+	}
+
+	/**
+	 * 写入中央目录，不关闭底层流
+	 */
+	void finish() throws IOException {
+		long cenOffset = written;
+		cen.writeTo(out);
+		written += cen.size();
+		int p = 0;
+		p = putInt(header, p, ENDSIG);
+		p = putShort(header, p, 0);
+		p = putShort(header, p, 0);
+		p = putShort(header, p, count);
+		p = putShort(header, p, count);
+		p = putInt(header, p, cen.size());
+		p = putInt(header, p, (int) cenOffset);
+		p = putShort(header, p, 0);
+		write(header, 0, p);
+		out.flush();
+	}
+
+	long getBytesWritten() {
+		return written;
+	}
+
+	public void close() throws IOException {
+		out.close();
+	}
+
+	private void write(byte[] b, int off, int len) throws IOException {
+		out.write(b, off, len);
+		written += len;
+	}
+
+	private static boolean isAscii(byte[] bytes) {
+		for (byte b : bytes) {
+			if (b < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int putShort(byte[] b, int p, int v) {
+		b[p] = (byte) v;
+		b[p + 1] = (byte) (v >>> 8);
+		return p + 2;
+	}
+
+	private static int putInt(byte[] b, int p, int v) {
+		b[p] = (byte) v;
+		b[p + 1] = (byte) (v >>> 8);
+		b[p + 2] = (byte) (v >>> 16);
+		b[p + 3] = (byte) (v >>> 24);
+		return p + 4;
+	}
+}
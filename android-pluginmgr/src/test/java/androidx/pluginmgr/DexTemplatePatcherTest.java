@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2015 HouKx <hkx.aidream@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package androidx.pluginmgr;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class DexTemplatePatcherTest {
+	private static final String PLUGIN_ID = "demo.apk";
+	private static final String PKG = "com.example.app";
+	private static final String MAIN = "com.example.app.MainActivity";
+	private static final String INFO = "com.example.app.InfoActivity";
+	/**
+	 * 与 MAIN 等长，但类型描述符排到 Landroid/ 之前，替换后字符串池不再有序
+	 */
+	private static final String UNSORTED = "aaa.example.app.MainActivity";
+
+	@Test
+	public void patchedDexEqualsGeneratedDex() {
+		byte[] patched = DexTemplatePatcher.patch(generate(MAIN),
+				replacements(MAIN, INFO));
+		assertArrayEquals(generate(INFO), patched);
+	}
+
+	@Test
+	public void templateModeReusesPatchedDex() {
+		List<byte[]> dexes = ActivityClassGenerator.createProxyDexes(
+				Arrays.asList(INFO, MAIN), PLUGIN_ID, PKG, true);
+		assertEquals(2, dexes.size());
+		assertArrayEquals(generate(INFO), dexes.get(0));
+		assertArrayEquals(generate(MAIN), dexes.get(1));
+	}
+
+	@Test
+	public void rejectsReplacementThatBreaksSortOrder() {
+		assertNull(DexTemplatePatcher.patch(generate(MAIN),
+				replacements(MAIN, UNSORTED)));
+	}
+
+	@Test
+	public void templateModeFallsBackWhenSortOrderBreaks() {
+		List<byte[]> dexes = ActivityClassGenerator.createProxyDexes(
+				Arrays.asList(UNSORTED, MAIN), PLUGIN_ID, PKG, true);
+		assertArrayEquals(generate(UNSORTED), dexes.get(0));
+		assertArrayEquals(generate(MAIN), dexes.get(1));
+	}
+
+	@Test
+	public void rejectsDifferentLength() {
+		assertNull(DexTemplatePatcher.patch(generate(MAIN),
+				replacements(MAIN, "com.example.app.MainActivity2")));
+	}
+
+	@Test
+	public void rejectsTemplateWithoutMatches() {
+		assertNull(DexTemplatePatcher.patch(generate(MAIN),
+				Collections.singletonMap("com.other.Foo", "com.other.Bar")));
+	}
+
+	@Test
+	public void doesNotModifyTemplate() {
+		byte[] template = generate(MAIN);
+		byte[] copy = template.clone();
+		DexTemplatePatcher.patch(template, replacements(MAIN, INFO));
+		assertArrayEquals(copy, template);
+	}
+
+	@Test
+	public void mutf8RoundTrip() {
+		String s = "a\u0000bé中";
+		byte[] enc = DexTemplatePatcher.encodeMutf8(s);
+		// U+0000 在 MUTF-8 中占两个字节
+		assertEquals(1 + 2 + 1 + 2 + 3, enc.length);
+		assertEquals(s, DexTemplatePatcher.decodeMutf8(enc, 0, enc.length));
+	}
+
+	private static byte[] generate(String activity) {
+		return ActivityClassGenerator.createProxyDexes(
+				Collections.singletonList(activity), PLUGIN_ID, PKG, true)
+				.get(0);
+	}
+
+	/**
+	 * 与 ActivityClassGenerator#createActivityDexes 相同的替换：类名、类型描述符与代理类的描述符
+	 */
+	private static Map<String, String> replacements(String from, String to) {
+		Map<String, String> map = new HashMap<String, String>();
+		map.put(from, to);
+		map.put(descriptor(from), descriptor(to));
+		map.put(descriptor(ActivityOverider.getProxyClassName(from)),
+				descriptor(ActivityOverider.getProxyClassName(to)));
+		return map;
+	}
+
+	private static String descriptor(String className) {
+		return 'L' + className.replace('.', '/') + ';';
+	}
+}
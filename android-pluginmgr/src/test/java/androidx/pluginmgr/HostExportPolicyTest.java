@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2015 HouKx <hkx.aidream@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package androidx.pluginmgr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class HostExportPolicyTest {
+
+	@Test
+	public void matchesByPrefix() {
+		HostExportPolicy p = HostExportPolicy.of("com.host.api.",
+				"com.host.Api");
+		assertTrue(p.isExported("com.host.api.Service"));
+		assertTrue(p.isExported("com.host.api.sub.Model"));
+		assertTrue(p.isExported("com.host.ApiImpl"));
+		assertTrue(p.isExported("com.host.Api"));
+		assertFalse(p.isExported("com.host.internal.Secret"));
+		assertFalse(p.isExported("com.host.api"));
+		assertFalse(p.isExported("com.host.Ap"));
+		assertFalse(p.isExported("com.hostile.api.Service"));
+	}
+
+	@Test
+	public void shorterPrefixCoversLongerOnes() {
+		HostExportPolicy p = HostExportPolicy.of("com.host.api.model.",
+				"com.host.", "com.host.api.");
+		assertTrue(p.isExported("com.host.Anything"));
+		assertTrue(p.isExported("com.host.api.model.User"));
+		assertFalse(p.isExported("com.other.Foo"));
+	}
+
+	@Test
+	public void duplicatePrefixes() {
+		HostExportPolicy p = HostExportPolicy.of("com.host.api.",
+				"com.host.api.", " com.host.api. ");
+		assertTrue(p.isExported("com.host.api.Service"));
+		assertFalse(p.isExported("com.host.Other"));
+	}
+
+	@Test
+	public void emptyPrefixesAreIgnored() {
+		HostExportPolicy p = HostExportPolicy.of("", "  ", null,
+				"com.host.api.");
+		assertFalse(p.isExported("com.other.Foo"));
+		assertTrue(p.isExported("com.host.api.Service"));
+		assertEquals(Arrays.asList("androidx.pluginmgr.", "com.host.api."),
+				p.getPrefixes());
+	}
+
+	@Test
+	public void noPrefixesExportsOnlySystemAndFramework() {
+		HostExportPolicy p = HostExportPolicy.of();
+		assertTrue(p.isExported("java.lang.String"));
+		assertTrue(p.isExported("android.app.Activity"));
+		assertTrue(p.isExported("androidx.pluginmgr.PluginManager"));
+		assertFalse(p.isExported("com.host.api.Service"));
+		assertFalse(p.isExported(""));
+	}
+
+	@Test
+	public void parseMetaData() {
+		assertNull(HostExportPolicy.parse(null));
+		assertNull(HostExportPolicy.parse(" "));
+		HostExportPolicy p = HostExportPolicy
+				.parse("com.host.api., ,com.host.model.");
+		assertTrue(p.isExported("com.host.api.Service"));
+		assertTrue(p.isExported("com.host.model.User"));
+		assertFalse(p.isExported("com.host.Other"));
+		assertEquals(3, p.getPrefixes().size());
+	}
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2015 HouKx <hkx.aidream@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package androidx.pluginmgr;
+
+import static androidx.pluginmgr.ZipRawWriterTest.putDeflated;
+import static androidx.pluginmgr.ZipRawWriterTest.putStored;
+import static androidx.pluginmgr.ZipRawWriterTest.read;
+import static androidx.pluginmgr.ZipRawWriterTest.repeat;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PluginDeltaTest {
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private File base;
+	private File target;
+	private File patch;
+
+	@Before
+	public void setUp() throws IOException {
+		base = tmp.newFile("base.apk");
+		ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(base));
+		try {
+			putDeflated(zos, "AndroidManifest.xml", repeat("manifest", 50));
+			putStored(zos, "classes.dex", repeat("dex-v1", 300));
+			putStored(zos, "res/a.png", repeat("png", 20));
+			putDeflated(zos, "lib/armeabi/libx.so", repeat("so", 200));
+			putDeflated(zos, "assets/old.txt", repeat("old", 40));
+		} finally {
+			zos.close();
+		}
+		target = tmp.newFile("target.apk");
+		zos = new ZipOutputStream(new FileOutputStream(target));
+		try {
+			putDeflated(zos, "AndroidManifest.xml", repeat("manifest", 50));
+			putStored(zos, "classes.dex", repeat("dex-v2", 300));
+			putStored(zos, "res/a.png", repeat("png", 20));
+			putDeflated(zos, "lib/armeabi/libx.so", repeat("so", 200));
+			putDeflated(zos, "assets/new.txt", repeat("new", 40));
+		} finally {
+			zos.close();
+		}
+		patch = tmp.newFile("update.delta");
+	}
+
+	@Test
+	public void roundTrip() throws IOException {
+		String sha256 = PluginDelta.createPatch(base, target, patch);
+		File out = tmp.newFile("out.apk");
+		PluginDelta.Result rs = PluginDelta.apply(base, null, patch, out);
+
+		assertEquals(sha256, rs.digest);
+		assertEquals(sha256, PluginDelta.sha256(out));
+		assertEquals(out.length(), rs.size);
+		assertEquals(new HashSet<String>(Arrays.asList("classes.dex",
+				"assets/new.txt", "assets/old.txt")), rs.changedEntries);
+		assertTrue(rs.isDexChanged());
+		assertFalse(rs.isManifestChanged());
+		assertFalse(rs.isLibChanged());
+		assertSameEntries(target, out);
+	}
+
+	@Test
+	public void patchHoldsOnlyChangedEntries() throws IOException {
+		PluginDelta.createPatch(base, target, patch);
+		ZipFile zip = new ZipFile(patch);
+		try {
+			assertTrue(zip.getEntry(PluginDelta.ENTRY_PROPERTIES) != null);
+			assertTrue(zip.getEntry(PluginDelta.DATA_PREFIX + "classes.dex") != null);
+			assertTrue(zip.getEntry(PluginDelta.DATA_PREFIX + "assets/new.txt") != null);
+			assertNull(zip.getEntry(PluginDelta.DATA_PREFIX + "res/a.png"));
+			assertNull(zip.getEntry(PluginDelta.DATA_PREFIX
+					+ "lib/armeabi/libx.so"));
+		} finally {
+			zip.close();
+		}
+	}
+
+	@Test
+	public void resultCanBeBaseOfNextPatch() throws IOException {
+		PluginDelta.createPatch(base, target, patch);
+		File installed = tmp.newFile("installed.apk");
+		PluginDelta.apply(base, null, patch, installed);
+
+		File next = tmp.newFile("next.apk");
+		ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(next));
+		try {
+			putDeflated(zos, "AndroidManifest.xml", repeat("manifest", 50));
+			putStored(zos, "classes.dex", repeat("dex-v2", 300));
+			putStored(zos, "res/a.png", repeat("png", 20));
+			putDeflated(zos, "lib/armeabi/libx.so", repeat("so-v3", 200));
+			putDeflated(zos, "assets/new.txt", repeat("new", 40));
+		} finally {
+			zos.close();
+		}
+		File patch2 = tmp.newFile("next.delta");
+		String sha256 = PluginDelta.createPatch(installed, next, patch2);
+		File out = tmp.newFile("out.apk");
+		PluginDelta.Result rs = PluginDelta.apply(installed,
+				PluginDelta.sha256(installed), patch2, out);
+		assertEquals(sha256, rs.digest);
+		assertEquals(new HashSet<String>(Arrays
+				.asList("lib/armeabi/libx.so")), rs.changedEntries);
+		assertTrue(rs.isLibChanged());
+		assertFalse(rs.isDexChanged());
+		assertSameEntries(next, out);
+	}
+
+	@Test
+	public void rejectsOtherBase() throws IOException {
+		PluginDelta.createPatch(base, target, patch);
+		try {
+			PluginDelta.apply(target, null, patch, tmp.newFile("out.apk"));
+			fail("applied to the wrong base");
+		} catch (ZipException expected) {
+		}
+	}
+
+	private static void assertSameEntries(File expectedApk, File actualApk)
+			throws IOException {
+		ZipFile expected = new ZipFile(expectedApk);
+		ZipFile actual = new ZipFile(actualApk);
+		try {
+			assertEquals(expected.size(), actual.size());
+			Enumeration<? extends ZipEntry> e = expected.entries();
+			while (e.hasMoreElements()) {
+				ZipEntry want = e.nextElement();
+				ZipEntry got = actual.getEntry(want.getName());
+				assertTrue(want.getName(), got != null);
+				assertEquals(want.getName(), want.getMethod(), got.getMethod());
+				assertArrayEquals(want.getName(), read(expected, want),
+						read(actual, got));
+			}
+		} finally {
+			expected.close();
+			actual.close();
+		}
+	}
+}
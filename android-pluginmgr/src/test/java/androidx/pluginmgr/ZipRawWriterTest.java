@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2015 HouKx <hkx.aidream@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package androidx.pluginmgr;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Enumeration;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ZipRawWriterTest {
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	@Test
+	public void copiesEntriesWithoutRecompressing() throws IOException {
+		File src = tmp.newFile("src.zip");
+		writeZip(src, false);
+		File out = tmp.newFile("out.zip");
+		copy(src, out);
+
+		ZipFile expected = new ZipFile(src);
+		ZipFile actual = new ZipFile(out);
+		try {
+			assertEquals(expected.size(), actual.size());
+			Enumeration<? extends ZipEntry> e = expected.entries();
+			while (e.hasMoreElements()) {
+				ZipEntry want = e.nextElement();
+				ZipEntry got = actual.getEntry(want.getName());
+				assertEquals(want.getName(), want.getMethod(), got.getMethod());
+				assertEquals(want.getName(), want.getCrc(), got.getCrc());
+				assertEquals(want.getName(), want.getCompressedSize(),
+						got.getCompressedSize());
+				assertArrayEquals(want.getName(), read(expected, want),
+						read(actual, got));
+			}
+		} finally {
+			expected.close();
+			actual.close();
+		}
+	}
+
+	@Test
+	public void outputIsDeterministic() throws IOException {
+		File src = tmp.newFile("src.zip");
+		writeZip(src, false);
+		File a = tmp.newFile("a.zip");
+		File b = tmp.newFile("b.zip");
+		copy(src, a);
+		copy(src, b);
+		assertEquals(a.length(), b.length());
+		assertEquals(PluginDelta.sha256(a), PluginDelta.sha256(b));
+	}
+
+	@Test
+	public void storedEntriesAreAligned() throws IOException {
+		File src = tmp.newFile("src.zip");
+		writeZip(src, false);
+		File out = tmp.newFile("out.zip");
+		copy(src, out);
+		PluginZipFile zip = new PluginZipFile(out);
+		try {
+			for (PluginZipFile.Entry e : zip.entries()) {
+				zip.getRawInputStream(e).close();
+				if (e.method == ZipEntry.STORED) {
+					assertEquals(e.name, 0, e.dataOffset % 4);
+				}
+			}
+		} finally {
+			zip.close();
+		}
+	}
+
+	@Test
+	public void keepsNonAsciiNames() throws IOException {
+		File src = tmp.newFile("src.zip");
+		writeZip(src, true);
+		File out = tmp.newFile("out.zip");
+		copy(src, out);
+		ZipFile zip = new ZipFile(out);
+		try {
+			assertTrue(zip.getEntry("assets/数据.txt") != null);
+		} finally {
+			zip.close();
+		}
+	}
+
+	@Test
+	public void bytesWrittenMatchesFileLength() throws IOException {
+		File src = tmp.newFile("src.zip");
+		writeZip(src, false);
+		File out = tmp.newFile("out.zip");
+		long written = copy(src, out);
+		assertEquals(out.length(), written);
+	}
+
+	private static long copy(File src, File out) throws IOException {
+		PluginZipFile zip = new PluginZipFile(src);
+		ZipRawWriter writer = new ZipRawWriter(new FileOutputStream(out));
+		try {
+			for (PluginZipFile.Entry e : zip.entries()) {
+				writer.copyEntry(zip, e);
+			}
+			writer.finish();
+			return writer.getBytesWritten();
+		} finally {
+			writer.close();
+			zip.close();
+		}
+	}
+
+	/**
+	 * 有 STORED 与 DEFLATED 条目、名称长度不同(使 STORED 数据需要填充才能对齐)的zip
+	 */
+	private static void writeZip(File f, boolean nonAscii) throws IOException {
+		ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(f));
+		try {
+			putDeflated(zos, "AndroidManifest.xml", repeat("manifest", 50));
+			putStored(zos, "classes.dex", repeat("dex", 333));
+			putStored(zos, "res/a.png", new byte[] { 1, 2, 3 });
+			putStored(zos, "res/drawable/bb.png", new byte[] { 4, 5 });
+			putDeflated(zos, "assets/x.txt", repeat("x", 1000));
+			if (nonAscii) {
+				putDeflated(zos, "assets/数据.txt", repeat("y", 10));
+			}
+		} finally {
+			zos.close();
+		}
+	}
+
+	static void putDeflated(ZipOutputStream zos, String name, byte[] data)
+			throws IOException {
+		ZipEntry e = new ZipEntry(name);
+		e.setMethod(ZipEntry.DEFLATED);
+		zos.putNextEntry(e);
+		zos.write(data);
+		zos.closeEntry();
+	}
+
+	static void putStored(ZipOutputStream zos, String name, byte[] data)
+			throws IOException {
+		ZipEntry e = new ZipEntry(name);
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		e.setMethod(ZipEntry.STORED);
+		e.setSize(data.length);
+		e.setCrc(crc.getValue());
+		zos.putNextEntry(e);
+		zos.write(data);
+		zos.closeEntry();
+	}
+
+	static byte[] repeat(String s, int times) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < times; i++) {
+			sb.append(s).append(i);
+		}
+		return sb.toString().getBytes();
+	}
+
+	static byte[] read(ZipFile zip, ZipEntry e) throws IOException {
+		InputStream in = zip.getInputStream(e);
+		try {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			byte[] buf = new byte[4096];
+			int n;
+			while ((n = in.read(buf)) != -1) {
+				bos.write(buf, 0, n);
+			}
+			return bos.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2015 HouKx <hkx.aidream@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package androidx.pluginmgr;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 对比两次 JMH 运行的 csv 结果(-rf csv)，也可以对比 {@link ProxySizeReport} 的输出
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar androidx.pluginmgr.BenchmarkDiff before.csv after.csv [阈值%]
+ * </pre>
+ *
+ * 变化超过阈值(默认5%)且超出两次结果的误差范围时标记为 better/WORSE；
+ * 吞吐量模式(thrpt)分数越高越好，其余模式越低越好。有变差的结果时返回 1
+ */
+public class BenchmarkDiff {
+
+	private static final class Result {
+		final String mode;
+		final String unit;
+		final double score;
+		final double error;
+
+		Result(String mode, String unit, double score, double error) {
+			this.mode = mode;
+			this.unit = unit;
+			this.score = score;
+			this.error = error;
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("usage: BenchmarkDiff before.csv after.csv [threshold%]");
+			System.exit(2);
+		}
+		double threshold = args.length > 2 ? Double.parseDouble(args[2]) : 5;
+		Map<String, Result> before = read(args[0]);
+		Map<String, Result> after = read(args[1]);
+		boolean worse = false;
+		System.out.println(String.format("%18s %18s %9s  %s", "before",
+				"after", "change", "benchmark"));
+		for (Map.Entry<String, Result> e : after.entrySet()) {
+			Result b = before.get(e.getKey());
+			Result a = e.getValue();
+			if (b == null) {
+				System.out.println(String.format("%18s %18s %9s  %s", "-",
+						format(a), "new", e.getKey()));
+				continue;
+			}
+			double change = b.score == 0 ? 0 : (a.score - b.score) / b.score
+					* 100;
+			String mark = "";
+			if (Math.abs(change) > threshold
+					&& Math.abs(a.score - b.score) > errorOf(a) + errorOf(b)) {
+				boolean higherIsBetter = "thrpt".equals(a.mode);
+				if (higherIsBetter == (change > 0)) {
+					mark = " better";
+				} else {
+					mark = " WORSE";
+					worse = true;
+				}
+			}
+			System.out.println(String.format("%18s %18s %+8.1f%%  %s%s",
+					format(b), format(a), change, e.getKey(), mark));
+		}
+		for (String key : before.keySet()) {
+			if (!after.containsKey(key)) {
+				System.out.println(String.format("%18s %18s %9s  %s",
+						format(before.get(key)), "-", "removed", key));
+			}
+		}
+		System.exit(worse ? 1 : 0);
+	}
+
+	private static double errorOf(Result r) {
+		return Double.isNaN(r.error) ? 0 : r.error;
+	}
+
+	private static String format(Result r) {
+		return String.format("%.3f %s", r.score, r.unit);
+	}
+
+	/**
+	 * @return 测试名(含参数) -&gt; 结果，保持文件中的顺序
+	 */
+	static Map<String, Result> read(String file) throws IOException {
+		Map<String, Result> rs = new LinkedHashMap<String, Result>();
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), "UTF-8"));
+		try {
+			List<String> header = null;
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.length() == 0) {
+					continue;
+				}
+				List<String> cols = parseLine(line);
+				if (header == null) {
+					header = cols;
+					continue;
+				}
+				StringBuilder key = new StringBuilder(cols.get(0));
+				for (int i = 7; i < cols.size() && i < header.size(); i++) {
+					if (cols.get(i).length() > 0) {
+						key.append(' ')
+								.append(header.get(i).replace("Param: ", ""))
+								.append('=').append(cols.get(i));
+					}
+				}
+				String threads = cols.get(2);
+				if (!"1".equals(threads)) {
+					key.append(" threads=").append(threads);
+				}
+				rs.put(key.toString(), new Result(cols.get(1), cols.get(6),
+						parseDouble(cols.get(4)), parseDouble(cols.get(5))));
+			}
+		} finally {
+			in.close();
+		}
+		return rs;
+	}
+
+	private static double parseDouble(String s) {
+		try {
+			// 某些 locale 下 JMH 用逗号作小数点
+			return Double.parseDouble(s.replace(',', '.'));
+		} catch (NumberFormatException e) {
+			return Double.NaN;
+		}
+	}
+
+	private static List<String> parseLine(String line) {
+		List<String> cols = new ArrayList<String>();
+		StringBuilder sb = new StringBuilder();
+		boolean quoted = false;
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (c == '"') {
+				if (quoted && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+					sb.append('"');
+					i++;
+				} else {
+					quoted = !quoted;
+				}
+			} else if (c == ',' && !quoted) {
+				cols.add(sb.toString());
+				sb.setLength(0);
+			} else {
+				sb.append(c);
+			}
+		}
+		cols.add(sb.toString());
+		return cols;
+	}
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2015 HouKx <hkx.aidream@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package androidx.pluginmgr;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 基准测试共用的输入数据
+ */
+final class BenchmarkFixtures {
+	static final String PLUGIN_ID = "bench.apk";
+	static final String PLUGIN_PKG = "com.example.plugin";
+
+	/**
+	 * 有代表性的Activity父类：覆盖的方法集合与类层次深度各不相同
+	 */
+	static final String[] SUPER_CLASSES = { "android.app.Activity",
+			"android.app.ListActivity", "android.app.TabActivity",
+			"android.preference.PreferenceActivity" };
+
+	private BenchmarkFixtures() {
+	}
+
+	/**
+	 * 生成一组插件Activity类名(已排序)，长度不一，模拟真实插件中模板的共享程度
+	 */
+	static List<String> activityNames(int count) {
+		List<String> names = new ArrayList<String>(count);
+		String[] pkgs = { ".ui.", ".settings.", ".", ".account.login." };
+		for (int i = 0; i < count; i++) {
+			names.add(PLUGIN_PKG + pkgs[i % pkgs.length] + "Screen" + i
+					+ "Activity");
+		}
+		Collections.sort(names);
+		return names;
+	}
+
+	/**
+	 * 用来检查父类链的类加载器(android.jar 在类路径上)
+	 */
+	static ClassLoader superclassLoader() {
+		return BenchmarkFixtures.class.getClassLoader();
+	}
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2015 HouKx <hkx.aidream@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package androidx.pluginmgr;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 代理Activity dex生成的耗时
+ * <p>
+ * 分配量用 JMH 的 gc profiler 测量(gc.alloc.rate.norm 即每次生成分配的字节数)，
+ * 输出大小见 {@link ProxySizeReport}。对比两个版本：
+ *
+ * <pre>
+ * java -jar target/benchmarks.jar -prof gc -rf csv -rff before.csv
+ * (修改代码后重新构建)
+ * java -jar target/benchmarks.jar -prof gc -rf csv -rff after.csv
+ * java -cp target/benchmarks.jar androidx.pluginmgr.BenchmarkDiff before.csv after.csv
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class ProxyGenerationBenchmark {
+
+	/**
+	 * 单个代理类：按父类区分，可选检查父类链(运行时的方式)
+	 */
+	@State(Scope.Benchmark)
+	public static class SingleProxy {
+		@Param({ "android.app.Activity", "android.app.ListActivity",
+				"android.app.TabActivity", "android.preference.PreferenceActivity" })
+		public String superClass;
+		@Param({ "false", "true" })
+		public boolean inspectSuperclass;
+
+		List<String> activities;
+		ClassLoader loader;
+
+		@Setup
+		public void setup() {
+			activities = Collections.singletonList(superClass);
+			loader = inspectSuperclass ? BenchmarkFixtures.superclassLoader()
+					: null;
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class Superclass {
+		@Param({ "android.app.Activity", "android.app.ListActivity",
+				"android.app.TabActivity", "android.preference.PreferenceActivity" })
+		public String superClass;
+	}
+
+	/**
+	 * 整个插件的代理：按Activity数量与生成方式(单个dex / 模板)区分
+	 */
+	@State(Scope.Benchmark)
+	public static class PluginProxies {
+		@Param({ "1", "10", "40" })
+		public int activityCount;
+		@Param({ "false", "true" })
+		public boolean template;
+
+		List<String> activities;
+
+		@Setup
+		public void setup() {
+			activities = BenchmarkFixtures.activityNames(activityCount);
+		}
+	}
+
+	@Benchmark
+	public byte[] singleProxy(SingleProxy s) {
+		return ActivityClassGenerator.createActivitiesDex(s.activities,
+				BenchmarkFixtures.PLUGIN_ID, BenchmarkFixtures.PLUGIN_PKG,
+				s.loader);
+	}
+
+	/**
+	 * 多个线程同时生成(例如多个插件同时在后台预生成)
+	 */
+	@Benchmark
+	@Threads(4)
+	public byte[] singleProxyConcurrent(SingleProxy s) {
+		return singleProxy(s);
+	}
+
+	@Benchmark
+	public List<byte[]> pluginProxies(PluginProxies s) {
+		return ActivityClassGenerator.createProxyDexes(s.activities,
+				BenchmarkFixtures.PLUGIN_ID, BenchmarkFixtures.PLUGIN_PKG,
+				s.template);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public List<byte[]> pluginProxiesConcurrent(PluginProxies s) {
+		return pluginProxies(s);
+	}
+
+	/**
+	 * 只检查父类链的开销(运行时每个Activity都要做一次)
+	 */
+	@Benchmark
+	public Object skippedOverrides(Superclass s) {
+		return ActivityClassGenerator.getSkippedOverrides(s.superClass,
+				BenchmarkFixtures.superclassLoader());
+	}
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2015 HouKx <hkx.aidream@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package androidx.pluginmgr;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 输出代理dex的大小与方法引用数，格式与 JMH 的 csv 结果相同，可以用 {@link BenchmarkDiff} 对比
+ * <p>
+ * 生成结果是确定的，不需要多次测量
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar androidx.pluginmgr.ProxySizeReport [out.csv]
+ * </pre>
+ */
+public class ProxySizeReport {
+	private static final String CLASS = ProxySizeReport.class.getName();
+	private static final int[] ACTIVITY_COUNTS = { 1, 10, 40 };
+
+	private final PrintWriter out;
+	private final File tmpDir;
+
+	private ProxySizeReport(PrintWriter out, File tmpDir) {
+		this.out = out;
+		this.tmpDir = tmpDir;
+	}
+
+	public static void main(String[] args) throws IOException {
+		PrintWriter out = args.length > 0 ? new PrintWriter(
+				new OutputStreamWriter(new FileOutputStream(args[0]), "UTF-8"))
+				: new PrintWriter(System.out);
+		File tmpDir = File.createTempFile("proxysize", "");
+		if (!tmpDir.delete() || !tmpDir.mkdir()) {
+			throw new IOException("cannot create " + tmpDir);
+		}
+		try {
+			new ProxySizeReport(out, tmpDir).run();
+		} finally {
+			out.flush();
+			if (args.length > 0) {
+				out.close();
+			}
+			File[] files = tmpDir.listFiles();
+			if (files != null) {
+				for (File f : files) {
+					f.delete();
+				}
+			}
+			tmpDir.delete();
+		}
+	}
+
+	private void run() throws IOException {
+		out.println("\"Benchmark\",\"Mode\",\"Threads\",\"Samples\",\"Score\","
+				+ "\"Score Error (99.9%)\",\"Unit\",\"Param: activityCount\","
+				+ "\"Param: inspectSuperclass\",\"Param: superClass\","
+				+ "\"Param: template\"");
+		for (String superClass : BenchmarkFixtures.SUPER_CLASSES) {
+			for (boolean inspect : new boolean[] { false, true }) {
+				byte[] dex = ActivityClassGenerator.createActivitiesDex(
+						Collections.singletonList(superClass),
+						BenchmarkFixtures.PLUGIN_ID,
+						BenchmarkFixtures.PLUGIN_PKG,
+						inspect ? BenchmarkFixtures.superclassLoader() : null);
+				String params = ",," + inspect + "," + superClass + ",";
+				row("singleProxy:bytes", dex.length, "bytes", params);
+				row("singleProxy:methodRefs",
+						ActivityClassGenerator.getMethodIdCount(dex), "refs",
+						params);
+			}
+		}
+		for (int count : ACTIVITY_COUNTS) {
+			List<String> activities = BenchmarkFixtures.activityNames(count);
+			for (boolean template : new boolean[] { false, true }) {
+				List<byte[]> dexes = ActivityClassGenerator.createProxyDexes(
+						activities, BenchmarkFixtures.PLUGIN_ID,
+						BenchmarkFixtures.PLUGIN_PKG, template);
+				long bytes = 0;
+				long refs = 0;
+				for (byte[] dex : dexes) {
+					bytes += dex.length;
+					refs += ActivityClassGenerator.getMethodIdCount(dex);
+				}
+				File file = new File(tmpDir, template ? "proxies.jar"
+						: "proxies.dex");
+				ActivityClassGenerator.writeProxyDexes(dexes, file);
+				String params = "," + count + ",,," + template;
+				row("pluginProxies:bytes", bytes, "bytes", params);
+				row("pluginProxies:methodRefs", refs, "refs", params);
+				row("pluginProxies:fileBytes", file.length(), "bytes", params);
+			}
+		}
+	}
+
+	private void row(String name, long score, String unit, String params) {
+		out.println("\"" + CLASS + "." + name + "\",\"size\",1,1," + score
+				+ ",NaN,\"" + unit + "\"" + params);
+	}
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2015 HouKx <hkx.aidream@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package androidx.pluginmgr;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 代理dex写盘的耗时：单个 .dex 文件与模板模式的不压缩jar(含 SHA-256)
+ * <p>
+ * 结果受磁盘影响，对比版本时应在同一台机器上运行
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class ProxyWriteBenchmark {
+	@Param({ "1", "10", "40" })
+	public int activityCount;
+
+	private List<byte[]> singleDex;
+	private List<byte[]> templateDexes;
+	private File dir;
+	private File dexFile;
+	private File jarFile;
+
+	@Setup
+	public void setup() throws IOException {
+		List<String> activities = BenchmarkFixtures.activityNames(activityCount);
+		singleDex = Collections.singletonList(ActivityClassGenerator
+				.createActivitiesDex(activities, BenchmarkFixtures.PLUGIN_ID,
+						BenchmarkFixtures.PLUGIN_PKG, null));
+		templateDexes = ActivityClassGenerator.createProxyDexes(activities,
+				BenchmarkFixtures.PLUGIN_ID, BenchmarkFixtures.PLUGIN_PKG, true);
+		dir = File.createTempFile("proxybench", "");
+		if (!dir.delete() || !dir.mkdir()) {
+			throw new IOException("cannot create " + dir);
+		}
+		dexFile = new File(dir, "proxies.dex");
+		jarFile = new File(dir, "proxies.jar");
+	}
+
+	@TearDown
+	public void tearDown() {
+		dexFile.delete();
+		jarFile.delete();
+		dir.delete();
+	}
+
+	@Benchmark
+	public String writeDex() throws IOException {
+		return ActivityClassGenerator.writeProxyDexes(singleDex, dexFile);
+	}
+
+	@Benchmark
+	public String writeJar() throws IOException {
+		return ActivityClassGenerator.writeProxyDexes(templateDexes, jarFile);
+	}
+}
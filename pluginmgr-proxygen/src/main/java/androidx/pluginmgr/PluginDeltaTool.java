@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2015 HouKx <hkx.aidream@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package androidx.pluginmgr;
+
+import java.io.File;
+
+/**
+ * 构建时生成插件的增量包(见 {@link PluginDelta})，在设备上用 PluginManager.updatePlugin 应用
+ *
+ * <pre>
+ * java -cp pluginmgr-proxygen.jar androidx.pluginmgr.PluginDeltaTool create base.apk target.apk out.delta
+ * java -cp pluginmgr-proxygen.jar androidx.pluginmgr.PluginDeltaTool apply base.apk in.delta out.apk
+ * </pre>
+ *
+ * base.apk 必须与设备上已安装的那份apk逐字节相同：首次安装的原始apk，或上一次应用增量的结果。
+ * 应用增量得到的是目标apk的规范形式而不是 target.apk 本身，用 apply 在构建端得到同样的文件，作为下一次增量的 base
+ */
+public class PluginDeltaTool {
+
+	public static void main(String[] args) throws Exception {
+		if (args.length != 4
+				|| !("create".equals(args[0]) || "apply".equals(args[0]))) {
+			System.err.println("usage: PluginDeltaTool create base.apk target.apk out.delta");
+			System.err.println("       PluginDeltaTool apply base.apk in.delta out.apk");
+			System.exit(2);
+		}
+		File base = new File(args[1]);
+		File in = new File(args[2]);
+		File out = new File(args[3]);
+		long start = System.currentTimeMillis();
+		if ("create".equals(args[0])) {
+			String sha256 = PluginDelta.createPatch(base, in, out);
+			System.out.println(out + ": " + out.length() + " bytes (target "
+					+ in.length() + " bytes), target sha256=" + sha256 + ", "
+					+ (System.currentTimeMillis() - start) + "ms");
+		} else {
+			PluginDelta.Result rs = PluginDelta.apply(base, null, in, out);
+			System.out.println(out + ": " + rs.size + " bytes, sha256="
+					+ rs.digest + ", changed=" + rs.changedEntries + ", "
+					+ (System.currentTimeMillis() - start) + "ms");
+		}
+	}
+}
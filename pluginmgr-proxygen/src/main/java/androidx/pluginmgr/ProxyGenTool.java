@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2015 HouKx <hkx.aidream@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package androidx.pluginmgr;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+/**
+ * 构建时为插件apk预先生成代理Activity的dex，输出 &lt;apk&gt;.proxies(见 {@link ProxySidecar})
+ * <p>
+ * 把输出文件与apk放在同一目录，插件安装时会一起复制，首次启动Activity不再需要 DexMaker。
+ *
+ * <pre>
+ * java -jar pluginmgr-proxygen.jar [-o outDir] [-j threads] [--id pluginId] plugin.apk ...
+ * </pre>
+ *
+ * 插件id默认为apk文件名，与 PluginManager.loadPlugin 的默认值相同。
+ * 生成的是 API 16 以上的覆盖方法集合，sidecar 中记录了它，更旧的系统上不会使用
+ */
+public class ProxyGenTool {
+	private File outDir;
+	private String pluginId;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private final List<File> apks = new ArrayList<File>();
+
+	public static void main(String[] args) throws Exception {
+		ProxyGenTool tool = new ProxyGenTool();
+		if (!tool.parseArgs(args)) {
+			System.err.println("usage: ProxyGenTool [-o outDir] [-j threads]"
+					+ " [--id pluginId] plugin.apk ...");
+			System.exit(2);
+		}
+		System.exit(tool.run() ? 0 : 1);
+	}
+
+	private boolean parseArgs(String[] args) {
+		for (int i = 0; i < args.length; i++) {
+			String a = args[i];
+			if (("-o".equals(a) || "-j".equals(a) || "--id".equals(a))
+					&& i + 1 < args.length) {
+				String v = args[++i];
+				if ("-o".equals(a)) {
+					outDir = new File(v);
+				} else if ("-j".equals(a)) {
+					threads = Math.max(1, Integer.parseInt(v));
+				} else {
+					pluginId = v;
+				}
+			} else if (a.startsWith("-")) {
+				return false;
+			} else {
+				apks.add(new File(a));
+			}
+		}
+		// 多个apk不能共用一个插件id
+		return !apks.isEmpty() && (pluginId == null || apks.size() == 1);
+	}
+
+	private boolean run() throws InterruptedException {
+		if (outDir != null && !outDir.isDirectory() && !outDir.mkdirs()) {
+			System.err.println("cannot create " + outDir);
+			return false;
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(
+				threads, apks.size()));
+		List<Future<String>> results = new ArrayList<Future<String>>();
+		for (final File apk : apks) {
+			results.add(executor.submit(new Callable<String>() {
+				public String call() throws Exception {
+					return generate(apk);
+				}
+			}));
+		}
+		executor.shutdown();
+		boolean ok = true;
+		for (int i = 0; i < apks.size(); i++) {
+			try {
+				System.out.println(results.get(i).get());
+			} catch (ExecutionException e) {
+				ok = false;
+				System.err.println(apks.get(i) + ": " + e.getCause());
+			}
+		}
+		return ok;
+	}
+
+	private String generate(File apk) throws IOException,
+			XmlPullParserException {
+		long start = System.currentTimeMillis();
+		String id = pluginId != null ? pluginId : apk.getName();
+		String code;
+		String manifestXML;
+		PluginZipFile zip = new PluginZipFile(apk);
+		try {
+			PluginZipFile.Entry manifest = zip
+					.getEntry(XmlManifestReader.DEFAULT_XML);
+			if (manifest == null) {
+				throw new IOException("no " + XmlManifestReader.DEFAULT_XML);
+			}
+			manifestXML = XmlManifestReader.getManifestXMLFromAPK(zip,
+					manifest);
+			code = PluginManifestUtil.getCodeFingerprint(zip);
+		} finally {
+			zip.close();
+		}
+		List<String> activities = new ArrayList<String>();
+		String pkgName = readManifest(manifestXML, activities);
+		Collections.sort(activities);
+
+		File out = ProxySidecar.getSidecarFile(apk);
+		if (outDir != null) {
+			out = new File(outDir, out.getName());
+		}
+		ProxySidecar.write(out, id, pkgName, code, activities);
+		return out + ": " + activities.size() + " activities, id=" + id
+				+ ", overrides=" + ActivityClassGenerator.OVERRIDES_FULL + ", " + (System.currentTimeMillis() - start) + "ms";
+	}
+
+	/**
+	 * @return 包名，Activity的全类名加入 activities
+	 */
+	private static String readManifest(String manifestXML,
+			List<String> activities) throws XmlPullParserException,
+			IOException {
+		XmlPullParserFactory factory = XmlPullParserFactory.newInstance();
+		factory.setNamespaceAware(true);
+		XmlPullParser parser = factory.newPullParser();
+		parser.setInput(new StringReader(manifestXML));
+		String pkgName = null;
+		String namespaceAndroid = null;
+		int eventType = parser.getEventType();
+		while (eventType != XmlPullParser.END_DOCUMENT) {
+			if (eventType == XmlPullParser.START_TAG) {
+				String tag = parser.getName();
+				if ("manifest".equals(tag)) {
+					namespaceAndroid = parser.getNamespace("android");
+					pkgName = parser.getAttributeValue(null, "package");
+				} else if ("activity".equals(tag)) {
+					String name = PluginManifestUtil.getName(
+							parser.getAttributeValue(namespaceAndroid, "name"),
+							pkgName);
+					if (name != null) {
+						activities.add(name);
+					}
+				}
+			}
+			eventType = parser.next();
+		}
+		if (pkgName == null) {
+			throw new IOException("no package in manifest");
+		}
+		return pkgName;
+	}
+}